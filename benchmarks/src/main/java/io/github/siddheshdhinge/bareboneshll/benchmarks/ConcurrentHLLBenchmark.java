@@ -0,0 +1,66 @@
+package io.github.siddheshdhinge.bareboneshll.benchmarks;
+
+import io.github.siddheshdhinge.bareboneshll.ConcurrentHLL;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// one sketch shared by all benchmark threads, run with -t to change the contention
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ConcurrentHLLBenchmark {
+    @Param({"5", "8", "12", "14"})
+    public int p;
+
+    @Param({"4", "5", "6"})
+    public int r;
+
+    private ConcurrentHLL shared;
+
+    @State(Scope.Thread)
+    public static class ThreadHashes {
+        long[] hashes;
+
+        @Setup
+        public void setup() {
+            hashes = Hashes.random(Hashes.BATCH_SIZE, Thread.currentThread().getId());
+        }
+    }
+
+    @Setup
+    public void setup() {
+        shared = new ConcurrentHLL(p, r);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Hashes.BATCH_SIZE)
+    public ConcurrentHLL add(ThreadHashes state) {
+        ConcurrentHLL hll = shared;
+        long[] h = state.hashes;
+        for(int i = 0; i < h.length; i++)
+            hll.add(h[i]);
+        return hll;
+    }
+
+    @Benchmark
+    public long estimate() {
+        return shared.estimate();
+    }
+}
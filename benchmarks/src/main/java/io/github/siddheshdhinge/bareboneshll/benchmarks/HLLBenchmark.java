@@ -0,0 +1,178 @@
+package io.github.siddheshdhinge.bareboneshll.benchmarks;
+
+import io.github.siddheshdhinge.bareboneshll.HLL;
+import io.github.siddheshdhinge.bareboneshll.HashFunction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HLLBenchmark {
+    @Param({"5", "6", "7", "8", "9", "10", "11", "12", "13", "14", "15", "16", "17", "18"})
+    public int p;
+
+    @Param({"4", "5", "6"})
+    public int r;
+
+    // 32 or 64 bit register words
+    @Param({"false", "true"})
+    public boolean longWords;
+
+    private static final int MERGE_ALL_INPUTS = 16;
+
+    private long[] hashes;
+    private String[] keys;
+    private HLL target;
+    private HLL typed;
+    private HLL other;
+    private HLL incremental;
+    private byte[] serialized;
+    private HLL[] others;
+
+    @Setup
+    public void setup() {
+        hashes = Hashes.random(Hashes.BATCH_SIZE, 42);
+        keys = new String[Hashes.BATCH_SIZE];
+        for(int i = 0; i < keys.length; i++)
+            keys[i] = "user-" + hashes[i];
+
+        // fill both sketches well past 2^p so every register is populated
+        int fill = Math.max(Hashes.BATCH_SIZE, 4 << p);
+        target = new HLL(p, r, false, longWords);
+        other = new HLL(p, r, false, longWords);
+        long[] a = Hashes.random(fill, 1);
+        long[] b = Hashes.random(fill, 2);
+        for(int i = 0; i < fill; i++) {
+            target.add(a[i]);
+            other.add(b[i]);
+        }
+        serialized = other.serialize();
+        others = new HLL[MERGE_ALL_INPUTS];
+        for(int j = 0; j < others.length; j++) {
+            others[j] = new HLL(p, r, false, longWords);
+            others[j].addAll(Hashes.random(fill, 100 + j));
+        }
+        typed = new HLL(p, r, false, longWords, HashFunction.XX);
+        incremental = HLL.deserialize(target.serialize());
+        incremental.enableIncrementalEstimate();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Hashes.BATCH_SIZE)
+    public HLL add() {
+        HLL hll = target;
+        long[] h = hashes;
+        for(int i = 0; i < h.length; i++)
+            hll.add(h[i]);
+        return hll;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Hashes.BATCH_SIZE)
+    public HLL addAll() {
+        HLL hll = target;
+        hll.addAll(hashes, 0, hashes.length);
+        return hll;
+    }
+
+    // hashing included, per key
+    @Benchmark
+    @OperationsPerInvocation(Hashes.BATCH_SIZE)
+    public HLL addLongTyped() {
+        HLL hll = typed;
+        long[] h = hashes;
+        for(int i = 0; i < h.length; i++)
+            hll.addLong(h[i]);
+        return hll;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Hashes.BATCH_SIZE)
+    public HLL addChars() {
+        HLL hll = typed;
+        String[] k = keys;
+        for(int i = 0; i < k.length; i++)
+            hll.addChars(k[i]);
+        return hll;
+    }
+
+    @Benchmark
+    public boolean merge() {
+        return target.merge(other);
+    }
+
+    @Benchmark
+    public boolean mergeEach() {
+        boolean merged = true;
+        for(HLL o : others)
+            merged &= target.merge(o);
+        return merged;
+    }
+
+    @Benchmark
+    public boolean mergeAll() {
+        return target.mergeAll(others);
+    }
+
+    // the query path: merge serialized sketches into an accumulator, with and without deserializing them first
+    @Benchmark
+    public boolean mergeDeserialized() {
+        return target.merge(HLL.deserialize(serialized));
+    }
+
+    @Benchmark
+    public boolean mergeFrom() {
+        return target.mergeFrom(serialized, 0, serialized.length);
+    }
+
+    @Benchmark
+    public long estimate() {
+        return target.estimate();
+    }
+
+    @Benchmark
+    public long estimateIncremental() {
+        return incremental.estimate();
+    }
+
+    @Benchmark
+    public long improvedEstimate() {
+        return target.improvedEstimate();
+    }
+
+    @Benchmark
+    public long improvedEstimateIncremental() {
+        return incremental.improvedEstimate();
+    }
+
+    @Benchmark
+    public long estimateSerialized() {
+        return HLL.estimate(serialized, 0, serialized.length);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return target.serialize();
+    }
+
+    @Benchmark
+    public HLL deserialize() {
+        return HLL.deserialize(serialized);
+    }
+}
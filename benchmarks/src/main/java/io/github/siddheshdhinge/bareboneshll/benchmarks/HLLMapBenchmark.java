@@ -0,0 +1,102 @@
+package io.github.siddheshdhinge.bareboneshll.benchmarks;
+
+import io.github.siddheshdhinge.bareboneshll.HLLMap;
+import io.github.siddheshdhinge.bareboneshll.HLLPlusPlus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// keyed adds over 100k keys with a skewed key distribution, HLLMap with a budget that holds all of them or a tenth of
+// them against a HashMap of HLLPlusPlus
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HLLMapBenchmark {
+    private static final int KEYS = 100_000;
+
+    @Param({"12"})
+    public int p;
+
+    @Param({"6"})
+    public int r;
+
+    // budget as a fraction of the sketches at the end of the setup
+    @Param({"1", "0.1"})
+    public double budget;
+
+    private long[] hashes;
+    private long[] keys;
+    private HLLMap map;
+    private Map<Long, HLLPlusPlus> sketches;
+
+    @Setup
+    public void setup() throws IOException {
+        hashes = Hashes.random(Hashes.BATCH_SIZE, 42);
+        keys = new long[Hashes.BATCH_SIZE];
+        Random random = new Random(7);
+        // most adds go to a few keys, like counts per campaign or segment
+        for(int i = 0; i < keys.length; i++)
+            keys[i] = (long) (KEYS * Math.pow(random.nextDouble(), 4));
+
+        HLLMap full = new HLLMap(p, r, Long.MAX_VALUE, Files.createTempFile("hllmap", ".spill"));
+        sketches = new HashMap<>();
+        long[] h = Hashes.random(20 * KEYS, 1);
+        for(int i = 0; i < h.length; i++) {
+            long key = (long) (KEYS * Math.pow((h[i] >>> 11) * 0x1.0p-53, 4));
+            full.add(key, h[i]);
+            sketches.computeIfAbsent(key, k -> new HLLPlusPlus(p, r)).add(h[i]);
+        }
+        map = new HLLMap(p, r, Math.max(4L << p, (long) (full.residentBytes() * budget)),
+                Files.createTempFile("hllmap", ".spill"));
+        for(long key : full.keys())
+            map.merge(key, full.get(key));
+        full.close();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        map.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Hashes.BATCH_SIZE)
+    public HLLMap add() throws IOException {
+        HLLMap m = map;
+        long[] h = hashes;
+        long[] k = keys;
+        for(int i = 0; i < h.length; i++)
+            m.add(k[i], h[i]);
+        return m;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Hashes.BATCH_SIZE)
+    public Map<Long, HLLPlusPlus> addHashMap() {
+        Map<Long, HLLPlusPlus> m = sketches;
+        long[] h = hashes;
+        long[] k = keys;
+        for(int i = 0; i < h.length; i++)
+            m.computeIfAbsent(k[i], key -> new HLLPlusPlus(p, r)).add(h[i]);
+        return m;
+    }
+}
@@ -0,0 +1,180 @@
+package io.github.siddheshdhinge.bareboneshll.benchmarks;
+
+import io.github.siddheshdhinge.bareboneshll.HLLPlusPlus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HLLPlusPlusBenchmark {
+    @Param({"4", "5", "6", "7", "8", "9", "10", "11", "12", "13", "14", "15", "16", "17", "18"})
+    public int p;
+
+    @Param({"4", "5", "6"})
+    public int r;
+
+    private long[] hashes;
+    private long[] sparseHashes;
+
+    private HLLPlusPlus sparseTarget;
+    private HLLPlusPlus sparseOther;
+    private byte[] sparseSerialized;
+
+    private HLLPlusPlus denseTarget;
+    private HLLPlusPlus denseOther;
+    private byte[] denseSerialized;
+
+    @Setup
+    public void setup() {
+        hashes = Hashes.random(Hashes.BATCH_SIZE, 42);
+
+        // the sketch converts to dense once the sparse set reaches one entry per register word,
+        // keep both sparse inputs (and their union) comfortably below that.
+        int words = denseWords(p, r);
+        int sparseSize = Math.max(1, words / 4);
+        sparseHashes = Hashes.random(sparseSize, 7);
+        sparseTarget = filled(sparseSize, 1);
+        sparseOther = filled(sparseSize, 2);
+        sparseSerialized = sparseOther.serialize();
+
+        int denseSize = Math.max(Hashes.BATCH_SIZE, 4 << p);
+        denseTarget = filled(denseSize, 3);
+        denseOther = filled(denseSize, 4);
+        denseSerialized = denseOther.serialize();
+    }
+
+    private HLLPlusPlus filled(int n, long seed) {
+        HLLPlusPlus hll = new HLLPlusPlus(p, r);
+        long[] h = Hashes.random(n, seed);
+        for(int i = 0; i < n; i++)
+            hll.add(h[i]);
+        return hll;
+    }
+
+    private static int denseWords(int p, int r) {
+        int regPerDatatype = 32 / r;
+        int totalRegisters = 1 << p;
+        return (totalRegisters + regPerDatatype - 1) / regPerDatatype;
+    }
+
+    // build a fresh sketch that stays sparse for its whole life, this is what most short lived sketches look like
+    @Benchmark
+    public HLLPlusPlus sparseBuild() {
+        HLLPlusPlus hll = new HLLPlusPlus(p, r);
+        long[] h = sparseHashes;
+        for(int i = 0; i < h.length; i++)
+            hll.add(h[i]);
+        return hll;
+    }
+
+    @Benchmark
+    public HLLPlusPlus sparseBuildAll() {
+        HLLPlusPlus hll = new HLLPlusPlus(p, r);
+        hll.addAll(sparseHashes, 0, sparseHashes.length);
+        return hll;
+    }
+
+    @Benchmark
+    public boolean sparseMerge() {
+        return sparseTarget.merge(sparseOther);
+    }
+
+    @Benchmark
+    public boolean sparseMergeFrom() {
+        return sparseTarget.mergeFrom(sparseSerialized, 0, sparseSerialized.length);
+    }
+
+    @Benchmark
+    public long sparseEstimate() {
+        return sparseTarget.estimate();
+    }
+
+    @Benchmark
+    public long sparseImprovedEstimate() {
+        return sparseTarget.improvedEstimate();
+    }
+
+    @Benchmark
+    public byte[] sparseSerialize() {
+        return sparseTarget.serialize();
+    }
+
+    @Benchmark
+    public HLLPlusPlus sparseDeserialize() {
+        return HLLPlusPlus.deserialize(sparseSerialized);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Hashes.BATCH_SIZE)
+    public HLLPlusPlus denseAdd() {
+        HLLPlusPlus hll = denseTarget;
+        long[] h = hashes;
+        for(int i = 0; i < h.length; i++)
+            hll.add(h[i]);
+        return hll;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Hashes.BATCH_SIZE)
+    public HLLPlusPlus denseAddAll() {
+        HLLPlusPlus hll = denseTarget;
+        hll.addAll(hashes, 0, hashes.length);
+        return hll;
+    }
+
+    @Benchmark
+    public boolean denseMerge() {
+        return denseTarget.merge(denseOther);
+    }
+
+    @Benchmark
+    public boolean denseMergeSparse() {
+        return denseTarget.merge(sparseOther);
+    }
+
+    @Benchmark
+    public boolean denseMergeFrom() {
+        return denseTarget.mergeFrom(denseSerialized, 0, denseSerialized.length);
+    }
+
+    @Benchmark
+    public boolean denseMergeFromSparse() {
+        return denseTarget.mergeFrom(sparseSerialized, 0, sparseSerialized.length);
+    }
+
+    @Benchmark
+    public long denseEstimate() {
+        return denseTarget.estimate();
+    }
+
+    @Benchmark
+    public long denseImprovedEstimate() {
+        return denseTarget.improvedEstimate();
+    }
+
+    @Benchmark
+    public byte[] denseSerialize() {
+        return denseTarget.serialize();
+    }
+
+    @Benchmark
+    public HLLPlusPlus denseDeserialize() {
+        return HLLPlusPlus.deserialize(denseSerialized);
+    }
+}
@@ -0,0 +1,77 @@
+package io.github.siddheshdhinge.bareboneshll.benchmarks;
+
+import io.github.siddheshdhinge.bareboneshll.HLL;
+import io.github.siddheshdhinge.bareboneshll.HLLTimeSeries;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// a week of per-minute sketches, the distinct count of the week from the rollup against merging every minute
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HLLTimeSeriesBenchmark {
+    private static final long MINUTE = 60_000;
+    private static final int MINUTES = 7 * 24 * 60;
+
+    @Param({"12", "14"})
+    public int p;
+
+    @Param({"6"})
+    public int r;
+
+    private HLLTimeSeries series;
+    private byte[][] minutes;
+    private long from;
+    private long to;
+
+    @Setup
+    public void setup() {
+        series = new HLLTimeSeries(p, r, MINUTE, 60, 24);
+        minutes = new byte[MINUTES][];
+        // start in the middle of a day, so the week is not aligned to the levels
+        long start = 5 * 24 * 60 * MINUTE + 17 * 60 * MINUTE + 13 * MINUTE;
+        for(int i = 0; i < MINUTES; i++) {
+            HLL minute = new HLL(p, r);
+            minute.addAll(Hashes.random(Hashes.BATCH_SIZE, i));
+            minutes[i] = minute.serialize();
+            series.merge(start + i * MINUTE, minute);
+        }
+        from = start;
+        to = start + MINUTES * MINUTE;
+    }
+
+    @Benchmark
+    public long rollup() {
+        return series.estimate(from, to);
+    }
+
+    @Benchmark
+    public long deserializeAndMerge() {
+        HLL total = new HLL(p, r);
+        for(byte[] minute : minutes)
+            total.merge(HLL.deserialize(minute));
+        return total.estimate();
+    }
+
+    @Benchmark
+    public long mergeFrom() {
+        HLL total = new HLL(p, r);
+        for(byte[] minute : minutes)
+            total.mergeFrom(minute, 0, minute.length);
+        return total.estimate();
+    }
+}
@@ -0,0 +1,19 @@
+package io.github.siddheshdhinge.bareboneshll.benchmarks;
+
+import net.openhft.hashing.LongHashFunction;
+
+final class Hashes {
+    static final int BATCH_SIZE = 1024;
+
+    private Hashes() {
+    }
+
+    // deterministic xx hashes of a seeded counter, so runs are comparable between releases
+    static long[] random(int n, long seed) {
+        LongHashFunction hash = LongHashFunction.xx(seed);
+        long[] hashes = new long[n];
+        for(int i = 0; i < n; i++)
+            hashes[i] = hash.hashLong(i);
+        return hashes;
+    }
+}
@@ -0,0 +1,83 @@
+package io.github.siddheshdhinge.bareboneshll.benchmarks;
+
+import io.github.siddheshdhinge.bareboneshll.HLL;
+import io.github.siddheshdhinge.bareboneshll.SlidingHLL;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// a 15 minute window of 1 second timestamps, SlidingHLL against a ring of per-minute HLLs merged on every query
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SlidingHLLBenchmark {
+    private static final int MINUTES = 15;
+    private static final long WINDOW = MINUTES * 60;
+
+    @Param({"10", "12", "14"})
+    public int p;
+
+    @Param({"6"})
+    public int r;
+
+    private long[] hashes;
+    private SlidingHLL sliding;
+    private HLL[] ring;
+    private long now;
+
+    @Setup
+    public void setup() {
+        hashes = Hashes.random(Hashes.BATCH_SIZE, 42);
+
+        // an hour of adds, 4 << p per minute, so every window is past 2^p
+        sliding = new SlidingHLL(p, r, WINDOW);
+        ring = new HLL[MINUTES];
+        int perMinute = 4 << p;
+        for(int m = 0; m < 60; m++) {
+            long[] h = Hashes.random(perMinute, m);
+            HLL hll = new HLL(p, r);
+            for(int i = 0; i < h.length; i++) {
+                sliding.add(h[i], m * 60L + i % 60);
+                hll.add(h[i]);
+            }
+            ring[m % MINUTES] = hll;
+        }
+        now = sliding.getLatest();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Hashes.BATCH_SIZE)
+    public SlidingHLL add() {
+        SlidingHLL s = sliding;
+        long[] h = hashes;
+        for(int i = 0; i < h.length; i++)
+            s.add(h[i], now);
+        return s;
+    }
+
+    @Benchmark
+    public long estimate() {
+        return sliding.estimate();
+    }
+
+    @Benchmark
+    public long estimateRing() {
+        HLL total = new HLL(p, r);
+        total.mergeAll(ring);
+        return total.estimate();
+    }
+}
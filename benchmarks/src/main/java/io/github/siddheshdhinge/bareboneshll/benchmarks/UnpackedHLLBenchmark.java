@@ -0,0 +1,101 @@
+package io.github.siddheshdhinge.bareboneshll.benchmarks;
+
+import io.github.siddheshdhinge.bareboneshll.HLL;
+import io.github.siddheshdhinge.bareboneshll.UnpackedHLL;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// same inputs as HLLBenchmark, so the two layouts can be compared method by method
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UnpackedHLLBenchmark {
+    @Param({"5", "6", "7", "8", "9", "10", "11", "12", "13", "14", "15", "16", "17", "18"})
+    public int p;
+
+    @Param({"4", "5", "6"})
+    public int r;
+
+    private long[] hashes;
+    private UnpackedHLL target;
+    private UnpackedHLL other;
+    private HLL packed;
+    private byte[] serialized;
+
+    @Setup
+    public void setup() {
+        hashes = Hashes.random(Hashes.BATCH_SIZE, 42);
+
+        // fill both sketches well past 2^p so every register is populated
+        int fill = Math.max(Hashes.BATCH_SIZE, 4 << p);
+        target = new UnpackedHLL(p, r);
+        other = new UnpackedHLL(p, r);
+        target.addAll(Hashes.random(fill, 1));
+        other.addAll(Hashes.random(fill, 2));
+        packed = other.toHLL();
+        serialized = other.serialize();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Hashes.BATCH_SIZE)
+    public UnpackedHLL add() {
+        UnpackedHLL hll = target;
+        long[] h = hashes;
+        for(int i = 0; i < h.length; i++)
+            hll.add(h[i]);
+        return hll;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Hashes.BATCH_SIZE)
+    public UnpackedHLL addAll() {
+        UnpackedHLL hll = target;
+        hll.addAll(hashes, 0, hashes.length);
+        return hll;
+    }
+
+    @Benchmark
+    public boolean merge() {
+        return target.merge(other);
+    }
+
+    @Benchmark
+    public boolean mergePacked() {
+        return target.merge(packed);
+    }
+
+    @Benchmark
+    public boolean mergeFrom() {
+        return target.mergeFrom(serialized, 0, serialized.length);
+    }
+
+    @Benchmark
+    public long estimate() {
+        return target.estimate();
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return target.serialize();
+    }
+
+    @Benchmark
+    public UnpackedHLL deserialize() {
+        return UnpackedHLL.deserialize(serialized);
+    }
+}
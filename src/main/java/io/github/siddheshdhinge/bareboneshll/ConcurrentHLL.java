@@ -0,0 +1,190 @@
+package io.github.siddheshdhinge.bareboneshll;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+// thread safe HLL, uses the same bit-packed register words and the same serialized format as HLL.
+// every register update is a CAS on the word holding the register, registers only ever grow
+// so an update that finds the register already at or above the new value does not write at all.
+public class ConcurrentHLL {
+    // below variables need to be serialized
+    private final int p;
+    private final int r;
+    private final AtomicIntegerArray registers;
+    // EXTERNAL until a sketch of a hash function is merged, see HashFunction.merged()
+    private final AtomicReference<HashFunction> hashFunction = new AtomicReference<>(HashFunction.EXTERNAL);
+
+    // below variables are derived
+    private final int m;
+    private final int maxRegisterValue;
+    private final int regPerDatatype;
+    private final int totalRegisters;
+
+    // below are constants
+    private static final int DEFAULT_P = 12;
+    private static final int DEFAULT_R = 6;
+    private static final int DT_WIDTH = 32;
+    private static final double[] PRE_POW_2_K = new double[64]; // as largest r = 6, the max value of a register can be at max 63
+    static {
+        for(int i = 0; i< PRE_POW_2_K.length; i++) {
+            PRE_POW_2_K[i] = Math.pow(2, -i);
+        }
+    }
+
+    public ConcurrentHLL() {
+        this(DEFAULT_P, DEFAULT_R);
+    }
+
+    public ConcurrentHLL(int p) {
+        this(p, DEFAULT_R);
+    }
+
+    public ConcurrentHLL(int p, int r) {
+        HLL.checkPR(p, r);
+
+        this.p = p;
+        this.r = r;
+        this.regPerDatatype = DT_WIDTH / r;
+        this.totalRegisters = (1 << p);
+        this.m = totalRegisters / regPerDatatype + (totalRegisters % regPerDatatype == 0 ? 0 : 1);
+        this.maxRegisterValue = ((1 << r) - 1);
+
+        this.registers = new AtomicIntegerArray(m);
+    }
+
+    public void add(long value) {
+        int registerIndex = (int) (value >>> (64 - p));
+        value = value | (1L << (64 - p));
+        int cnt = Long.numberOfTrailingZeros(value) + 1;
+        cnt = Math.min(cnt, maxRegisterValue);
+
+        int bucketIndex = registerIndex / regPerDatatype;
+        int registerOffset = (regPerDatatype - registerIndex % regPerDatatype - 1) * r;
+        int mask = maxRegisterValue << registerOffset;
+        while(true) {
+            int bucketValue = this.registers.get(bucketIndex);
+            int prevValue = (bucketValue >>> registerOffset) & maxRegisterValue;
+            if(prevValue >= cnt)
+                return;
+            if(this.registers.compareAndSet(bucketIndex, bucketValue, (bucketValue & ~mask) | (cnt << registerOffset)))
+                return;
+        }
+    }
+
+    public HashFunction getHashFunction() {
+        return hashFunction.get();
+    }
+
+    // take on the hash function of a sketch about to be merged, false if it must not be merged. a merge of an
+    // incompatible sketch running at the same time fails, as it sees the hash function taken on here.
+    private boolean mergeHashFunction(HashFunction other) {
+        while(true) {
+            HashFunction current = hashFunction.get();
+            if(!current.isCompatible(other))
+                return false;
+            HashFunction merged = current.merged(other);
+            if(merged == current || hashFunction.compareAndSet(current, merged))
+                return true;
+        }
+    }
+
+    private void mergeWord(int i, int otherBucket) {
+        while(true) {
+            int thisBucket = this.registers.get(i);
+            int word = RegisterWords.max(thisBucket, otherBucket, r);
+            if(word == thisBucket || this.registers.compareAndSet(i, thisBucket, word))
+                return;
+        }
+    }
+
+    public boolean merge(HLL other) {
+        if (other == null)
+            return false;
+        if (this.p != other.getP() || this.r != other.getR() || !mergeHashFunction(other.getHashFunction()))
+            return false;
+
+        int[] otherRegisters = other.getRegisters();
+        for(int i = 0; i < m; ++i)
+            mergeWord(i, otherRegisters[i]);
+        return true;
+    }
+
+    // merging is not atomic with respect to concurrent adds on other, registers added to other during
+    // the merge may or may not be carried over.
+    public boolean merge(ConcurrentHLL other) {
+        if (other == null)
+            return false;
+        if (this.p != other.p || this.r != other.r || !mergeHashFunction(other.hashFunction.get()))
+            return false;
+
+        for(int i = 0; i < m; ++i)
+            mergeWord(i, other.registers.get(i));
+        return true;
+    }
+
+    // copy the current registers into the words of a HLL with the same p and r.
+    void copyTo(int[] words) {
+        for(int i = 0; i < m; i++)
+            words[i] = this.registers.get(i);
+    }
+
+    // copy the current registers into a plain HLL, registers being updated concurrently may or may not be included.
+    public HLL toHLL() {
+        HLL hll = new HLL(p, r, hashFunction.get());
+        copyTo(hll.getRegisters());
+        return hll;
+    }
+
+    public long estimate() {
+        int zeroRegisters = 0;
+        double sum = 0;
+        int completeBuckets = totalRegisters / regPerDatatype;
+        int remainingRegisters = totalRegisters % regPerDatatype;
+
+        for(int i = 0; i < completeBuckets; i++) {
+            int cur = this.registers.get(i);
+            zeroRegisters += RegisterWords.zeros(cur, r);
+            sum = sum + RegisterWords.sum(cur, r);
+        }
+
+        if(remainingRegisters > 0) {
+            int last = this.registers.get(m - 1);
+            for(int j = regPerDatatype - 1; j >= (regPerDatatype - remainingRegisters); j--){
+                int k = (last >>> (r * j)) & maxRegisterValue;
+                zeroRegisters += ((k == 0) ? 1 : 0);
+                sum = sum + PRE_POW_2_K[k];
+            }
+        }
+
+        return HLL.estimate(sum, zeroRegisters, totalRegisters);
+    }
+
+    // same format as HLL.serialize(), so the output can be read back with HLL.deserialize() as well.
+    public byte[] serialize() {
+        int size = m * 4 + 2;
+
+        byte[] array = new byte[size];
+        int j = 0;
+        for(int i=0; i<m; i++) {
+            int register = registers.get(i);
+            array[j++] = (byte) (register >>> 24 & 0xFF);
+            array[j++] = (byte) (register >>> 16 & 0xFF);
+            array[j++] = (byte) (register >>> 8 & 0xFF);
+            array[j++] = (byte) (register & 0xFF);
+        }
+
+        array[m * 4] = (byte) p;
+        array[m * 4 + 1] = (byte) hashFunction.get().toHeader(r);
+        return array;
+    }
+
+    public static ConcurrentHLL deserialize(byte[] array) {
+        HLL hll = HLL.deserialize(array);
+        ConcurrentHLL concurrentHLL = new ConcurrentHLL(hll.getP(), hll.getR());
+        int[] hllRegisters = hll.getRegisters();
+        for(int i = 0; i < concurrentHLL.m; i++)
+            concurrentHLL.registers.set(i, hllRegisters[i]);
+        concurrentHLL.hashFunction.set(hll.getHashFunction());
+        return concurrentHLL;
+    }
+}
@@ -1,22 +1,47 @@
 package io.github.siddheshdhinge.bareboneshll;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
 public class HLL {
     // below variables need to be serialized
     private final int p;
     private final int r;
     private final int[] registers;
+    // the registers in the long word layout (see LongRegisterWords) instead of registers, null with the int layout
+    private final long[] longRegisters;
+    // an EXTERNAL sketch takes on the hash function of the first sketch of another one merged into it, see
+    // HashFunction.merged(), clear() goes back to the one it was created with
+    private HashFunction hashFunction;
+    private final HashFunction initialHashFunction;
 
     // below variables are derived
+    // number of words and registers per word of the layout in use
     private final int m;
     private final int maxRegisterValue;
     private final int regPerDatatype;
     private final int totalRegisters;
+    // number of registers holding each value, only maintained in incremental estimate mode, null otherwise
+    private int[] registerHistogram;
+    // words decoded by mergeFrom() or converted from the other layout, kept so that merging does not allocate
+    private int[] mergeScratch;
+    private long[] longMergeScratch;
 
     // below are constants
     private static final int DEFAULT_P = 12;
     private static final int DEFAULT_R = 6;
     private static final double POW_2_32 = Math.pow(2, 32);
+    // alpha for m -> infinity, 1 / (2 ln 2)
+    private static final double ALPHA_INF = 1 / (2 * Math.log(2));
     private static final int DT_WIDTH = 32;
+    private static final int LONG_DT_WIDTH = 64;
+    // the serialized r byte holds r in its low 3 bits, LongRegisterWords.LAYOUT_FLAG and the HashFunction id above it
+    static final int R_MASK = 0x07;
     private static final double[] PRE_POW_2_K = new double[64]; // as largest r = 6, the max value of a register can be at max 63
     static {
         for(int i = 0; i< PRE_POW_2_K.length; i++) {
@@ -24,6 +49,14 @@ public class HLL {
         }
     }
 
+    // throws for a p or r a HLL can not be created with, without allocating one
+    static void checkPR(int p, int r) {
+        if(p < 5 || p > 30)
+            throw new IllegalArgumentException("invalid p: " + p);
+        if(r < 4 || r > 6)
+            throw new IllegalArgumentException("Invalid R: " + r);
+    }
+
     public HLL() {
         this(DEFAULT_P, DEFAULT_R);
     }
@@ -33,23 +66,135 @@ public class HLL {
     }
 
     public HLL(int p, int r) {
-        if(p < 5 || p > 30)
-            throw new IllegalArgumentException("invalid p: " + p);
-        if(r < 4 || r > 6)
-            throw new IllegalArgumentException("Invalid R: " + r);
+        this(p, r, false);
+    }
+
+    // the typed adds hash with hashFunction
+    public HLL(int p, int r, HashFunction hashFunction) {
+        this(p, r, false, false, hashFunction);
+    }
+
+    // with incrementalEstimate add() and merge() keep a histogram of the register values up to date,
+    // so estimate() does not have to scan the registers.
+    public HLL(int p, int r, boolean incrementalEstimate) {
+        this(p, r, incrementalEstimate, false);
+    }
+
+    // with longWords the registers are packed into 64 bit words, which hold twice as many registers as the default
+    // 32 bit words, so merge() and estimate() take half the loop trips. serialize() marks the layout in the r byte,
+    // sketches of both layouts merge with each other, see LongRegisterWords.
+    public HLL(int p, int r, boolean incrementalEstimate, boolean longWords) {
+        this(p, r, incrementalEstimate, longWords, HashFunction.EXTERNAL);
+    }
+
+    public HLL(int p, int r, boolean incrementalEstimate, boolean longWords, HashFunction hashFunction) {
+        checkPR(p, r);
+        if(hashFunction == null)
+            throw new IllegalArgumentException("hashFunction is null");
 
         this.p = p;
         this.r = r;
-        this.regPerDatatype = DT_WIDTH / r;
+        this.hashFunction = hashFunction;
+        this.initialHashFunction = hashFunction;
+        this.regPerDatatype = (longWords ? LONG_DT_WIDTH : DT_WIDTH) / r;
         this.totalRegisters = (1 << p);
         this.m = totalRegisters / regPerDatatype + (totalRegisters % regPerDatatype == 0 ? 0 : 1);
         this.maxRegisterValue = ((1 << r) - 1);
 
-        this.registers = new int[m];
+        this.registers = longWords ? null : new int[m];
+        this.longRegisters = longWords ? new long[m] : null;
+        if(incrementalEstimate) {
+            this.registerHistogram = new int[maxRegisterValue + 1];
+            this.registerHistogram[0] = totalRegisters;
+        }
+    }
+
+    // switch to incremental estimate mode, e.g. after deserialize(). the histogram is rebuilt with a full scan of
+    // the registers, so this can also be used to resync it after the registers were written directly.
+    public void enableIncrementalEstimate() {
+        int[] hist = registerHistogram != null ? registerHistogram : new int[maxRegisterValue + 1];
+        Arrays.fill(hist, 0);
+        if(longRegisters != null) {
+            LongRegisterWords.histogram(longRegisters, totalRegisters, r, hist);
+            this.registerHistogram = hist;
+            return;
+        }
+        for(int i = 0; i < totalRegisters; i++) {
+            int bucketIndex = i / regPerDatatype;
+            int registerOffset = (regPerDatatype - i % regPerDatatype - 1) * r;
+            hist[(this.registers[bucketIndex] >>> registerOffset) & maxRegisterValue]++;
+        }
+        this.registerHistogram = hist;
+    }
+
+    // set all registers back to 0 and the hash function back to the one the sketch was created with, to reuse the
+    // sketch instead of allocating a new one, see HLLPool
+    public void clear() {
+        hashFunction = initialHashFunction;
+        if(longRegisters != null)
+            Arrays.fill(longRegisters, 0);
+        else
+            Arrays.fill(registers, 0);
+        if(registerHistogram != null) {
+            Arrays.fill(registerHistogram, 0);
+            registerHistogram[0] = totalRegisters;
+        }
+    }
+
+    public boolean isIncrementalEstimate() {
+        return registerHistogram != null;
+    }
+
+    public boolean isLongWords() {
+        return longRegisters != null;
+    }
+
+    public HashFunction getHashFunction() {
+        return hashFunction;
+    }
+
+    // below accessors are for the other sketch types in this package, which share the same register layout
+    int getP() {
+        return p;
+    }
+
+    int getR() {
+        return r;
+    }
+
+    HashFunction getInitialHashFunction() {
+        return initialHashFunction;
+    }
+
+    // for sketches that get their registers copied in from another one, see StripedHLL.fold()
+    void setHashFunction(HashFunction hashFunction) {
+        this.hashFunction = hashFunction;
+    }
+
+    // the register words in the int layout, a copy if the sketch uses the long word layout
+    int[] getRegisters() {
+        if(longRegisters != null) {
+            int[] words = new int[LongRegisterWords.intWords(totalRegisters, r)];
+            LongRegisterWords.toIntWords(longRegisters, words, r);
+            return words;
+        }
+        return registers;
+    }
+
+    // the register words in the long word layout, a copy if the sketch uses the int layout
+    private long[] getLongRegisters() {
+        if(registers != null) {
+            long[] words = new long[LongRegisterWords.words(totalRegisters, r)];
+            LongRegisterWords.toLongWords(registers, words, r);
+            return words;
+        }
+        return longRegisters;
     }
 
     // read r bits of the registers from a specified bit location and return it as a byte.
     private byte readRegister(int index) {
+        if(longRegisters != null)
+            return (byte) LongRegisterWords.get(longRegisters, index, r);
         int registerIndex = index / regPerDatatype;
         int registerEndOffset = (regPerDatatype - registerIndex % regPerDatatype - 1) * r;
         int MASK = (1 << r) - 1;
@@ -71,86 +216,440 @@ public class HLL {
         int cnt = Long.numberOfTrailingZeros(value) + 1;
         cnt = Math.min(cnt, maxRegisterValue);
 
+        if(longRegisters != null) {
+            int prevValue = LongRegisterWords.max(longRegisters, registerIndex, cnt, r, regPerDatatype);
+            if(prevValue < cnt && registerHistogram != null) {
+                registerHistogram[prevValue]--;
+                registerHistogram[cnt]++;
+            }
+            return;
+        }
+
         int bucketIndex = registerIndex / regPerDatatype;
 //        int registerOffset = (DT_WIDTH - 1) - (PAD + ((registerIndex % regPerDatatype) * r) + (r - 1));
         int registerOffset = (regPerDatatype - registerIndex % regPerDatatype - 1) * r;
         int bucketValue = this.registers[bucketIndex];
         int prevValue = (bucketValue >>> registerOffset) & maxRegisterValue;
-        if(prevValue < cnt)
+        if(prevValue < cnt) {
             this.registers[bucketIndex] = (bucketValue & ~(maxRegisterValue << registerOffset)) | (cnt << registerOffset);
+            if(registerHistogram != null) {
+                registerHistogram[prevValue]--;
+                registerHistogram[cnt]++;
+            }
+        }
+    }
+
+    // typed adds, the value is hashed with the hash function of the sketch (see HashFunction) and added with add().
+    // they throw IllegalStateException for a sketch without one.
+    public void addInt(int value) {
+        add(hashFunction.hashInt(value));
+    }
+
+    public void addLong(long value) {
+        add(hashFunction.hashLong(value));
     }
 
-    private void merge4(HLL other) {
+    public void addBytes(byte[] bytes) {
+        if(bytes == null)
+            throw new IllegalArgumentException("bytes is null");
+        add(hashFunction.hashBytes(bytes, 0, bytes.length));
+    }
+
+    public void addBytes(byte[] bytes, int off, int len) {
+        if(bytes == null)
+            throw new IllegalArgumentException("bytes is null");
+        if(off < 0 || len < 0 || off > bytes.length - len)
+            throw new IllegalArgumentException("invalid range off: " + off + " len: " + len + " length: " + bytes.length);
+        add(hashFunction.hashBytes(bytes, off, len));
+    }
+
+    // the UTF-16 chars, no String or byte[] is created for them, so this differs from addBytes() of their encoding
+    public void addChars(CharSequence chars) {
+        if(chars == null)
+            throw new IllegalArgumentException("chars is null");
+        add(hashFunction.hashChars(chars));
+    }
+
+    // the bytes between the position and the limit of a heap or direct buffer, its position is not changed
+    public void addByteBuffer(ByteBuffer buffer) {
+        if(buffer == null)
+            throw new IllegalArgumentException("buffer is null");
+        add(hashFunction.hashBytes(buffer));
+    }
+
+    // the addAll loops are specialized per register width so that the register per bucket count is a constant,
+    // which lets the JIT turn the index division and modulo into shifts / multiplications.
+    private void addAll4(long[] hashes, int from, int to) {
         final int MASK = 0xf;
         final int REGISTERS_PER_BUCKET = 8;
         final int REGISTER_SIZE = 4;
-        for(int i = 0; i < m; ++i) {
-            int word = 0;
-            int thisBucket = this.registers[i];
-            int otherBucket = other.registers[i];
-            for(int j = 0; j < REGISTERS_PER_BUCKET; ++j) {
-                int mask = MASK << (REGISTER_SIZE * j);
-                int thisRawVal = thisBucket & mask;
-                int otherRawVal = otherBucket & mask;
-                word |= (Integer.compareUnsigned(thisRawVal, otherRawVal) < 0) ? otherRawVal : thisRawVal;
+        final int indexShift = 64 - p;
+        final long stopBit = 1L << indexShift;
+        final int[] registers = this.registers;
+        final int[] hist = this.registerHistogram;
+        for(int i = from; i < to; i++) {
+            long value = hashes[i];
+            int registerIndex = (int) (value >>> indexShift);
+            int cnt = Math.min(Long.numberOfTrailingZeros(value | stopBit) + 1, MASK);
+            int bucketIndex = registerIndex / REGISTERS_PER_BUCKET;
+            int registerOffset = (REGISTERS_PER_BUCKET - 1 - registerIndex % REGISTERS_PER_BUCKET) * REGISTER_SIZE;
+            int bucketValue = registers[bucketIndex];
+            int prevValue = (bucketValue >>> registerOffset) & MASK;
+            if(prevValue < cnt) {
+                registers[bucketIndex] = (bucketValue & ~(MASK << registerOffset)) | (cnt << registerOffset);
+                if(hist != null) {
+                    hist[prevValue]--;
+                    hist[cnt]++;
+                }
             }
-            this.registers[i] = word;
         }
     }
 
-    private void merge5(HLL other) {
+    private void addAll5(long[] hashes, int from, int to) {
         final int MASK = 0x1f;
         final int REGISTERS_PER_BUCKET = 6;
         final int REGISTER_SIZE = 5;
-        for(int i = 0; i < m; ++i) {
-            int word = 0;
-            int thisBucket = this.registers[i];
-            int otherBucket = other.registers[i];
-            for(int j = 0; j < REGISTERS_PER_BUCKET; ++j) {
-                int mask = MASK << (REGISTER_SIZE * j);
-                int thisRawVal = thisBucket & mask;
-                int otherRawVal = otherBucket & mask;
-                word |= (Integer.compareUnsigned(thisRawVal, otherRawVal) < 0) ? otherRawVal : thisRawVal;
+        final int indexShift = 64 - p;
+        final long stopBit = 1L << indexShift;
+        final int[] registers = this.registers;
+        final int[] hist = this.registerHistogram;
+        for(int i = from; i < to; i++) {
+            long value = hashes[i];
+            int registerIndex = (int) (value >>> indexShift);
+            int cnt = Math.min(Long.numberOfTrailingZeros(value | stopBit) + 1, MASK);
+            int bucketIndex = registerIndex / REGISTERS_PER_BUCKET;
+            int registerOffset = (REGISTERS_PER_BUCKET - 1 - registerIndex % REGISTERS_PER_BUCKET) * REGISTER_SIZE;
+            int bucketValue = registers[bucketIndex];
+            int prevValue = (bucketValue >>> registerOffset) & MASK;
+            if(prevValue < cnt) {
+                registers[bucketIndex] = (bucketValue & ~(MASK << registerOffset)) | (cnt << registerOffset);
+                if(hist != null) {
+                    hist[prevValue]--;
+                    hist[cnt]++;
+                }
             }
-            this.registers[i] = word;
         }
     }
 
-    private void merge6(HLL other) {
+    private void addAll6(long[] hashes, int from, int to) {
         final int MASK = 0x3f;
         final int REGISTERS_PER_BUCKET = 5;
         final int REGISTER_SIZE = 6;
+        final int indexShift = 64 - p;
+        final long stopBit = 1L << indexShift;
+        final int[] registers = this.registers;
+        final int[] hist = this.registerHistogram;
+        for(int i = from; i < to; i++) {
+            long value = hashes[i];
+            int registerIndex = (int) (value >>> indexShift);
+            int cnt = Math.min(Long.numberOfTrailingZeros(value | stopBit) + 1, MASK);
+            int bucketIndex = registerIndex / REGISTERS_PER_BUCKET;
+            int registerOffset = (REGISTERS_PER_BUCKET - 1 - registerIndex % REGISTERS_PER_BUCKET) * REGISTER_SIZE;
+            int bucketValue = registers[bucketIndex];
+            int prevValue = (bucketValue >>> registerOffset) & MASK;
+            if(prevValue < cnt) {
+                registers[bucketIndex] = (bucketValue & ~(MASK << registerOffset)) | (cnt << registerOffset);
+                if(hist != null) {
+                    hist[prevValue]--;
+                    hist[cnt]++;
+                }
+            }
+        }
+    }
+
+    // add len already hashed values starting at hashes[off], same result as calling add() for each of them.
+    public void addAll(long[] hashes, int off, int len) {
+        if(hashes == null)
+            throw new IllegalArgumentException("hashes is null");
+        if(off < 0 || len < 0 || off > hashes.length - len)
+            throw new IllegalArgumentException("invalid range off: " + off + " len: " + len + " length: " + hashes.length);
+
+        if(longRegisters != null) {
+            LongRegisterWords.addAll(longRegisters, hashes, off, off + len, p, r, registerHistogram);
+            return;
+        }
+        switch(r) {
+            case 4: addAll4(hashes, off, off + len);
+                break;
+            case 5: addAll5(hashes, off, off + len);
+                break;
+            case 6: addAll6(hashes, off, off + len);
+                break;
+        }
+    }
+
+    public void addAll(long[] hashes) {
+        addAll(hashes, 0, hashes == null ? 0 : hashes.length);
+    }
+
+    private void merge4(int[] otherRegisters) {
+        final int[] registers = this.registers;
+        for(int i = 0; i < m; ++i)
+            registers[i] = RegisterWords.max4(registers[i], otherRegisters[i]);
+    }
+
+    private void merge5(int[] otherRegisters) {
+        final int[] registers = this.registers;
+        for(int i = 0; i < m; ++i)
+            registers[i] = RegisterWords.max5(registers[i], otherRegisters[i]);
+    }
+
+    private void merge6(int[] otherRegisters) {
+        final int[] registers = this.registers;
+        for(int i = 0; i < m; ++i)
+            registers[i] = RegisterWords.max6(registers[i], otherRegisters[i]);
+    }
+
+    // register wise max that also moves the registers that grow to their new value in the histogram.
+    // only words that differ are looked at register by register.
+    private void mergeTracked(int[] otherRegisters) {
+        final int[] hist = this.registerHistogram;
         for(int i = 0; i < m; ++i) {
-            int word = 0;
             int thisBucket = this.registers[i];
-            int otherBucket = other.registers[i];
-            for(int j = 0; j < REGISTERS_PER_BUCKET; ++j) {
-                int mask = MASK << (REGISTER_SIZE * j);
-                int thisRawVal = thisBucket & mask;
-                int otherRawVal = otherBucket & mask;
-                word |= (Integer.compareUnsigned(thisRawVal, otherRawVal) < 0) ? otherRawVal : thisRawVal;
+            int otherBucket = otherRegisters[i];
+            if(thisBucket == otherBucket)
+                continue;
+            int word = 0;
+            for(int j = 0; j < regPerDatatype; ++j) {
+                int thisVal = (thisBucket >>> (r * j)) & maxRegisterValue;
+                int otherVal = (otherBucket >>> (r * j)) & maxRegisterValue;
+                if(thisVal < otherVal) {
+                    hist[thisVal]--;
+                    hist[otherVal]++;
+                    thisVal = otherVal;
+                }
+                word |= thisVal << (r * j);
             }
             this.registers[i] = word;
         }
     }
 
+    // a sketch with a larger p or r is folded to the p and r of this one first, see fold(). returns false if its p
+    // or r is smaller, see union() for that.
     public boolean merge(HLL other) {
         if (other == null)
             return false;
-        if (this.p != other.p || this.r != other.r)
+        if (other.p < this.p || other.r < this.r || !hashFunction.isCompatible(other.hashFunction))
             return false;
+        if (other.p != this.p || other.r != this.r)
+            other = other.foldTo(p, r);
+
+        if(other.longRegisters != null)
+            mergeLongWords(other.longRegisters);
+        else
+            mergeIntWords(other.registers);
+        hashFunction = hashFunction.merged(other.hashFunction);
+        return true;
+    }
+
+    // a new sketch of the same values at a lower precision newP, e.g. to keep old sketches at a fraction of the size.
+    // the registers are exactly the ones of adding the same hashes to a HLL(newP, r), see RegisterWords.fold(), so
+    // the folded sketch merges with sketches of newP. it has the layout, hash function and estimate mode of this one.
+    public HLL fold(int newP) {
+        return foldTo(newP, r);
+    }
+
+    // a new sketch of the same values with registers of newR bits. a smaller r caps the registers at 2^newR - 1, the
+    // same as adding the hashes with newR, a larger r keeps them as they are.
+    public HLL withWidth(int newR) {
+        return foldTo(p, newR);
+    }
+
+    private HLL foldTo(int newP, int newR) {
+        if(newP > p)
+            throw new IllegalArgumentException("can not fold p: " + p + " to a larger p: " + newP);
+        HLL hll = new HLL(newP, newR, false, longRegisters != null, hashFunction);
+        int[] words = new int[LongRegisterWords.intWords(1 << newP, newR)];
+        RegisterWords.fold(getRegisters(), p, r, words, newP, newR);
+        hll.mergeIntWords(words);
+        if(registerHistogram != null)
+            hll.enableIncrementalEstimate();
+        return hll;
+    }
+
+    // a new sketch of the union of sketches of any p and r, at the smallest p and the smallest r among them, e.g.
+    // of services with different settings. it has the layout of the first sketch and the hash function of the
+    // sketches, null sketches are skipped. throws if the sketches have different hash functions.
+    public static HLL union(HLL... sketches) {
+        int p = Integer.MAX_VALUE;
+        int r = Integer.MAX_VALUE;
+        HLL first = null;
+        HashFunction hashFunction = HashFunction.EXTERNAL;
+        for(HLL sketch : sketches) {
+            if(sketch == null)
+                continue;
+            if(first == null)
+                first = sketch;
+            p = Math.min(p, sketch.p);
+            r = Math.min(r, sketch.r);
+            if(sketch.hashFunction != HashFunction.EXTERNAL)
+                hashFunction = sketch.hashFunction;
+        }
+        if(first == null)
+            throw new IllegalArgumentException("no sketches");
+
+        HLL hll = new HLL(p, r, false, first.longRegisters != null, hashFunction);
+        for(HLL sketch : sketches) {
+            if(sketch != null && !hll.merge(sketch))
+                throw new IllegalArgumentException("sketches of different hash functions");
+        }
+        return hll;
+    }
+
+    // merge register words of the int layout, converted first if this sketch has the long word layout
+    private void mergeIntWords(int[] otherRegisters) {
+        if(longRegisters == null) {
+            mergeWords(otherRegisters);
+            return;
+        }
+        long[] scratch = longMergeScratch();
+        LongRegisterWords.toLongWords(otherRegisters, scratch, r);
+        mergeLongWords(scratch);
+    }
+
+    // merge register words of the long word layout, converted first if this sketch has the int layout
+    private void mergeLongWords(long[] otherRegisters) {
+        if(longRegisters == null) {
+            int[] scratch = mergeScratch();
+            LongRegisterWords.toIntWords(otherRegisters, scratch, r);
+            mergeWords(scratch);
+            return;
+        }
+        if(registerHistogram != null)
+            LongRegisterWords.mergeTracked(longRegisters, otherRegisters, r, registerHistogram);
+        else
+            LongRegisterWords.merge(longRegisters, otherRegisters, 0, m, r);
+    }
+
+    private void mergeWords(int[] otherRegisters) {
+        if(registerHistogram != null) {
+            mergeTracked(otherRegisters);
+            return;
+        }
+        if(RegisterWords.VECTORIZED) {
+            VectorKernels.merge(this.registers, otherRegisters, 0, m, r);
+            return;
+        }
 
         switch(r) {
-            case 4: merge4(other);
+            case 4: merge4(otherRegisters);
                 break;
-            case 5: merge5(other);
+            case 5: merge5(otherRegisters);
                 break;
-            case 6: merge6(other);
+            case 6: merge6(otherRegisters);
                 break;
         }
+    }
+
+    // merge all sketches into this one, like merge() for each of them, but in a single pass over the registers that
+    // is split over the common ForkJoinPool for large p, see MultiMerge. null sketches are skipped, returns false
+    // without merging anything if any of them has a different p or r.
+    public boolean mergeAll(HLL... others) {
+        return mergeAll(Arrays.asList(others));
+    }
+
+    public boolean mergeAll(Iterable<? extends HLL> others) {
+        HLL[] sketches = new HLL[8];
+        int n = 0;
+        HashFunction merged = hashFunction;
+        for(HLL other : others) {
+            if(other == null || other == this)
+                continue;
+            if(this.p != other.p || this.r != other.r || !merged.isCompatible(other.hashFunction))
+                return false;
+            merged = merged.merged(other.hashFunction);
+            if(n == sketches.length)
+                sketches = Arrays.copyOf(sketches, n * 2);
+            sketches[n++] = other;
+        }
+
+        // sketches of the other layout are converted into copies
+        if(longRegisters != null) {
+            long[][] otherRegisters = new long[n][];
+            for(int j = 0; j < n; j++)
+                otherRegisters[j] = sketches[j].getLongRegisters();
+            MultiMerge.merge(this.longRegisters, otherRegisters, n, r);
+        }
+        else {
+            int[][] otherRegisters = new int[n][];
+            for(int j = 0; j < n; j++)
+                otherRegisters[j] = sketches[j].getRegisters();
+            MultiMerge.merge(this.registers, otherRegisters, n, r);
+        }
+        // the merge does not track the registers it changes, rebuilding the histogram once is cheaper anyway
+        if(registerHistogram != null && n > 0)
+            enableIncrementalEstimate();
+        hashFunction = merged;
         return true;
     }
 
+    // scratch words of either layout. serialized words of the other layout are decoded into the scratch of their
+    // layout and converted into the scratch of this one, so the two are never the same array.
+    private int[] mergeScratch() {
+        if(mergeScratch == null)
+            mergeScratch = new int[LongRegisterWords.intWords(totalRegisters, r)];
+        return mergeScratch;
+    }
+
+    private long[] longMergeScratch() {
+        if(longMergeScratch == null)
+            longMergeScratch = new long[LongRegisterWords.words(totalRegisters, r)];
+        return longMergeScratch;
+    }
+
+    // merge a sketch serialized with serialize() straight from the length bytes at offset in array, no HLL is
+    // created for it. returns false if its p or r differ, like merge(HLL).
+    public boolean mergeFrom(byte[] array, int offset, int length) {
+        return mergeFrom(ByteBuffer.wrap(array), offset, length);
+    }
+
+    // same as mergeFrom(byte[], int, int) on the bytes of a buffer, its position and limit are not used or changed.
+    public boolean mergeFrom(ByteBuffer buffer, int offset, int length) {
+        if(length < 6)
+            throw new IllegalArgumentException("buffer is smaller than 6 bytes");
+        ByteBuffer view = view(buffer, offset, length);
+        int otherR = view.get(offset + length - 1);
+        if(view.get(offset + length - 2) != p || (otherR & R_MASK) != r)
+            return false;
+        if(!hashFunction.isCompatible(HashFunction.fromHeader(otherR)))
+            return false;
+
+        // a bulk decode into a reused array followed by the regular merge is much faster than merging word by word,
+        // as the JIT can not vectorize a loop that decodes and merges at once
+        checkSize(otherR, length);
+        ((Buffer) view).position(offset);
+        if((otherR & LongRegisterWords.LAYOUT_FLAG) != 0) {
+            long[] scratch = longMergeScratch();
+            view.asLongBuffer().get(scratch);
+            mergeLongWords(scratch);
+        }
+        else {
+            int[] scratch = mergeScratch();
+            view.asIntBuffer().get(scratch);
+            mergeIntWords(scratch);
+        }
+        hashFunction = hashFunction.merged(HashFunction.fromHeader(otherR));
+        return true;
+    }
+
+    // throws if length bytes are not the register words of this sketch in the layout of the r byte otherR and p, r
+    private void checkSize(int otherR, int length) {
+        boolean otherLongWords = (otherR & LongRegisterWords.LAYOUT_FLAG) != 0;
+        int words = otherLongWords ? LongRegisterWords.words(totalRegisters, r) : LongRegisterWords.intWords(totalRegisters, r);
+        if(words * (otherLongWords ? 8 : 4) != (length - 2))
+            throw new IllegalArgumentException("HLL buffer invalid size: " + (length - 2) + " expected: " + words);
+    }
+
+    // big-endian view of all bytes of the buffer, after checking that [offset, offset + length) is within them
+    static ByteBuffer view(ByteBuffer buffer, int offset, int length) {
+        if(offset < 0 || length < 0 || offset > buffer.capacity() - length)
+            throw new IllegalArgumentException("invalid offset: " + offset + " length: " + length + " capacity: " + buffer.capacity());
+        ByteBuffer view = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        // Buffer casts, as ByteBuffer.clear() & co. only exist since Java 9 and would not link on Java 8
+        ((Buffer) view).clear();
+        return view;
+    }
+
     private void estimate4(double[] results) {
         final int REGISTER_PER_BUCKET = 8;
         final int REGISTER_SIZE = 4;
@@ -161,12 +660,16 @@ public class HLL {
         int completeBuckets = totalRegisters / REGISTER_PER_BUCKET;
         int remainingRegisters = totalRegisters % REGISTER_PER_BUCKET;
 
-        for(int i = 0; i < completeBuckets; i++) {
-            int cur = this.registers[i];
-            for(int j = 0; j < REGISTER_PER_BUCKET; j++) {
-                int k = (cur >>> (REGISTER_SIZE * j)) & MASK;
-                zeroRegisters += ((k == 0) ? 1 : 0);
-                sum = sum + PRE_POW_2_K[k];
+        if(RegisterWords.VECTORIZED) {
+            VectorKernels.estimate(this.registers, completeBuckets, REGISTER_SIZE, results);
+            sum = results[0];
+            zeroRegisters = (int) results[1];
+        }
+        else {
+            for(int i = 0; i < completeBuckets; i++) {
+                int cur = this.registers[i];
+                zeroRegisters += RegisterWords.zeros4(cur);
+                sum = sum + RegisterWords.sum4(cur);
             }
         }
 
@@ -193,12 +696,16 @@ public class HLL {
         int completeBuckets = totalRegisters / REGISTER_PER_BUCKET;
         int remainingRegisters = totalRegisters % REGISTER_PER_BUCKET;
 
-        for(int i = 0; i < completeBuckets; i++) {
-            int cur = this.registers[i];
-            for(int j = 0; j < REGISTER_PER_BUCKET; j++) {
-                int k = (cur >>> (REGISTER_SIZE * j)) & MASK;
-                zeroRegisters += ((k == 0) ? 1 : 0);
-                sum = sum + PRE_POW_2_K[k];
+        if(RegisterWords.VECTORIZED) {
+            VectorKernels.estimate(this.registers, completeBuckets, REGISTER_SIZE, results);
+            sum = results[0];
+            zeroRegisters = (int) results[1];
+        }
+        else {
+            for(int i = 0; i < completeBuckets; i++) {
+                int cur = this.registers[i];
+                zeroRegisters += RegisterWords.zeros5(cur);
+                sum = sum + RegisterWords.sum5(cur);
             }
         }
 
@@ -225,12 +732,16 @@ public class HLL {
         int completeBuckets = totalRegisters / REGISTER_PER_BUCKET;
         int remainingRegisters = totalRegisters % REGISTER_PER_BUCKET;
 
-        for(int i = 0; i < completeBuckets; i++) {
-            int cur = this.registers[i];
-            for(int j = 0; j < REGISTER_PER_BUCKET; j++) {
-                int k = (cur >>> (REGISTER_SIZE * j)) & MASK;
-                zeroRegisters += ((k == 0) ? 1 : 0);
-                sum = sum + PRE_POW_2_K[k];
+        if(RegisterWords.VECTORIZED) {
+            VectorKernels.estimate(this.registers, completeBuckets, REGISTER_SIZE, results);
+            sum = results[0];
+            zeroRegisters = (int) results[1];
+        }
+        else {
+            for(int i = 0; i < completeBuckets; i++) {
+                int cur = this.registers[i];
+                zeroRegisters += RegisterWords.zeros6(cur);
+                sum = sum + RegisterWords.sum6(cur);
             }
         }
 
@@ -247,23 +758,104 @@ public class HLL {
         results[1] = zeroRegisters;
     }
     public long estimate() {
-        double M = totalRegisters;
-        double[] results = new double[2];
+        double sum;
+        double zeroRegisters;
 
-        switch(r) {
-            case 4:
-                estimate4(results);
-                break;
-            case 5:
-                estimate5(results);
-                break;
-            case 6:
-                estimate6(results);
-                break;
+        if(registerHistogram != null) {
+            sum = 0;
+            for(int k = registerHistogram.length - 1; k >= 0; k--)
+                sum = sum + registerHistogram[k] * PRE_POW_2_K[k];
+            zeroRegisters = registerHistogram[0];
+        }
+        else {
+            double[] results = new double[2];
+
+            if(longRegisters != null) {
+                LongRegisterWords.estimate(longRegisters, totalRegisters, r, results);
+            }
+            else {
+                switch(r) {
+                    case 4:
+                        estimate4(results);
+                        break;
+                    case 5:
+                        estimate5(results);
+                        break;
+                    case 6:
+                        estimate6(results);
+                        break;
+                }
+            }
+            sum = results[0];
+            zeroRegisters = results[1];
+        }
+
+        return estimate(sum, zeroRegisters, totalRegisters);
+    }
+
+    // estimate of a sketch serialized with serialize() straight from the length bytes at offset in array
+    public static long estimate(byte[] array, int offset, int length) {
+        return estimate(ByteBuffer.wrap(array), offset, length);
+    }
+
+    // same as estimate(byte[], int, int) on the bytes of a buffer, its position and limit are not used or changed.
+    public static long estimate(ByteBuffer buffer, int offset, int length) {
+        if(length < 6)
+            throw new IllegalArgumentException("buffer is smaller than 6 bytes");
+        buffer = view(buffer, offset, length);
+        int p = buffer.get(offset + length - 2);
+        int r = buffer.get(offset + length - 1);
+        boolean longWords = (r & LongRegisterWords.LAYOUT_FLAG) != 0;
+        // throws for an unknown hash function id, like for an invalid r
+        HashFunction.fromHeader(r);
+        r = r & R_MASK;
+        checkPR(p, r);
+        if(longWords) {
+            int words = LongRegisterWords.words(1 << p, r);
+            if((words * 8) != (length - 2))
+                throw new IllegalArgumentException("HLL buffer invalid size: " + (length - 2) + " expected: " + words);
+            double[] results = new double[2];
+            LongRegisterWords.estimate(buffer, offset, p, r, results);
+            return estimate(results[0], results[1], 1 << p);
+        }
+        int size = OffHeapHLL.sizeInBytes(p, r);
+        if(size != (length - 2))
+            throw new IllegalArgumentException("HLL buffer invalid size: " + (length - 2) + " expected: " + (size / 4));
+        return estimate(buffer, offset, p, r);
+    }
+
+    // estimate of the big-endian register words of a sketch with the given p and r at offset in buffer
+    static long estimate(ByteBuffer buffer, int offset, int p, int r) {
+        int regPerDatatype = DT_WIDTH / r;
+        int totalRegisters = 1 << p;
+        int maxRegisterValue = (1 << r) - 1;
+        int zeroRegisters = 0;
+        double sum = 0;
+        int completeBuckets = totalRegisters / regPerDatatype;
+        int remainingRegisters = totalRegisters % regPerDatatype;
+
+        for(int i = 0; i < completeBuckets; i++) {
+            int cur = buffer.getInt(offset + i * 4);
+            zeroRegisters += RegisterWords.zeros(cur, r);
+            sum = sum + RegisterWords.sum(cur, r);
         }
-        double sum = results[0];
-        double zeroRegisters = results[1];
 
+        if(remainingRegisters > 0) {
+            int last = buffer.getInt(offset + completeBuckets * 4);
+            for(int j = regPerDatatype - 1; j >= (regPerDatatype - remainingRegisters); j--){
+                int k = (last >>> (r * j)) & maxRegisterValue;
+                zeroRegisters += ((k == 0) ? 1 : 0);
+                sum = sum + PRE_POW_2_K[k];
+            }
+        }
+
+        return estimate(sum, zeroRegisters, totalRegisters);
+    }
+
+    // raw estimate with the small and large range corrections, from the sum of 2^-k and the number of zero registers.
+    // shared with the other sketch types in this package that use the same registers.
+    static long estimate(double sum, double zeroRegisters, int totalRegisters) {
+        double M = totalRegisters;
         double alphaM = getAlphaM(totalRegisters);
         double rawEstimate = alphaM * M * M * (1 / sum);
 //        System.err.println(rawEstimate);
@@ -277,7 +869,69 @@ public class HLL {
         return (long) rawEstimate;
     }
 
-    private double getAlphaM(int M) {
+    // Ertl's improved estimator ("New cardinality estimation algorithms for HyperLogLog sketches", 2017), from the
+    // histogram of the register values. it has no bias in the range where estimate() switches from linear counting
+    // to the raw estimate, and no 2^32 correction, so it stays accurate for 64 bit hashes up to far beyond 4e9.
+    // scans the registers unless the sketch is in incremental estimate mode.
+    public long improvedEstimate() {
+        int[] hist = registerHistogram;
+        if(hist == null) {
+            hist = new int[maxRegisterValue + 1];
+            if(longRegisters != null)
+                LongRegisterWords.histogram(longRegisters, totalRegisters, r, hist);
+            else
+                RegisterWords.histogram(registers, totalRegisters, r, hist);
+        }
+        return improvedEstimate(hist, p, r);
+    }
+
+    // improved estimate from hist[k] = number of registers holding k, for 2^p registers of r bits.
+    // shared with the other sketch types in this package.
+    static long improvedEstimate(int[] hist, int p, int r) {
+        double M = 1 << p;
+        // registers take values up to 64 - p + 1, the largest one q + 1 stands for all values from there on, which
+        // is 2^r - 1 when the registers are too narrow to hold 64 - p + 1
+        int q = Math.min(64 - p, (1 << r) - 2);
+        double z = M * tau(1 - hist[q + 1] / M);
+        for(int k = q; k >= 1; k--)
+            z = 0.5 * (z + hist[k]);
+        z = z + M * sigma(hist[0] / M);
+        return Math.round(ALPHA_INF * M * M / z);
+    }
+
+    // x + sum of x^(2^k) * 2^(k-1) for k >= 1
+    private static double sigma(double x) {
+        if(x == 1)
+            return Double.POSITIVE_INFINITY;
+        double y = 1;
+        double z = x;
+        double zPrevious;
+        do {
+            x = x * x;
+            zPrevious = z;
+            z = z + x * y;
+            y = y + y;
+        } while(z != zPrevious);
+        return z;
+    }
+
+    // (1 - x - sum of (1 - x^(2^-k))^2 * 2^-k for k >= 1) / 3
+    private static double tau(double x) {
+        if(x == 0 || x == 1)
+            return 0;
+        double y = 1;
+        double z = 1 - x;
+        double zPrevious;
+        do {
+            x = Math.sqrt(x);
+            zPrevious = z;
+            y = y * 0.5;
+            z = z - (1 - x) * (1 - x) * y;
+        } while(z != zPrevious);
+        return z / 3;
+    }
+
+    private static double getAlphaM(int M) {
         switch (M) {
             case 16:
                 return 0.673;
@@ -290,7 +944,17 @@ public class HLL {
         }
     }
 
+    // the high 4 bits of the r byte are the id of the hash function. the long word layout is written as big-endian
+    // longs, with LongRegisterWords.LAYOUT_FLAG set in the r byte
     public byte[] serialize() {
+        if(longRegisters != null) {
+            byte[] array = new byte[m * 8 + 2];
+            ByteBuffer.wrap(array, 0, m * 8).asLongBuffer().put(longRegisters);
+            array[m * 8] = (byte) p;
+            array[m * 8 + 1] = (byte) hashFunction.toHeader(r | LongRegisterWords.LAYOUT_FLAG);
+            return array;
+        }
+
         int size = m * 4 + 2;
 
         byte[] array = new byte[size];
@@ -303,28 +967,114 @@ public class HLL {
         }
 
         array[m * 4] = (byte) p;
-        array[m * 4 + 1] = (byte) r;
+        array[m * 4 + 1] = (byte) hashFunction.toHeader(r);
         return array;
     }
 
+    // write the sketch in the version 2 format, see WireFormat: a versioned header, the registers bit-packed or as
+    // zero runs, whichever is shorter, and a CRC32. it is encoded through a small fixed buffer instead of a byte[] of
+    // the whole sketch. serialize() still writes the version 1 format above.
+    public void writeTo(OutputStream out) throws IOException {
+        writeTo(new WireFormat.Writer(out));
+    }
+
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        writeTo(new WireFormat.Writer(channel));
+    }
+
+    private void writeTo(WireFormat.Writer out) throws IOException {
+        int rByte = hashFunction.toHeader(longRegisters != null ? r | LongRegisterWords.LAYOUT_FLAG : r);
+        WireFormat.writeDense(out, WireFormat.TYPE_HLL, p, rByte, registers, longRegisters);
+    }
+
+    // read the sketch at the position of buffer straight into the registers, in the version 2 format of writeTo()
+    // or the version 1 format of serialize(). the position moves past a version 2 sketch, a version 1 sketch has no
+    // length of its own and takes all remaining bytes.
+    public static HLL readFrom(ByteBuffer buffer) {
+        WireFormat.Header header = WireFormat.header(buffer);
+        if(header == null) {
+            HLL hll = readV1(buffer, buffer.position(), buffer.remaining());
+            ((Buffer) buffer).position(buffer.limit());
+            return hll;
+        }
+        if(header.type != WireFormat.TYPE_HLL)
+            throw new IllegalArgumentException("not a HLL sketch, type: " + header.type);
+
+        HLL hll = new HLL(header.p, header.r(), false, header.isLongWords(), HashFunction.fromHeader(header.rByte));
+        WireFormat.readDense(buffer, header, hll.registers, hll.longRegisters);
+        ((Buffer) buffer).position(buffer.position() + header.length());
+        return hll;
+    }
+
+    // read the sketch at the position of buffer into this one, replacing its registers, like readFrom() without
+    // allocating a new sketch. returns false without changing anything if its p or r differ or it was hashed with
+    // another function than the one this sketch was created with, like mergeFrom() after clear(). a buffer of the
+    // wrong size or encoding throws, also without changing anything.
+    public boolean readInto(ByteBuffer buffer) {
+        WireFormat.Header header = WireFormat.header(buffer);
+        if(header == null) {
+            int offset = buffer.position();
+            int length = buffer.remaining();
+            if(length < 6)
+                throw new IllegalArgumentException("buffer is smaller than 6 bytes");
+            int otherR = buffer.get(offset + length - 1);
+            if(buffer.get(offset + length - 2) != p || (otherR & R_MASK) != r)
+                return false;
+            if(!initialHashFunction.isCompatible(HashFunction.fromHeader(otherR)))
+                return false;
+            checkSize(otherR, length);
+            clear();
+            mergeFrom(buffer, offset, length);
+            ((Buffer) buffer).position(buffer.limit());
+            return true;
+        }
+        if(header.type != WireFormat.TYPE_HLL)
+            throw new IllegalArgumentException("not a HLL sketch, type: " + header.type);
+        if(header.p != p || header.r() != r || !initialHashFunction.isCompatible(HashFunction.fromHeader(header.rByte)))
+            return false;
+        WireFormat.checkDense(buffer, header);
+
+        clear();
+        // the payload does not depend on the layout, so it is decoded into the words of this sketch either way
+        WireFormat.readDense(buffer, header, registers, longRegisters);
+        hashFunction = hashFunction.merged(HashFunction.fromHeader(header.rByte));
+        if(registerHistogram != null)
+            enableIncrementalEstimate();
+        ((Buffer) buffer).position(buffer.position() + header.length());
+        return true;
+    }
+
+    public boolean readInto(byte[] array) {
+        return readInto(ByteBuffer.wrap(array));
+    }
+
+    // reads both formats, see readFrom()
     public static HLL deserialize(byte[] array) {
         if (array == null || array.length < 6)
             throw new IllegalArgumentException("array is null or smaller than 6 bytes");
-        int n = array.length;
-
-        int p = array[n - 2];
-        int r = array[n - 1];
+        return readFrom(ByteBuffer.wrap(array));
+    }
 
-        HLL hll = new HLL(p, r);
-        if((hll.m * 4) != (n - 2))
-            throw new IllegalArgumentException("HLL buffer invalid size: " + (n - 2) + " expected: " + hll.m);
+    // the version 1 sketch of the length bytes at offset in buffer
+    private static HLL readV1(ByteBuffer buffer, int offset, int length) {
+        if(length < 6)
+            throw new IllegalArgumentException("buffer is smaller than 6 bytes");
+        ByteBuffer view = view(buffer, offset, length);
+        int p = view.get(offset + length - 2);
+        int r = view.get(offset + length - 1);
+        boolean longWords = (r & LongRegisterWords.LAYOUT_FLAG) != 0;
 
-        for(int i=0; i < hll.m; i++) {
-            hll.registers[i] = ((array[i * 4] & 0xFF) << 24) |
-                    ((array[i * 4 + 1] & 0xFF) << 16) |
-                    ((array[i * 4 + 2] & 0xFF) << 8) |
-                    (array[i * 4 + 3] & 0xFF);
+        HLL hll = new HLL(p, r & R_MASK, false, longWords, HashFunction.fromHeader(r));
+        ((Buffer) view).position(offset);
+        if(longWords) {
+            if((hll.m * 8) != (length - 2))
+                throw new IllegalArgumentException("HLL buffer invalid size: " + (length - 2) + " expected: " + hll.m);
+            view.asLongBuffer().get(hll.longRegisters);
+            return hll;
         }
+        if((hll.m * 4) != (length - 2))
+            throw new IllegalArgumentException("HLL buffer invalid size: " + (length - 2) + " expected: " + hll.m);
+        view.asIntBuffer().get(hll.registers);
         return hll;
     }
 
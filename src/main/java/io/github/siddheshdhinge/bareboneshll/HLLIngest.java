@@ -0,0 +1,438 @@
+package io.github.siddheshdhinge.bareboneshll;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// command line tool that counts the distinct records of newline or length delimited files, see USAGE.
+//
+// the files are memory mapped in chunks, worker threads split them into records and hash the records straight from
+// the mapping, no String or byte[] is created for them. every worker adds to its own sketch and the sketches are
+// merged at the end. newline delimited files are cut into chunks at fixed offsets, a worker skips the record that
+// began in the previous chunk and finishes the last one that begins in its own. the records of a length delimited
+// file (each one a 4 byte big-endian length followed by the bytes) can only be found from its start, so the main
+// thread walks the lengths and hands out chunks of whole records while the workers hash them.
+public final class HLLIngest {
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "usage: HLLIngest [options] file...",
+            "  -p <p>             precision, default 12",
+            "  -r <r>             register width 4, 5 or 6, default 6",
+            "  -d newline|length  record delimiter, newline (the default, empty lines are skipped and a",
+            "                     trailing \\r is dropped) or a 4 byte big-endian length before every record",
+            "  -t <threads>       worker threads, default the number of cores",
+            "  -c <MB>            chunk size, default 64",
+            "  --hash <name>      hash function, one of " + hashNames() + ", default xx",
+            "  --sparse           count into HLLPlusPlus instead of HLL, p up to 18",
+            "  -o <file>          write the serialized sketch to file");
+
+    private static final int DEFAULT_CHUNK_MB = 64;
+    // hashes are added with addAll() in batches of this size
+    private static final int BATCH_SIZE = 1024;
+    // extra bytes mapped past a chunk, so that its last record usually does not need a mapping of its own
+    private static final int WINDOW_SLACK = 1 << 16;
+    // largest mapping, the limit of a ByteBuffer, and therefore the longest record
+    private static final int MAX_WINDOW = Integer.MAX_VALUE;
+    // SWAR search for a newline in 8 bytes at once, see Mapping.findNewline()
+    private static final long NEWLINES = 0x0a0a0a0a0a0a0a0aL;
+    private static final long LOW_BITS = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private HLLIngest() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        long start = System.nanoTime();
+        Worker[] workers = ingest(options);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long records = 0;
+        for(Worker worker : workers)
+            records += worker.records;
+        long bytes = 0;
+        for(Path file : options.files)
+            bytes += Files.size(file);
+
+        long estimate;
+        long improvedEstimate;
+        byte[] serialized;
+        if(options.sparse) {
+            HLLPlusPlus total = new HLLPlusPlus(options.p, options.r, options.hash);
+            for(Worker worker : workers)
+                total.merge(worker.hllpp);
+            estimate = total.estimate();
+            improvedEstimate = total.improvedEstimate();
+            serialized = total.serialize();
+        }
+        else {
+            HLL total = new HLL(options.p, options.r, options.hash);
+            HLL[] sketches = new HLL[workers.length];
+            for(int i = 0; i < workers.length; i++)
+                sketches[i] = workers[i].hll;
+            total.mergeAll(sketches);
+            estimate = total.estimate();
+            improvedEstimate = total.improvedEstimate();
+            serialized = total.serialize();
+        }
+        if(options.output != null)
+            Files.write(options.output, serialized);
+
+        System.out.printf(Locale.ROOT, "files: %d, bytes: %d, records: %d%n", options.files.size(), bytes, records);
+        System.out.printf(Locale.ROOT, "time: %.2f s, %.1f MB/s, %.2f M records/s, %d threads%n",
+                seconds, bytes / seconds / (1 << 20), records / seconds / 1e6, workers.length);
+        System.out.println("estimate: " + estimate);
+        System.out.println("improved estimate: " + improvedEstimate);
+        if(options.output != null)
+            System.out.println("sketch: " + options.output + " (" + serialized.length + " bytes)");
+    }
+
+    // count the records of all files, returns the workers with their sketches and record counts
+    static Worker[] ingest(Options options) throws IOException, InterruptedException {
+        BlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+        Worker[] workers = new Worker[options.threads];
+        for(int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(queue, options);
+            workers[i].start();
+        }
+
+        List<FileChannel> channels = new ArrayList<>();
+        try {
+            try {
+                for(Path file : options.files) {
+                    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+                    channels.add(channel);
+                    if(options.lengthDelimited)
+                        splitRecords(channel, options.chunkSize, queue);
+                    else
+                        split(channel, options.chunkSize, queue);
+                }
+            } finally {
+                // the workers stop at the first end marker they take
+                for(int i = 0; i < workers.length; i++)
+                    queue.put(Chunk.END);
+            }
+            for(Worker worker : workers)
+                worker.join();
+        } finally {
+            for(FileChannel channel : channels)
+                channel.close();
+        }
+
+        for(Worker worker : workers) {
+            if(worker.failure instanceof IOException)
+                throw (IOException) worker.failure;
+            if(worker.failure != null)
+                throw new IOException("ingestion failed", worker.failure);
+        }
+        return workers;
+    }
+
+    // newline delimited: chunks at fixed offsets
+    private static void split(FileChannel channel, long chunkSize, BlockingQueue<Chunk> queue) throws IOException, InterruptedException {
+        long size = channel.size();
+        for(long start = 0; start < size; start += chunkSize)
+            queue.put(new Chunk(channel, size, start, Math.min(size, start + chunkSize)));
+    }
+
+    // length delimited: chunks of whole records, found by walking the lengths from the start of the file
+    private static void splitRecords(FileChannel channel, long chunkSize, BlockingQueue<Chunk> queue) throws IOException, InterruptedException {
+        long size = channel.size();
+        Mapping mapping = new Mapping(channel, size, chunkSize);
+        long chunkStart = 0;
+        long pos = 0;
+        while(pos < size) {
+            pos = mapping.nextRecord(pos);
+            if(pos - chunkStart >= chunkSize) {
+                queue.put(new Chunk(channel, size, chunkStart, pos));
+                chunkStart = pos;
+            }
+        }
+        if(pos > chunkStart)
+            queue.put(new Chunk(channel, size, chunkStart, pos));
+    }
+
+    // the bytes [start, end) of a file
+    private static final class Chunk {
+        static final Chunk END = new Chunk(null, 0, 0, 0);
+
+        final FileChannel channel;
+        final long fileSize;
+        final long start;
+        final long end;
+
+        Chunk(FileChannel channel, long fileSize, long start, long end) {
+            this.channel = channel;
+            this.fileSize = fileSize;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    // a read only window of a file that is moved along as the records are read, little-endian for the newline search
+    private static final class Mapping {
+        private final FileChannel channel;
+        private final long fileSize;
+        private final long windowSize;
+        private MappedByteBuffer window;
+        private long windowStart;
+        private long windowEnd;
+
+        Mapping(FileChannel channel, long fileSize, long chunkSize) {
+            this.channel = channel;
+            this.fileSize = fileSize;
+            this.windowSize = Math.min(MAX_WINDOW, chunkSize + WINDOW_SLACK);
+        }
+
+        // map the window so that it holds [from, to), to is at most the file size
+        void ensure(long from, long to) throws IOException {
+            if(window != null && from >= windowStart && to <= windowEnd)
+                return;
+            if(to - from > MAX_WINDOW)
+                throw new IOException("record at " + from + " is longer than " + MAX_WINDOW + " bytes");
+            long length = Math.min(Math.max(to - from, windowSize), fileSize - from);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, from, length);
+            window.order(ByteOrder.LITTLE_ENDIAN);
+            windowStart = from;
+            windowEnd = from + length;
+        }
+
+        // offset of pos in the window
+        int offset(long pos) {
+            return (int) (pos - windowStart);
+        }
+
+        // position of the first newline at or after from, or the file size if there is none.
+        // v = 8 bytes xor newlines has a 0 byte for every newline, (v - 0x01..) & ~v & 0x80.. has the high bit of the
+        // first 0 byte set, and the lowest set bit is the first byte as the window is little-endian.
+        long findNewline(long from) throws IOException {
+            long pos = from;
+            while(pos < fileSize) {
+                ensure(pos, Math.min(fileSize, pos + 1));
+                int i = offset(pos);
+                int limit = offset(windowEnd);
+                for(; i <= limit - 8; i += 8) {
+                    long v = window.getLong(i) ^ NEWLINES;
+                    long t = (v - LOW_BITS) & ~v & HIGH_BITS;
+                    if(t != 0)
+                        return windowStart + i + (Long.numberOfTrailingZeros(t) >>> 3);
+                }
+                for(; i < limit; i++) {
+                    if(window.get(i) == '\n')
+                        return windowStart + i;
+                }
+                pos = windowEnd;
+            }
+            return fileSize;
+        }
+
+        // position after the length delimited record at pos, after checking that it is within the file
+        long nextRecord(long pos) throws IOException {
+            if(fileSize - pos < 4)
+                throw new IOException("truncated record length at " + pos);
+            ensure(pos, pos + 4);
+            int length = Integer.reverseBytes(window.getInt(offset(pos)));
+            if(length < 0 || length > fileSize - pos - 4)
+                throw new IOException("invalid record length " + length + " at " + pos);
+            return pos + 4 + length;
+        }
+    }
+
+    // takes chunks off the queue until the end marker and adds their records to its own sketch
+    static final class Worker extends Thread {
+        private final BlockingQueue<Chunk> queue;
+        private final Options options;
+        private final long[] batch = new long[BATCH_SIZE];
+        private int batchSize;
+        final HLL hll;
+        final HLLPlusPlus hllpp;
+        long records;
+        Throwable failure;
+
+        Worker(BlockingQueue<Chunk> queue, Options options) {
+            super("hll-ingest");
+            setDaemon(true);
+            this.queue = queue;
+            this.options = options;
+            this.hll = options.sparse ? null : new HLL(options.p, options.r, options.hash);
+            this.hllpp = options.sparse ? new HLLPlusPlus(options.p, options.r, options.hash) : null;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Chunk chunk;
+                while((chunk = queue.take()) != Chunk.END) {
+                    // a failed worker keeps taking chunks, so that the end markers still reach the others
+                    if(failure != null)
+                        continue;
+                    Mapping mapping = new Mapping(chunk.channel, chunk.fileSize, options.chunkSize);
+                    if(options.lengthDelimited)
+                        lengthDelimited(mapping, chunk);
+                    else
+                        newlineDelimited(mapping, chunk);
+                }
+                flush();
+            } catch (Throwable t) {
+                if(failure == null)
+                    failure = t;
+            }
+        }
+
+        // the records that begin in [start, end), the one that begins before start belongs to the previous chunk
+        private void newlineDelimited(Mapping mapping, Chunk chunk) throws IOException {
+            long pos = chunk.start;
+            if(pos > 0) {
+                long newline = mapping.findNewline(pos - 1);
+                pos = newline + 1;
+            }
+            while(pos < chunk.end) {
+                long end = mapping.findNewline(pos);
+                long next = end + 1;
+                if(end > pos) {
+                    mapping.ensure(pos, end);
+                    if(mapping.window.get(mapping.offset(end - 1)) == '\r')
+                        end--;
+                }
+                if(end > pos)
+                    add(mapping, pos, (int) (end - pos));
+                pos = next;
+            }
+        }
+
+        private void lengthDelimited(Mapping mapping, Chunk chunk) throws IOException {
+            long pos = chunk.start;
+            while(pos < chunk.end) {
+                long next = mapping.nextRecord(pos);
+                mapping.ensure(pos + 4, next);
+                add(mapping, pos + 4, (int) (next - pos - 4));
+                pos = next;
+            }
+        }
+
+        private void add(Mapping mapping, long pos, int length) {
+            batch[batchSize++] = options.hash.hashBytes(mapping.window, mapping.offset(pos), length);
+            records++;
+            if(batchSize == batch.length)
+                flush();
+        }
+
+        private void flush() {
+            if(hll != null)
+                hll.addAll(batch, 0, batchSize);
+            else
+                hllpp.addAll(batch, 0, batchSize);
+            batchSize = 0;
+        }
+    }
+
+    static final class Options {
+        int p = 12;
+        int r = 6;
+        boolean sparse;
+        boolean lengthDelimited;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long chunkSize = (long) DEFAULT_CHUNK_MB << 20;
+        HashFunction hash = HashFunction.XX;
+        Path output;
+        final List<Path> files = new ArrayList<>();
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for(int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if(!arg.startsWith("-")) {
+                    options.files.add(Paths.get(arg));
+                    continue;
+                }
+                if(arg.equals("--sparse")) {
+                    options.sparse = true;
+                    continue;
+                }
+                if(i + 1 >= args.length)
+                    throw new IllegalArgumentException("missing value for " + arg);
+                String value = args[++i];
+                switch(arg) {
+                    case "-p": options.p = parseInt(arg, value);
+                        break;
+                    case "-r": options.r = parseInt(arg, value);
+                        break;
+                    case "-t": options.threads = parseInt(arg, value);
+                        break;
+                    case "-c": options.chunkSize = (long) parseInt(arg, value) << 20;
+                        break;
+                    case "-o": options.output = Paths.get(value);
+                        break;
+                    case "-d":
+                        if(!value.equals("newline") && !value.equals("length"))
+                            throw new IllegalArgumentException("invalid delimiter: " + value);
+                        options.lengthDelimited = value.equals("length");
+                        break;
+                    case "--hash":
+                        options.hash = parseHash(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown option: " + arg);
+                }
+            }
+
+            if(options.files.isEmpty())
+                throw new IllegalArgumentException("no input files");
+            if(options.threads < 1)
+                throw new IllegalArgumentException("invalid number of threads: " + options.threads);
+            if(options.chunkSize < 1 || options.chunkSize > (1 << 30))
+                throw new IllegalArgumentException("invalid chunk size: " + (options.chunkSize >> 20) + " MB");
+            if(options.sparse)
+                HLLPlusPlus.checkPR(options.p, options.r);
+            else
+                HLL.checkPR(options.p, options.r);
+            return options;
+        }
+
+        private static int parseInt(String option, String value) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid value for " + option + ": " + value);
+            }
+        }
+
+        private static HashFunction parseHash(String name) {
+            for(HashFunction hash : HashFunction.values()) {
+                if(hash != HashFunction.EXTERNAL && hash.name().equalsIgnoreCase(name))
+                    return hash;
+            }
+            throw new IllegalArgumentException("unknown hash function: " + name);
+        }
+    }
+
+    private static String hashNames() {
+        StringBuilder names = new StringBuilder();
+        for(HashFunction hash : HashFunction.values()) {
+            if(hash == HashFunction.EXTERNAL)
+                continue;
+            if(names.length() > 0)
+                names.append(", ");
+            names.append(hash.name().toLowerCase(Locale.ROOT));
+        }
+        return names.toString();
+    }
+}
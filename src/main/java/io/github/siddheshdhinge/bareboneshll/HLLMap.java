@@ -0,0 +1,681 @@
+package io.github.siddheshdhinge.bareboneshll;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// sketches of one p and r by long key, for many keyed counters (campaigns, segments, ...) in a bounded amount of
+// memory and without an object per key. the keys are in an open addressing table of primitive longs. every sketch is
+// sparse like a HLLPlusPlus, a sorted list of sparse entries, until the list is as large as the dense registers, and
+// the sketches are stored inline in two arrays shared by all keys: variable sized blocks of sparse entries and fixed
+// size blocks of dense register words.
+//
+// the blocks of the sketches in memory are kept within budget bytes. when that is exceeded the least recently used
+// sketches are spilled to a file in the HLLPlusPlus.serialize() format and dropped from memory, add() and merge() load
+// them back. estimate() and serialize() read a spilled sketch from the file without loading it. the arrays holding the
+// blocks grow by doubling and are compacted when they run out, so they can be up to twice the budget, and every key
+// takes about 64 bytes on top for the table and its bookkeeping, spilled or not. the spill file is a cache, it is
+// truncated when the map is created and deleted by close(). not thread safe.
+public class HLLMap implements Closeable {
+    private final int p;
+    private final int r;
+    private final long budget;
+    private final Path spillPath;
+    private FileChannel spill;
+
+    // open addressing table with linear probing, the entry of each key or NIL
+    private long[] tableKeys;
+    private int[] tableEntries;
+    private int tableMask;
+
+    // the entries by id
+    private long[] keys;
+    private byte[] states;
+    // SPARSE: first slot of the block in sparseArena, DENSE: first word of the block in denseArena
+    private int[] starts;
+    // SPARSE: number of entries and of slots of the block
+    private int[] lengths;
+    private int[] capacities;
+    // HashFunction id, EXTERNAL until a sketch of a hash function is merged, see HashFunction.merged()
+    private byte[] hashIds;
+    // position of the copy in the spill file, -1 if there is none or the sketch changed since it was written
+    private long[] spillOffsets;
+    private int[] spillLengths;
+    // the entries in memory from the most (lruHead) to the least (lruTail) recently used, free ids are chained
+    // through lruNext
+    private int[] lruPrev;
+    private int[] lruNext;
+    private int lruHead = NIL;
+    private int lruTail = NIL;
+    private int freeEntry = NIL;
+    private int usedEntries;
+    private int size;
+
+    // sparse entries, index << (32 - sp) | value like in HLLPlusPlus, sorted by index within a block
+    private int[] sparseArena;
+    // first slot of sparseArena that is not part of a block
+    private int sparseTop;
+    private int[] denseArena;
+    private int denseBlocks;
+    private int[] freeDenseBlocks;
+    private int freeDenseCount;
+    // bytes of the blocks of the entries in memory
+    private long residentBytes;
+    private long spillEnd;
+    // bytes of the spill file that are not the copy of an entry anymore
+    private long spillGarbage;
+
+    // below variables are derived
+    private final int m;
+    private final int sp;
+    private final int sparseShift;
+    private final int maxRegisterValue;
+    private final int regPerDatatype;
+    private final int totalRegisters;
+    // dense words copied out for estimate()
+    private final int[] scratch;
+
+    // below are constants
+    private static final int NIL = -1;
+    private static final byte FREE = 0;
+    private static final byte SPARSE = 1;
+    private static final byte DENSE = 2;
+    private static final byte SPILLED = 3;
+    private static final int DT_WIDTH = 32;
+    private static final int INITIAL_SPARSE_CAPACITY = 4;
+    private static final int INITIAL_ENTRIES = 16;
+    private static final int SERIALIZED_METADATA_FIELDS = 3;
+    private static final int SPARSE_COUNT_BYTES = 4;
+    // the spill file is rewritten once more than half of it and at least this much is garbage
+    private static final long MIN_SPILL_GARBAGE = 1 << 20;
+    private static final long KEY_MIX = 0x9E3779B97F4A7C15L;
+
+    // budget is in bytes and has to hold at least one dense sketch
+    public HLLMap(int p, int r, long budget, Path spillPath) throws IOException {
+        HLLPlusPlus.checkPR(p, r);
+        if(spillPath == null)
+            throw new IllegalArgumentException("spillPath is null");
+
+        this.p = p;
+        this.r = r;
+        this.sp = p + HLLPlusPlus.SPARSE_P_EXTRA_BITS;
+        this.sparseShift = DT_WIDTH - sp;
+        this.regPerDatatype = DT_WIDTH / r;
+        this.totalRegisters = (1 << p);
+        this.m = totalRegisters / regPerDatatype + (totalRegisters % regPerDatatype == 0 ? 0 : 1);
+        this.maxRegisterValue = ((1 << r) - 1);
+        if(budget < m * 4L)
+            throw new IllegalArgumentException("budget is smaller than a dense sketch: " + budget + " < " + m * 4);
+        this.budget = budget;
+        this.scratch = new int[m];
+
+        this.tableKeys = new long[2 * INITIAL_ENTRIES];
+        this.tableEntries = new int[2 * INITIAL_ENTRIES];
+        Arrays.fill(tableEntries, NIL);
+        this.tableMask = tableEntries.length - 1;
+        this.keys = new long[INITIAL_ENTRIES];
+        this.states = new byte[INITIAL_ENTRIES];
+        this.starts = new int[INITIAL_ENTRIES];
+        this.lengths = new int[INITIAL_ENTRIES];
+        this.capacities = new int[INITIAL_ENTRIES];
+        this.hashIds = new byte[INITIAL_ENTRIES];
+        this.spillOffsets = new long[INITIAL_ENTRIES];
+        this.spillLengths = new int[INITIAL_ENTRIES];
+        this.lruPrev = new int[INITIAL_ENTRIES];
+        this.lruNext = new int[INITIAL_ENTRIES];
+        this.sparseArena = new int[INITIAL_ENTRIES * INITIAL_SPARSE_CAPACITY];
+        this.denseArena = new int[0];
+        this.freeDenseBlocks = new int[0];
+
+        this.spillPath = spillPath;
+        this.spill = FileChannel.open(spillPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    public int getP() {
+        return p;
+    }
+
+    public int getR() {
+        return r;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    // number of keys, in memory or spilled
+    public int size() {
+        return size;
+    }
+
+    // bytes of the sketches in memory, at most the budget after every call
+    public long residentBytes() {
+        return residentBytes;
+    }
+
+    public boolean containsKey(long key) {
+        return find(key) != NIL;
+    }
+
+    public long[] keys() {
+        long[] result = new long[size];
+        int n = 0;
+        for(int i = 0; i < tableEntries.length; i++) {
+            if(tableEntries[i] != NIL)
+                result[n++] = tableKeys[i];
+        }
+        return result;
+    }
+
+    // add an already hashed value to the sketch of key, which is created if it is not there and loaded if it
+    // was spilled
+    public void add(long key, long value) throws IOException {
+        int id = resident(key);
+        changed(id);
+        if(states[id] == SPARSE) {
+            int registerIndex = (int) (value >>> (64 - sp));
+            value = value | (1L << (64 - sp));
+            int cnt = Long.numberOfTrailingZeros(value) + 1;
+            cnt = Math.min(cnt, maxRegisterValue);
+            sparseAdd(id, registerIndex, cnt);
+        }
+        else {
+            int registerIndex = (int) (value >>> (64 - p));
+            value = value | (1L << (64 - p));
+            int cnt = Long.numberOfTrailingZeros(value) + 1;
+            cnt = Math.min(cnt, maxRegisterValue);
+            denseMax(starts[id], registerIndex, cnt);
+        }
+        evict(id);
+    }
+
+    // merge other into the sketch of key, like HLLPlusPlus.merge(): a sketch with a larger p or r is folded first,
+    // returns false if its p or r is smaller or its hash function differs from the one of the sketch of key
+    public boolean merge(long key, HLLPlusPlus other) throws IOException {
+        if(other == null || other.getP() < p || other.getR() < r)
+            return false;
+        int existing = find(key);
+        HashFunction hashFunction = existing == NIL ? HashFunction.EXTERNAL : HashFunction.fromId(hashIds[existing]);
+        if(!hashFunction.isCompatible(other.getHashFunction()))
+            return false;
+        if(other.getP() != p || other.getR() != r)
+            other = other.foldTo(p, r);
+        int id = resident(key);
+        changed(id);
+        mergeInto(id, other);
+        hashIds[id] = (byte) hashFunction.merged(other.getHashFunction()).getId();
+        evict(id);
+        return true;
+    }
+
+    // estimate of the sketch of key, 0 if there is none. a spilled sketch is estimated from the file
+    public long estimate(long key) throws IOException {
+        int id = find(key);
+        if(id == NIL)
+            return 0;
+        if(states[id] == SPILLED) {
+            byte[] bytes = readSpilled(id);
+            return HLLPlusPlus.estimate(bytes, 0, bytes.length);
+        }
+        if(states[id] == SPARSE) {
+            double SM = (1 << sp);
+            return Math.round(SM * Math.log(SM / (SM - lengths[id])));
+        }
+
+        System.arraycopy(denseArena, starts[id], scratch, 0, m);
+        int[] hist = new int[maxRegisterValue + 1];
+        RegisterWords.histogram(scratch, totalRegisters, r, hist);
+        double sum = 0;
+        for(int k = hist.length - 1; k >= 0; k--)
+            sum = sum + hist[k] * Math.pow(2, -k);
+        return HLL.estimate(sum, hist[0], totalRegisters);
+    }
+
+    // the sketch of key in the format of HLLPlusPlus.serialize(), null if there is none
+    public byte[] serialize(long key) throws IOException {
+        int id = find(key);
+        if(id == NIL)
+            return null;
+        if(states[id] == SPILLED)
+            return readSpilled(id);
+        return serializeEntry(id);
+    }
+
+    // a copy of the sketch of key, null if there is none
+    public HLLPlusPlus get(long key) throws IOException {
+        byte[] bytes = serialize(key);
+        return bytes == null ? null : HLLPlusPlus.deserialize(bytes);
+    }
+
+    public boolean remove(long key) throws IOException {
+        int slot = slot(key);
+        while(tableEntries[slot] != NIL && tableKeys[slot] != key)
+            slot = (slot + 1) & tableMask;
+        int id = tableEntries[slot];
+        if(id == NIL)
+            return false;
+
+        // backward shift deletion, the entries after the hole that may live there move into it
+        int hole = slot;
+        for(int i = (hole + 1) & tableMask; tableEntries[i] != NIL; i = (i + 1) & tableMask) {
+            int home = slot(tableKeys[i]);
+            if(((i - home) & tableMask) >= ((i - hole) & tableMask)) {
+                tableKeys[hole] = tableKeys[i];
+                tableEntries[hole] = tableEntries[i];
+                hole = i;
+            }
+        }
+        tableEntries[hole] = NIL;
+
+        changed(id);
+        if(states[id] != SPILLED) {
+            release(id);
+            unlink(id);
+        }
+        states[id] = FREE;
+        lruNext[id] = freeEntry;
+        freeEntry = id;
+        size--;
+        compactSpill();
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        spill.close();
+        Files.deleteIfExists(spillPath);
+    }
+
+    private int slot(long key) {
+        long h = key * KEY_MIX;
+        return (int) (h ^ (h >>> 32)) & tableMask;
+    }
+
+    private int find(long key) {
+        for(int slot = slot(key); tableEntries[slot] != NIL; slot = (slot + 1) & tableMask) {
+            if(tableKeys[slot] == key)
+                return tableEntries[slot];
+        }
+        return NIL;
+    }
+
+    // the entry of key in memory as the most recently used one, created or loaded if needed
+    private int resident(long key) throws IOException {
+        int slot = slot(key);
+        while(tableEntries[slot] != NIL && tableKeys[slot] != key)
+            slot = (slot + 1) & tableMask;
+        int id = tableEntries[slot];
+        if(id == NIL) {
+            id = newEntry(key);
+            tableKeys[slot] = key;
+            tableEntries[slot] = id;
+            size++;
+            if(size * 2 > tableEntries.length)
+                resizeTable();
+        }
+        else if(states[id] == SPILLED) {
+            load(id);
+        }
+        else {
+            unlink(id);
+        }
+        pushHead(id);
+        return id;
+    }
+
+    private int newEntry(long key) {
+        int id = freeEntry;
+        if(id != NIL) {
+            freeEntry = lruNext[id];
+        }
+        else {
+            if(usedEntries == keys.length) {
+                int n = keys.length * 2;
+                keys = Arrays.copyOf(keys, n);
+                states = Arrays.copyOf(states, n);
+                starts = Arrays.copyOf(starts, n);
+                lengths = Arrays.copyOf(lengths, n);
+                capacities = Arrays.copyOf(capacities, n);
+                hashIds = Arrays.copyOf(hashIds, n);
+                spillOffsets = Arrays.copyOf(spillOffsets, n);
+                spillLengths = Arrays.copyOf(spillLengths, n);
+                lruPrev = Arrays.copyOf(lruPrev, n);
+                lruNext = Arrays.copyOf(lruNext, n);
+            }
+            id = usedEntries++;
+        }
+        keys[id] = key;
+        states[id] = SPARSE;
+        starts[id] = 0;
+        lengths[id] = 0;
+        capacities[id] = 0;
+        hashIds[id] = (byte) HashFunction.EXTERNAL.getId();
+        spillOffsets[id] = -1;
+        return id;
+    }
+
+    private void resizeTable() {
+        long[] oldKeys = tableKeys;
+        int[] oldEntries = tableEntries;
+        tableKeys = new long[oldKeys.length * 2];
+        tableEntries = new int[oldEntries.length * 2];
+        Arrays.fill(tableEntries, NIL);
+        tableMask = tableEntries.length - 1;
+        for(int i = 0; i < oldEntries.length; i++) {
+            if(oldEntries[i] == NIL)
+                continue;
+            int slot = slot(oldKeys[i]);
+            while(tableEntries[slot] != NIL)
+                slot = (slot + 1) & tableMask;
+            tableKeys[slot] = oldKeys[i];
+            tableEntries[slot] = oldEntries[i];
+        }
+    }
+
+    private void unlink(int id) {
+        int prev = lruPrev[id];
+        int next = lruNext[id];
+        if(prev == NIL)
+            lruHead = next;
+        else
+            lruNext[prev] = next;
+        if(next == NIL)
+            lruTail = prev;
+        else
+            lruPrev[next] = prev;
+    }
+
+    private void pushHead(int id) {
+        lruPrev[id] = NIL;
+        lruNext[id] = lruHead;
+        if(lruHead == NIL)
+            lruTail = id;
+        else
+            lruPrev[lruHead] = id;
+        lruHead = id;
+    }
+
+    // the sketch of id is about to change, its copy in the spill file is not valid anymore
+    private void changed(int id) {
+        if(spillOffsets[id] >= 0) {
+            spillGarbage += spillLengths[id];
+            spillOffsets[id] = -1;
+        }
+    }
+
+    // spill the least recently used entries other than keep until the ones in memory are within the budget
+    private void evict(int keep) throws IOException {
+        while(residentBytes > budget && lruTail != NIL && lruTail != keep) {
+            int id = lruTail;
+            if(spillOffsets[id] < 0) {
+                byte[] bytes = serializeEntry(id);
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                long offset = spillEnd;
+                while(buffer.hasRemaining())
+                    spill.write(buffer, offset + buffer.position());
+                spillOffsets[id] = offset;
+                spillLengths[id] = bytes.length;
+                spillEnd += bytes.length;
+            }
+            release(id);
+            unlink(id);
+            states[id] = SPILLED;
+        }
+        compactSpill();
+    }
+
+    private byte[] readSpilled(int id) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(spillLengths[id]);
+        long offset = spillOffsets[id];
+        while(buffer.hasRemaining()) {
+            if(spill.read(buffer, offset + buffer.position()) < 0)
+                throw new IOException("spill file truncated: " + spillPath);
+        }
+        return buffer.array();
+    }
+
+    // read a spilled sketch back into memory, its copy in the file stays valid until it changes. the records are
+    // the ones written by evict(), so they are decoded straight into the blocks
+    private void load(int id) throws IOException {
+        byte[] bytes = readSpilled(id);
+        states[id] = SPARSE;
+        starts[id] = 0;
+        lengths[id] = 0;
+        capacities[id] = 0;
+        if(bytes[0] == 1) {
+            convertToDense(id);
+            ByteBuffer.wrap(bytes, SERIALIZED_METADATA_FIELDS, m * 4).asIntBuffer().get(denseArena, starts[id], m);
+            return;
+        }
+
+        int count = ByteBuffer.wrap(bytes).getInt(SERIALIZED_METADATA_FIELDS);
+        if(count > 0)
+            growSparse(id, Math.max(INITIAL_SPARSE_CAPACITY, Integer.highestOneBit(count - 1) << 1));
+        int start = starts[id];
+        SparseCursor entries = new SparseCursor.Varints(ByteBuffer.wrap(bytes),
+                SERIALIZED_METADATA_FIELDS + SPARSE_COUNT_BYTES, bytes.length, r);
+        for(int i = 0; i < count && entries.next(); i++)
+            sparseArena[start + i] = (entries.index << sparseShift) | entries.value;
+        lengths[id] = count;
+    }
+
+    // rewrite the spill file with only the copies that are still valid, once most of it is garbage
+    private void compactSpill() throws IOException {
+        if(spillGarbage < MIN_SPILL_GARBAGE || spillGarbage * 2 < spillEnd)
+            return;
+        Path tmp = spillPath.resolveSibling(spillPath.getFileName() + ".tmp");
+        FileChannel compacted = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long end = 0;
+        try {
+            for(int id = 0; id < usedEntries; id++) {
+                if(states[id] == FREE || spillOffsets[id] < 0)
+                    continue;
+                ByteBuffer buffer = ByteBuffer.wrap(readSpilled(id));
+                while(buffer.hasRemaining())
+                    compacted.write(buffer, end + buffer.position());
+                spillOffsets[id] = end;
+                end += spillLengths[id];
+            }
+        } catch (IOException | RuntimeException e) {
+            compacted.close();
+            throw e;
+        }
+        spill.close();
+        compacted.close();
+        Files.move(tmp, spillPath, StandardCopyOption.REPLACE_EXISTING);
+        spill = FileChannel.open(spillPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        spillEnd = end;
+        spillGarbage = 0;
+    }
+
+    // free the blocks of an entry in memory
+    private void release(int id) {
+        if(states[id] == SPARSE) {
+            residentBytes -= capacities[id] * 4L;
+            capacities[id] = 0;
+            lengths[id] = 0;
+        }
+        else if(states[id] == DENSE) {
+            residentBytes -= m * 4L;
+            if(freeDenseCount == freeDenseBlocks.length)
+                freeDenseBlocks = Arrays.copyOf(freeDenseBlocks, Math.max(4, freeDenseCount * 2));
+            freeDenseBlocks[freeDenseCount++] = starts[id] / m;
+        }
+    }
+
+    private void mergeInto(int id, HLLPlusPlus other) {
+        SparseCursor entries = other.sparseEntries();
+        if(entries != null) {
+            while(entries.next()) {
+                if(states[id] == SPARSE)
+                    sparseAdd(id, entries.index, entries.value);
+                else
+                    denseMax(starts[id], entries.index >>> HLLPlusPlus.SPARSE_P_EXTRA_BITS, entries.value);
+            }
+            return;
+        }
+
+        if(states[id] == SPARSE)
+            convertToDense(id);
+        int[] words = other.getRegisters();
+        int start = starts[id];
+        for(int i = 0; i < m; i++)
+            denseArena[start + i] = RegisterWords.max(denseArena[start + i], words[i], r);
+    }
+
+    // keep the larger value for the sparse index in the sorted block of id, converts to dense once the block has
+    // as many entries as the dense registers have words
+    private void sparseAdd(int id, int index, int value) {
+        int start = starts[id];
+        int len = lengths[id];
+        int low = 0;
+        int high = len - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int midIndex = sparseArena[start + mid] >>> sparseShift;
+            if(midIndex < index) {
+                low = mid + 1;
+            }
+            else if(midIndex > index) {
+                high = mid - 1;
+            }
+            else {
+                if((sparseArena[start + mid] & maxRegisterValue) < value)
+                    sparseArena[start + mid] = (index << sparseShift) | value;
+                return;
+            }
+        }
+
+        if(len == capacities[id]) {
+            growSparse(id, len == 0 ? INITIAL_SPARSE_CAPACITY : len * 2);
+            start = starts[id];
+        }
+        System.arraycopy(sparseArena, start + low, sparseArena, start + low + 1, len - low);
+        sparseArena[start + low] = (index << sparseShift) | value;
+        lengths[id] = len + 1;
+        if(len + 1 >= m)
+            convertToDense(id);
+    }
+
+    // move the block of id to the end of the arena with room for newCapacity entries, the arena is compacted when
+    // it runs out
+    private void growSparse(int id, int newCapacity) {
+        int capacity = capacities[id];
+        if(sparseTop > sparseArena.length - newCapacity)
+            compactSparse(newCapacity);
+        System.arraycopy(sparseArena, starts[id], sparseArena, sparseTop, lengths[id]);
+        starts[id] = sparseTop;
+        capacities[id] = newCapacity;
+        sparseTop += newCapacity;
+        residentBytes += (newCapacity - capacity) * 4L;
+    }
+
+    // copy the blocks of the sparse entries in memory to the front of a new arena with room for extra more slots,
+    // doubled until it is at least half empty so that the compactions are amortized
+    private void compactSparse(int extra) {
+        long live = extra;
+        for(int id = 0; id < usedEntries; id++) {
+            if(states[id] == SPARSE)
+                live += capacities[id];
+        }
+        long length = sparseArena.length;
+        while(live > length / 2)
+            length *= 2;
+        if(length > Integer.MAX_VALUE - 8)
+            throw new IllegalStateException("too many sparse entries: " + live);
+
+        int[] arena = new int[(int) length];
+        int top = 0;
+        for(int id = 0; id < usedEntries; id++) {
+            if(states[id] != SPARSE)
+                continue;
+            System.arraycopy(sparseArena, starts[id], arena, top, lengths[id]);
+            starts[id] = top;
+            top += capacities[id];
+        }
+        sparseArena = arena;
+        sparseTop = top;
+    }
+
+    private void convertToDense(int id) {
+        int block;
+        if(freeDenseCount > 0) {
+            block = freeDenseBlocks[--freeDenseCount];
+        }
+        else {
+            if((denseBlocks + 1) * (long) m > denseArena.length) {
+                long length = Math.max(4L * m, denseArena.length * 2L);
+                if(length > Integer.MAX_VALUE - 8)
+                    throw new IllegalStateException("too many dense sketches: " + denseBlocks);
+                denseArena = Arrays.copyOf(denseArena, (int) length);
+            }
+            block = denseBlocks++;
+        }
+        int start = block * m;
+        Arrays.fill(denseArena, start, start + m, 0);
+
+        int sparseStart = starts[id];
+        for(int i = 0; i < lengths[id]; i++) {
+            int entry = sparseArena[sparseStart + i];
+            denseMax(start, (entry >>> sparseShift) >>> HLLPlusPlus.SPARSE_P_EXTRA_BITS, entry & maxRegisterValue);
+        }
+        release(id);
+        states[id] = DENSE;
+        starts[id] = start;
+        residentBytes += m * 4L;
+    }
+
+    private void denseMax(int start, int registerIndex, int cnt) {
+        int bucketIndex = start + registerIndex / regPerDatatype;
+        int registerOffset = (regPerDatatype - registerIndex % regPerDatatype - 1) * r;
+        int bucketValue = denseArena[bucketIndex];
+        int prevValue = (bucketValue >>> registerOffset) & maxRegisterValue;
+        if(prevValue < cnt)
+            denseArena[bucketIndex] = (bucketValue & ~(maxRegisterValue << registerOffset)) | (cnt << registerOffset);
+    }
+
+    // same bytes as HLLPlusPlus.serialize() of the sketch: the compressed sparse format or the dense words
+    private byte[] serializeEntry(int id) {
+        int start = starts[id];
+        if(states[id] == DENSE) {
+            byte[] buff = new byte[SERIALIZED_METADATA_FIELDS + m * 4];
+            buff[0] = (byte) 1;
+            buff[1] = (byte) p;
+            buff[2] = (byte) HashFunction.fromId(hashIds[id]).toHeader(r);
+            ByteBuffer.wrap(buff, SERIALIZED_METADATA_FIELDS, m * 4).asIntBuffer().put(denseArena, start, m);
+            return buff;
+        }
+
+        int len = lengths[id];
+        int bytes = 0;
+        int previous = 0;
+        for(int i = 0; i < len; i++) {
+            int entry = sparseArena[start + i];
+            int index = entry >>> sparseShift;
+            bytes += SparseCursor.varintLength(((index - previous) << r) | (entry & maxRegisterValue));
+            previous = index;
+        }
+        byte[] buff = new byte[SERIALIZED_METADATA_FIELDS + SPARSE_COUNT_BYTES + bytes];
+        buff[0] = (byte) 2;
+        buff[1] = (byte) p;
+        buff[2] = (byte) HashFunction.fromId(hashIds[id]).toHeader(r);
+        ByteBuffer.wrap(buff).putInt(SERIALIZED_METADATA_FIELDS, len);
+        int pos = SERIALIZED_METADATA_FIELDS + SPARSE_COUNT_BYTES;
+        previous = 0;
+        for(int i = 0; i < len; i++) {
+            int entry = sparseArena[start + i];
+            int index = entry >>> sparseShift;
+            pos = SparseCursor.putVarint(buff, pos, ((index - previous) << r) | (entry & maxRegisterValue));
+            previous = index;
+        }
+        return buff;
+    }
+}
@@ -1,5 +1,11 @@
 package io.github.siddheshdhinge.bareboneshll;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 
 public class HLLPlusPlus {
@@ -7,30 +13,65 @@ public class HLLPlusPlus {
     private final int p;
     private final int r;
     private int[] registers;
+    // the dense registers in the long word layout (see LongRegisterWords) instead of registers
+    private long[] longRegisters;
+    private final boolean longWords;
+    // an EXTERNAL sketch takes on the hash function of the first sketch of another one merged into it, see
+    // HashFunction.merged(), clear() goes back to the one it was created with
+    private HashFunction hashFunction;
+    private final HashFunction initialHashFunction;
     private boolean isSparse;
-    private int[] sparseSet;
+    // sparse entries sorted by index and delta varint encoded, see SparseCursor. the first sparseBytesSize bytes are
+    // used and hold sparseSetSize entries, the array grows geometrically
+    private byte[] sparseBytes;
+    private int sparseBytesSize;
+    private int sparseSetSize;
+    // insertion buffer of sparse entries, sorted and merged into the sparse list when full
     private int[] sparseList;
 
     // below variables are derived
+    // number of dense words and registers per word of the layout in use
     private final int m;
     private final int sp;
     private final int maxRegisterValue;
     private final int regPerDatatype;
     private final int totalRegisters;
+    // size of the sparse list in bytes at which the sketch converts to dense, the size of the dense registers
     private final int conversionThreshold;
     private final int sparseSetIndexOffset;
+    // most bytes a single entry takes in the sparse list
+    private final int maxEntryBytes;
+    private final SparseCursor.Entries sparseListCursor;
     private int sparseListIndex;
+    // number of registers holding each value, only maintained for dense sketches in incremental estimate mode
+    private boolean incrementalEstimate;
+    private int[] registerHistogram;
+    // words decoded by mergeFrom() or converted from the other layout, kept so that merging does not allocate
+    private int[] mergeScratch;
+    private long[] longMergeScratch;
+    // entries encoded by addAll() while sparse, sized once for the largest batch and dropped with the sparse list
+    private int[] sparseBatch;
+    // set for the sketches of a HLLPool: the sparse list is kept when the sketch converts to dense, so that after
+    // clear() it does not grow from scratch again
+    boolean keepSparseList;
 
     // below are constants
-    private static final int TEMPORARY_LIST_SIZE = 5;
+    private static final int DEFAULT_SPARSE_BUFFER_SIZE = 32;
+    // the buffer is sorted with Arrays.sort, which does not allocate below 286 elements on any JDK
+    private static final int MAX_SPARSE_BUFFER_SIZE = 256;
+    // the buffer grows once the sparse list has more than 2^shift entries per buffer entry, see mergeTmpSparse()
+    private static final int SPARSE_BUFFER_GROWTH_SHIFT = 3;
+    private static final byte[] EMPTY_BYTES = new byte[0];
     private static final int MIN_P = 4;
     private static final int MAX_P = 18;
     private static final int DEFAULT_P = 12;
     private static final int DEFAULT_R = 6;
-    private static final int SPARSE_P_EXTRA_BITS = 4;
-    private static final double POW_2_32 = Math.pow(2, 32);
+    static final int SPARSE_P_EXTRA_BITS = 4;
     private static final int DT_WIDTH = 32;
+    private static final int LONG_DT_WIDTH = 64;
     private static final int SERIALIZED_METADATA_FIELDS = 3;
+    // the compressed sparse format has the number of entries as an int after the metadata
+    private static final int SPARSE_COUNT_BYTES = 4;
     private static final double[] PRE_POW_2_K = new double[64]; // as largest r = 6, the max value of a register can be at max 63
     static {
         for(int i = 0; i< PRE_POW_2_K.length; i++) {
@@ -38,6 +79,14 @@ public class HLLPlusPlus {
         }
     }
 
+    // same as HLL.checkPR() with the p range of HLLPlusPlus
+    static void checkPR(int p, int r) {
+        if(p < MIN_P || p > MAX_P)
+            throw new IllegalArgumentException("invalid p: " + p);
+        if(r < 4 || r > 6)
+            throw new IllegalArgumentException("Invalid R: " + r);
+    }
+
     public HLLPlusPlus() {
         this(DEFAULT_P, DEFAULT_R);
     }
@@ -47,26 +96,155 @@ public class HLLPlusPlus {
     }
 
     public HLLPlusPlus(int p, int r) {
-        if(p < MIN_P || p > MAX_P)
-            throw new IllegalArgumentException("invalid p: " + p);
-        if(r < 4 || r > 6)
-            throw new IllegalArgumentException("Invalid R: " + r);
+        this(p, r, false);
+    }
+
+    // the typed adds hash with hashFunction
+    public HLLPlusPlus(int p, int r, HashFunction hashFunction) {
+        this(p, r, false, DEFAULT_SPARSE_BUFFER_SIZE, false, hashFunction);
+    }
+
+    // with incrementalEstimate a dense sketch keeps a histogram of the register values up to date in add() and merge(),
+    // so estimate() does not have to scan the registers. the sparse estimate does not scan anything either way.
+    public HLLPlusPlus(int p, int r, boolean incrementalEstimate) {
+        this(p, r, incrementalEstimate, DEFAULT_SPARSE_BUFFER_SIZE);
+    }
+
+    // sparseBufferSize (1 to 256) is the number of sparse adds collected before they are sorted and merged into the
+    // sparse set. a larger buffer means fewer merges, each costing a pass over the sparse set, for 4 bytes per entry.
+    // it is the starting size, the buffer doubles up to 256 as the sparse set grows past 8 entries per buffer entry.
+    public HLLPlusPlus(int p, int r, boolean incrementalEstimate, int sparseBufferSize) {
+        this(p, r, incrementalEstimate, sparseBufferSize, false);
+    }
+
+    // with longWords the dense registers are packed into 64 bit words, like HLL(p, r, incrementalEstimate, longWords).
+    // the sketch converts to dense once the sparse list is as large as those words.
+    public HLLPlusPlus(int p, int r, boolean incrementalEstimate, int sparseBufferSize, boolean longWords) {
+        this(p, r, incrementalEstimate, sparseBufferSize, longWords, HashFunction.EXTERNAL);
+    }
+
+    public HLLPlusPlus(int p, int r, boolean incrementalEstimate, int sparseBufferSize, boolean longWords, HashFunction hashFunction) {
+        checkPR(p, r);
+        if(sparseBufferSize < 1 || sparseBufferSize > MAX_SPARSE_BUFFER_SIZE)
+            throw new IllegalArgumentException("invalid sparse buffer size: " + sparseBufferSize);
+        if(hashFunction == null)
+            throw new IllegalArgumentException("hashFunction is null");
 
         this.p = p;
         this.r = r;
 
+        this.longWords = longWords;
+        this.hashFunction = hashFunction;
+        this.initialHashFunction = hashFunction;
+
         this.sp = p + SPARSE_P_EXTRA_BITS;
-        this.regPerDatatype = DT_WIDTH / r;
+        this.regPerDatatype = (longWords ? LONG_DT_WIDTH : DT_WIDTH) / r;
         this.totalRegisters = (1 << p);
         this.m = totalRegisters / regPerDatatype + (totalRegisters % regPerDatatype == 0 ? 0 : 1);
         this.maxRegisterValue = ((1 << r) - 1);
 
-        this.sparseList = new int[TEMPORARY_LIST_SIZE];
-        this.sparseSet = new int[0];
+        this.sparseList = new int[sparseBufferSize];
+        this.sparseBytes = EMPTY_BYTES;
+        this.sparseBytesSize = 0;
+        this.sparseSetSize = 0;
         this.sparseListIndex = 0;
         this.isSparse = true;
-        this.conversionThreshold = m;
+        this.conversionThreshold = m * (longWords ? 8 : 4);
         this.sparseSetIndexOffset = DT_WIDTH - sp;
+        this.maxEntryBytes = SparseCursor.varintLength((((1 << sp) - 1) << r) | maxRegisterValue);
+        this.sparseListCursor = new SparseCursor.Entries(sparseSetIndexOffset, maxRegisterValue);
+        this.incrementalEstimate = incrementalEstimate;
+    }
+
+    // switch to incremental estimate mode, e.g. after deserialize(). for a dense sketch the histogram is rebuilt
+    // with a full scan of the registers.
+    public void enableIncrementalEstimate() {
+        this.incrementalEstimate = true;
+        if(isSparse)
+            return;
+
+        int[] hist = registerHistogram != null ? registerHistogram : new int[maxRegisterValue + 1];
+        Arrays.fill(hist, 0);
+        if(longWords) {
+            LongRegisterWords.histogram(longRegisters, totalRegisters, r, hist);
+            this.registerHistogram = hist;
+            return;
+        }
+        for(int i = 0; i < totalRegisters; i++) {
+            int bucketIndex = i / regPerDatatype;
+            int registerOffset = (regPerDatatype - i % regPerDatatype - 1) * r;
+            hist[(this.registers[bucketIndex] >>> registerOffset) & maxRegisterValue]++;
+        }
+        this.registerHistogram = hist;
+    }
+
+    // make the sketch empty and sparse again, with the hash function it was created with, to reuse it instead of
+    // allocating a new one, see HLLPool. a dense sketch keeps its zeroed registers, which it takes up again when it
+    // converts to dense the next time.
+    public void clear() {
+        hashFunction = initialHashFunction;
+        if(longRegisters != null)
+            Arrays.fill(longRegisters, 0);
+        if(registers != null)
+            Arrays.fill(registers, 0);
+        this.isSparse = true;
+        this.sparseBytesSize = 0;
+        this.sparseSetSize = 0;
+        this.sparseListIndex = 0;
+    }
+
+    public boolean isIncrementalEstimate() {
+        return incrementalEstimate;
+    }
+
+    public boolean isLongWords() {
+        return longWords;
+    }
+
+    public HashFunction getHashFunction() {
+        return hashFunction;
+    }
+
+    // below accessors are for the other sketch types in this package
+    int getP() {
+        return p;
+    }
+
+    int getR() {
+        return r;
+    }
+
+    HashFunction getInitialHashFunction() {
+        return initialHashFunction;
+    }
+
+    // the dense register words in the int layout, a copy if the sketch uses the long word layout.
+    // only valid for a dense sketch, a sparse one has none or the zeroed words it kept from clear()
+    int[] getRegisters() {
+        if(longRegisters != null) {
+            int[] words = new int[LongRegisterWords.intWords(totalRegisters, r)];
+            LongRegisterWords.toIntWords(longRegisters, words, r);
+            return words;
+        }
+        return registers;
+    }
+
+    // the dense register words in the long word layout, a copy if the sketch uses the int layout
+    private long[] getLongRegisters() {
+        if(registers != null) {
+            long[] words = new long[LongRegisterWords.words(totalRegisters, r)];
+            LongRegisterWords.toLongWords(registers, words, r);
+            return words;
+        }
+        return longRegisters;
+    }
+
+    // the entries of a sparse sketch, null once it is dense
+    SparseCursor sparseEntries() {
+        if(!isSparse)
+            return null;
+        mergeTmpSparse();
+        return sparseCursor();
     }
 
     // read r bits of the registers from a specified bit location and return it as a byte.
@@ -75,95 +253,143 @@ public class HLLPlusPlus {
         if(isSparse) {
             mergeTmpSparse();
             int result = 0;
-            for(int i = 0; i<sparseSet.length; i++) {
-                if((sparseSet[i] >>> (sparseSetIndexOffset + SPARSE_P_EXTRA_BITS)) == index)
-                    result = Math.max(result, sparseSet[i] & maxRegisterValue);
+            SparseCursor cursor = new SparseCursor.Varints(sparseBytes, sparseBytesSize, r);
+            while(cursor.next()) {
+                if((cursor.index >>> SPARSE_P_EXTRA_BITS) == index)
+                    result = Math.max(result, cursor.value);
             }
             return (byte) result;
         }
+        if(longWords)
+            return (byte) LongRegisterWords.get(longRegisters, index, r);
         int bucketIndex = index / regPerDatatype;
         int registerOffset = (regPerDatatype - index % regPerDatatype - 1) * r;
         return (byte) ((this.registers[bucketIndex] >>> registerOffset) & maxRegisterValue);
     }
 
-    private void indexSort(int[] arr) {
+    // sort the insertion buffer, keep the largest value per index and merge it into the sparse list.
+    // nothing is allocated unless the sparse list or the buffer has to grow.
+    private void mergeTmpSparse() {
         int n = this.sparseListIndex;
-        for(int i = 0; i < n; i++) {
-            for(int j = 0; j < (n - i - 1); j++) {
-                int cur = arr[j] >>> sparseSetIndexOffset;
-                int next = arr[j + 1] >>> sparseSetIndexOffset;
-                if(cur > next) {
-                    int tmp = arr[j + 1];
-                    arr[j + 1] = arr[j];
-                    arr[j] = tmp;
-                }
-            }
-        }
-    }
-
-    // dedup the sparseList based on index
-    // if same index -> set the index to max value
-    private int[] dedupIndex(int[] tmpSparseList) {
-        if(sparseListIndex == 0) return new int[0];
+        if(n <= 0)
+            return;
 
-        indexSort(tmpSparseList);
-        int[] newSparseList = new int[tmpSparseList.length];
+        final int[] list = this.sparseList;
+        // flip the sign bit, so that the signed sort orders the entries by their unsigned index and then value
+        for(int i = 0; i < n; i++)
+            list[i] ^= Integer.MIN_VALUE;
+        Arrays.sort(list, 0, n);
+        // entries with the same index are now adjacent and ordered by value, so the last one is the max
         int k = 0;
-        newSparseList[k++] = tmpSparseList[0];
-
-        for(int i=1; i<this.sparseListIndex; i++) {
-            int curIndex = tmpSparseList[i] >>> sparseSetIndexOffset;
-            int lastIndex = newSparseList[k - 1] >>> sparseSetIndexOffset;
-            if(curIndex == lastIndex) {
-                newSparseList[k - 1] = (curIndex << sparseSetIndexOffset) | Math.max(newSparseList[k - 1] & maxRegisterValue, tmpSparseList[i] & maxRegisterValue);
-            }
-            else {
-                newSparseList[k] = tmpSparseList[i];
-                k++;
-            }
+        for(int i = 0; i < n; i++) {
+            int entry = list[i] ^ Integer.MIN_VALUE;
+            if(k > 0 && (list[k - 1] >>> sparseSetIndexOffset) == (entry >>> sparseSetIndexOffset))
+                list[k - 1] = entry;
+            else
+                list[k++] = entry;
         }
 
-        return Arrays.copyOf(newSparseList, k);
+        mergeSparse(sparseListCursor.reset(list, k), k);
+        this.sparseListIndex = 0;
+
+        // a flush re-encodes the sparse list from the first new index, i.e. half of it on average, so the buffer grows
+        // with the list to keep the bytes re-encoded per add about the same. it doubles, so it grows at most 8 times.
+        if(sparseList.length < MAX_SPARSE_BUFFER_SIZE && (sparseSetSize >>> SPARSE_BUFFER_GROWTH_SHIFT) > sparseList.length)
+            sparseList = new int[Math.min(MAX_SPARSE_BUFFER_SIZE, sparseList.length * 2)];
     }
 
-    private void mergeTmpSparse() {
-        if(this.sparseListIndex <= 0)
+    // merge the n entries of a cursor, sorted by index and without duplicate index, into the sparse list.
+    // the entries in front of the first new index stay as they are. the merge of the rest runs in place: it is moved
+    // to the end of the array and merged from there to the front. each new entry makes the list at most maxEntryBytes
+    // longer, as the delta it splits only gets shorter, so with that much room per entry in front of the moved part
+    // the writes never overtake the reads, given that an entry is only written once all entries of the list up to its
+    // index have been read.
+    private void mergeSparse(SparseCursor other, int n) {
+        if(n == 0 || !other.next())
             return;
 
-        int[] newSparseList = dedupIndex(this.sparseList);
+        int used = this.sparseBytesSize;
+        int bound = used + n * maxEntryBytes;
+        if(bound > sparseBytes.length)
+            sparseBytes = Arrays.copyOf(sparseBytes, Math.max(bound, Math.max(16, sparseBytes.length + (sparseBytes.length >> 1))));
+        final byte[] bytes = this.sparseBytes;
+
+        // skip the unchanged entries
+        int write = 0;
+        int previous = 0;
+        int count = 0;
+        while(write < used) {
+            int v = 0;
+            int pos = write;
+            int b;
+            for(int shift = 0; ; shift += 7) {
+                b = bytes[pos++];
+                v |= (b & 0x7f) << shift;
+                if(b >= 0)
+                    break;
+            }
+            int index = previous + (v >>> r);
+            if(index >= other.index)
+                break;
+            write = pos;
+            previous = index;
+            count++;
+        }
 
-        int[] newSparseSet = new int[sparseSet.length + newSparseList.length];
-        int l = 0;
-        int r = 0;
-        int k = 0;
-        while(l < sparseSet.length && r < newSparseList.length) {
-            int setIndex = sparseSet[l] >>> sparseSetIndexOffset;
-            int listIndex = newSparseList[r] >>> sparseSetIndexOffset;
-            if(setIndex < listIndex) {
-                newSparseSet[k] = sparseSet[l];
-                l++;
+        final int end = bytes.length;
+        int pos = end - (used - write);
+        System.arraycopy(bytes, write, bytes, pos, used - write);
+
+        int thisIndex = previous;
+        int thisValue = 0;
+        boolean hasThis = false;
+        boolean hasOther = true;
+        boolean advanceThis = true;
+        while(true) {
+            if(advanceThis) {
+                hasThis = pos < end;
+                if(hasThis) {
+                    int v = 0;
+                    int b;
+                    for(int shift = 0; ; shift += 7) {
+                        b = bytes[pos++];
+                        v |= (b & 0x7f) << shift;
+                        if(b >= 0)
+                            break;
+                    }
+                    thisIndex += v >>> r;
+                    thisValue = v & maxRegisterValue;
+                }
             }
-            else if(setIndex > listIndex) {
-                newSparseSet[k] = newSparseList[r];
-                r++;
+            if(!hasThis && !hasOther)
+                break;
+
+            int index;
+            int value;
+            if(!hasOther || (hasThis && thisIndex < other.index)) {
+                index = thisIndex;
+                value = thisValue;
+                advanceThis = true;
+            }
+            else if(!hasThis || other.index < thisIndex) {
+                index = other.index;
+                value = other.value;
+                advanceThis = false;
+                hasOther = other.next();
             }
             else {
-                newSparseSet[k] = (setIndex << sparseSetIndexOffset) | Math.max(sparseSet[l] & maxRegisterValue, newSparseList[r] & maxRegisterValue);
-                l++; r++;
+                index = thisIndex;
+                value = Math.max(thisValue, other.value);
+                advanceThis = true;
+                hasOther = other.next();
             }
-            k++;
-        }
-        while(l < sparseSet.length) {
-            newSparseSet[k] = sparseSet[l];
-            l++; k++;
-        }
-        while(r < newSparseList.length) {
-            newSparseSet[k] = newSparseList[r];
-            r++; k++;
+            write = SparseCursor.putVarint(bytes, write, ((index - previous) << r) | value);
+            previous = index;
+            count++;
         }
 
-        this.sparseSet = Arrays.copyOf(newSparseSet, k);
-        this.sparseListIndex = 0;
+        this.sparseBytesSize = write;
+        this.sparseSetSize = count;
     }
 
     public void add(long value) {
@@ -176,9 +402,9 @@ public class HLLPlusPlus {
             this.sparseList[sparseListIndex] = (registerIndex << sparseSetIndexOffset) | cnt;
             sparseListIndex++;
 
-            if(sparseListIndex >= TEMPORARY_LIST_SIZE) {
+            if(sparseListIndex >= sparseList.length) {
                 mergeTmpSparse();
-                if(this.sparseSet.length >= conversionThreshold)
+                if(this.sparseBytesSize >= conversionThreshold)
                     convertToNormal();
             }
         }
@@ -188,148 +414,426 @@ public class HLLPlusPlus {
             int cnt = Long.numberOfTrailingZeros(value) + 1;
             cnt = Math.min(cnt, maxRegisterValue);
 
+            if(longWords) {
+                int prevValue = LongRegisterWords.max(longRegisters, registerIndex, cnt, r, regPerDatatype);
+                if(prevValue < cnt && registerHistogram != null) {
+                    registerHistogram[prevValue]--;
+                    registerHistogram[cnt]++;
+                }
+                return;
+            }
+
             int bucketIndex = registerIndex / regPerDatatype;
             int registerOffset = (regPerDatatype - registerIndex % regPerDatatype - 1) * r;
             int bucketValue = this.registers[bucketIndex];
             int prevValue = (bucketValue >>> registerOffset) & maxRegisterValue;
-            if(prevValue < cnt)
+            if(prevValue < cnt) {
                 this.registers[bucketIndex] = (bucketValue & ~(maxRegisterValue << registerOffset)) | (cnt << registerOffset);
+                if(registerHistogram != null) {
+                    registerHistogram[prevValue]--;
+                    registerHistogram[cnt]++;
+                }
+            }
         }
     }
 
-    private void convertToNormal() {
-        this.registers = new int[m];
-
-        for(int i=0; i<this.sparseSet.length; i++) {
-            int idx = sparseSet[i] >>> (sparseSetIndexOffset + SPARSE_P_EXTRA_BITS);
-            int val = sparseSet[i] & maxRegisterValue;
-
-            int registerOffset = (regPerDatatype - idx % regPerDatatype - 1) * r;
-            int bucketIndex = idx / regPerDatatype;
-
-            this.registers[bucketIndex] |= val << registerOffset;
-        }
+    // typed adds, the value is hashed with the hash function of the sketch (see HashFunction) and added with add().
+    // they throw IllegalStateException for a sketch without one.
+    public void addInt(int value) {
+        add(hashFunction.hashInt(value));
+    }
 
-        this.sparseList = new int[0];
-        this.isSparse = false;
+    public void addLong(long value) {
+        add(hashFunction.hashLong(value));
     }
 
-    private void sparseMerge(HLLPlusPlus other) {
-        int[] a = this.sparseSet;
-        int[] b = other.sparseSet;
+    public void addBytes(byte[] bytes) {
+        if(bytes == null)
+            throw new IllegalArgumentException("bytes is null");
+        add(hashFunction.hashBytes(bytes, 0, bytes.length));
+    }
 
-        // int unq = determineTotalUniques(this.sparseSet, other.sparseSet);
-        int[] newSparseSet = new int[a.length + b.length];
+    public void addBytes(byte[] bytes, int off, int len) {
+        if(bytes == null)
+            throw new IllegalArgumentException("bytes is null");
+        if(off < 0 || len < 0 || off > bytes.length - len)
+            throw new IllegalArgumentException("invalid range off: " + off + " len: " + len + " length: " + bytes.length);
+        add(hashFunction.hashBytes(bytes, off, len));
+    }
 
-//        System.err.println(a.length + " + " + b.length);
+    // the UTF-16 chars, no String or byte[] is created for them, so this differs from addBytes() of their encoding
+    public void addChars(CharSequence chars) {
+        if(chars == null)
+            throw new IllegalArgumentException("chars is null");
+        add(hashFunction.hashChars(chars));
+    }
 
-        int l = 0;
-        int r = 0;
-        int k = 0;
+    // the bytes between the position and the limit of a heap or direct buffer, its position is not changed
+    public void addByteBuffer(ByteBuffer buffer) {
+        if(buffer == null)
+            throw new IllegalArgumentException("buffer is null");
+        add(hashFunction.hashBytes(buffer));
+    }
 
-        while((l < a.length) || (r < b.length)) {
-            if(l >= a.length) {
-                newSparseSet[k++] = b[r++];
+    // encode the hashes as sparse entries, sort and dedup them, and merge them into the sparse list in one pass.
+    // batches are capped at m entries, so it returns the position from where the remaining
+    // hashes have to go to the registers, if the sketch got converted on the way.
+    private int addAllSparse(long[] hashes, int from, int to) {
+        mergeTmpSparse();
+
+        final int indexShift = 64 - sp;
+        final long stopBit = 1L << indexShift;
+        if(sparseBatch == null)
+            sparseBatch = new int[conversionThreshold / 4];
+        int[] batch = sparseBatch;
+        while(from < to) {
+            int n = Math.min(to - from, batch.length);
+            for(int i = 0; i < n; i++) {
+                long value = hashes[from + i];
+                int registerIndex = (int) (value >>> indexShift);
+                int cnt = Math.min(Long.numberOfTrailingZeros(value | stopBit) + 1, maxRegisterValue);
+                // flip the sign bit, so that the signed sort orders the entries by their unsigned index
+                batch[i] = ((registerIndex << sparseSetIndexOffset) | cnt) ^ Integer.MIN_VALUE;
             }
-            else if(r >= b.length) {
-                newSparseSet[k++] = a[l++];
+            from += n;
+
+            Arrays.sort(batch, 0, n);
+            // entries with the same index are now adjacent and ordered by value, so the last one is the max
+            int k = 0;
+            for(int i = 0; i < n; i++) {
+                int entry = batch[i] ^ Integer.MIN_VALUE;
+                if(k > 0 && (batch[k - 1] >>> sparseSetIndexOffset) == (entry >>> sparseSetIndexOffset))
+                    batch[k - 1] = entry;
+                else
+                    batch[k++] = entry;
             }
-            else {
-                int thisVal = a[l];
-                int otherVal = b[r];
-                int thisIndex = thisVal >>> sparseSetIndexOffset;
-                int otherIndex = otherVal >>> sparseSetIndexOffset;
-
-                if(thisIndex == otherIndex)
-                {
-                    newSparseSet[k++] = (thisIndex << sparseSetIndexOffset) | Math.max(thisVal & maxRegisterValue, otherVal & maxRegisterValue);
-                    l++; r++;
-                }
-                else if(thisIndex < otherIndex) {
-                    newSparseSet[k++] = thisVal;
-                    l++;
-                }
-                else {
-                    newSparseSet[k++] = otherVal;
-                    r++;
-                }
+
+            mergeSparse(sparseListCursor.reset(batch, k), k);
+            if(this.sparseBytesSize >= conversionThreshold) {
+                convertToNormal();
+                break;
             }
         }
-//        System.err.println("unq -> " + k);
-
-        this.sparseSet = k < newSparseSet.length ? Arrays.copyOf(newSparseSet, k) : newSparseSet;
+        return from;
     }
 
-    private void merge4(HLLPlusPlus other) {
+    private void addAll4(long[] hashes, int from, int to) {
         final int MASK = 0xf;
         final int REGISTERS_PER_BUCKET = 8;
         final int REGISTER_SIZE = 4;
-        for(int i = 0; i < m; ++i) {
-            int word = 0;
-            int thisBucket = this.registers[i];
-            int otherBucket = other.registers[i];
-            for(int j = 0; j < REGISTERS_PER_BUCKET; ++j) {
-                int mask = MASK << (REGISTER_SIZE * j);
-                int thisRawVal = thisBucket & mask;
-                int otherRawVal = otherBucket & mask;
-                word |= (Integer.compareUnsigned(thisRawVal, otherRawVal) < 0) ? otherRawVal : thisRawVal;
+        final int indexShift = 64 - p;
+        final long stopBit = 1L << indexShift;
+        final int[] registers = this.registers;
+        final int[] hist = this.registerHistogram;
+        for(int i = from; i < to; i++) {
+            long value = hashes[i];
+            int registerIndex = (int) (value >>> indexShift);
+            int cnt = Math.min(Long.numberOfTrailingZeros(value | stopBit) + 1, MASK);
+            int bucketIndex = registerIndex / REGISTERS_PER_BUCKET;
+            int registerOffset = (REGISTERS_PER_BUCKET - 1 - registerIndex % REGISTERS_PER_BUCKET) * REGISTER_SIZE;
+            int bucketValue = registers[bucketIndex];
+            int prevValue = (bucketValue >>> registerOffset) & MASK;
+            if(prevValue < cnt) {
+                registers[bucketIndex] = (bucketValue & ~(MASK << registerOffset)) | (cnt << registerOffset);
+                if(hist != null) {
+                    hist[prevValue]--;
+                    hist[cnt]++;
+                }
             }
-            this.registers[i] = word;
         }
     }
 
-    private void merge5(HLLPlusPlus other) {
+    private void addAll5(long[] hashes, int from, int to) {
         final int MASK = 0x1f;
         final int REGISTERS_PER_BUCKET = 6;
         final int REGISTER_SIZE = 5;
-        for(int i = 0; i < m; ++i) {
-            int word = 0;
-            int thisBucket = this.registers[i];
-            int otherBucket = other.registers[i];
-            for(int j = 0; j < REGISTERS_PER_BUCKET; ++j) {
-                int mask = MASK << (REGISTER_SIZE * j);
-                int thisRawVal = thisBucket & mask;
-                int otherRawVal = otherBucket & mask;
-                word |= (Integer.compareUnsigned(thisRawVal, otherRawVal) < 0) ? otherRawVal : thisRawVal;
+        final int indexShift = 64 - p;
+        final long stopBit = 1L << indexShift;
+        final int[] registers = this.registers;
+        final int[] hist = this.registerHistogram;
+        for(int i = from; i < to; i++) {
+            long value = hashes[i];
+            int registerIndex = (int) (value >>> indexShift);
+            int cnt = Math.min(Long.numberOfTrailingZeros(value | stopBit) + 1, MASK);
+            int bucketIndex = registerIndex / REGISTERS_PER_BUCKET;
+            int registerOffset = (REGISTERS_PER_BUCKET - 1 - registerIndex % REGISTERS_PER_BUCKET) * REGISTER_SIZE;
+            int bucketValue = registers[bucketIndex];
+            int prevValue = (bucketValue >>> registerOffset) & MASK;
+            if(prevValue < cnt) {
+                registers[bucketIndex] = (bucketValue & ~(MASK << registerOffset)) | (cnt << registerOffset);
+                if(hist != null) {
+                    hist[prevValue]--;
+                    hist[cnt]++;
+                }
             }
-            this.registers[i] = word;
         }
     }
 
-    private void merge6(HLLPlusPlus other) {
+    private void addAll6(long[] hashes, int from, int to) {
         final int MASK = 0x3f;
         final int REGISTERS_PER_BUCKET = 5;
         final int REGISTER_SIZE = 6;
+        final int indexShift = 64 - p;
+        final long stopBit = 1L << indexShift;
+        final int[] registers = this.registers;
+        final int[] hist = this.registerHistogram;
+        for(int i = from; i < to; i++) {
+            long value = hashes[i];
+            int registerIndex = (int) (value >>> indexShift);
+            int cnt = Math.min(Long.numberOfTrailingZeros(value | stopBit) + 1, MASK);
+            int bucketIndex = registerIndex / REGISTERS_PER_BUCKET;
+            int registerOffset = (REGISTERS_PER_BUCKET - 1 - registerIndex % REGISTERS_PER_BUCKET) * REGISTER_SIZE;
+            int bucketValue = registers[bucketIndex];
+            int prevValue = (bucketValue >>> registerOffset) & MASK;
+            if(prevValue < cnt) {
+                registers[bucketIndex] = (bucketValue & ~(MASK << registerOffset)) | (cnt << registerOffset);
+                if(hist != null) {
+                    hist[prevValue]--;
+                    hist[cnt]++;
+                }
+            }
+        }
+    }
+
+    // add len already hashed values starting at hashes[off], same result as calling add() for each of them.
+    public void addAll(long[] hashes, int off, int len) {
+        if(hashes == null)
+            throw new IllegalArgumentException("hashes is null");
+        if(off < 0 || len < 0 || off > hashes.length - len)
+            throw new IllegalArgumentException("invalid range off: " + off + " len: " + len + " length: " + hashes.length);
+
+        int from = off;
+        int to = off + len;
+        if(isSparse)
+            from = addAllSparse(hashes, from, to);
+        if(from >= to)
+            return;
+
+        if(longWords) {
+            LongRegisterWords.addAll(longRegisters, hashes, from, to, p, r, registerHistogram);
+            return;
+        }
+        switch(r) {
+            case 4: addAll4(hashes, from, to);
+                break;
+            case 5: addAll5(hashes, from, to);
+                break;
+            case 6: addAll6(hashes, from, to);
+                break;
+        }
+    }
+
+    public void addAll(long[] hashes) {
+        addAll(hashes, 0, hashes == null ? 0 : hashes.length);
+    }
+
+    // the registers and histogram kept by clear() are zeroed and reused
+    private void convertToNormal() {
+        if(longWords && longRegisters == null)
+            this.longRegisters = new long[m];
+        else if(!longWords && registers == null)
+            this.registers = new int[m];
+        int[] hist = null;
+        if(incrementalEstimate) {
+            hist = registerHistogram != null ? registerHistogram : new int[maxRegisterValue + 1];
+            Arrays.fill(hist, 0);
+            hist[0] = totalRegisters;
+        }
+
+        SparseCursor cursor = new SparseCursor.Varints(sparseBytes, sparseBytesSize, r);
+        while(cursor.next()) {
+            int idx = cursor.index >>> SPARSE_P_EXTRA_BITS;
+            int val = cursor.value;
+
+            if(longWords) {
+                int prevValue = LongRegisterWords.max(longRegisters, idx, val, r, regPerDatatype);
+                if(prevValue < val && hist != null) {
+                    hist[prevValue]--;
+                    hist[val]++;
+                }
+                continue;
+            }
+
+            int registerOffset = (regPerDatatype - idx % regPerDatatype - 1) * r;
+            int bucketIndex = idx / regPerDatatype;
+
+            // several sparse entries fold into the same register, keep the max of them
+            int registerValue = this.registers[bucketIndex];
+            int prevValue = (registerValue >>> registerOffset) & maxRegisterValue;
+            if(prevValue < val) {
+                this.registers[bucketIndex] = (registerValue & ~(maxRegisterValue << registerOffset)) | (val << registerOffset);
+                if(hist != null) {
+                    hist[prevValue]--;
+                    hist[val]++;
+                }
+            }
+        }
+
+        this.registerHistogram = hist;
+        // the insertion buffer is small and kept for clear()
+        if(!keepSparseList) {
+            this.sparseBytes = EMPTY_BYTES;
+            this.sparseBatch = null;
+        }
+        this.sparseBytesSize = 0;
+        this.sparseSetSize = 0;
+        this.isSparse = false;
+    }
+
+    // cursor over the sparse list, the insertion buffer has to be merged into it first
+    private SparseCursor sparseCursor() {
+        return new SparseCursor.Varints(sparseBytes, sparseBytesSize, r);
+    }
+
+    // merge the entries of a sparse list into the registers
+    private void mergeSparseEntries(SparseCursor cursor) {
+        while(cursor.next())
+            mergeSparseEntry(cursor.index, cursor.value);
+    }
+
+    // merge a single sparse entry into the registers
+    private void mergeSparseEntry(int sparseIndex, int val) {
+        int idx = sparseIndex >>> SPARSE_P_EXTRA_BITS;
+        if(longWords) {
+            int prevValue = LongRegisterWords.max(longRegisters, idx, val, r, regPerDatatype);
+            if(prevValue < val && registerHistogram != null) {
+                registerHistogram[prevValue]--;
+                registerHistogram[val]++;
+            }
+            return;
+        }
+        int bucketIndex = idx / regPerDatatype;
+        int registerOffset = (regPerDatatype - idx % regPerDatatype - 1) * r;
+
+        int registerValue = this.registers[bucketIndex];
+        int mask = maxRegisterValue << registerOffset;
+        if(Integer.compareUnsigned(registerValue & mask, val << registerOffset) < 0) {
+            this.registers[bucketIndex] = (registerValue & ~mask) | (val << registerOffset);
+            if(registerHistogram != null) {
+                registerHistogram[(registerValue & mask) >>> registerOffset]--;
+                registerHistogram[val]++;
+            }
+        }
+    }
+
+    private void merge4(int[] otherRegisters) {
+        final int[] registers = this.registers;
+        for(int i = 0; i < m; ++i)
+            registers[i] = RegisterWords.max4(registers[i], otherRegisters[i]);
+    }
+
+    private void merge5(int[] otherRegisters) {
+        final int[] registers = this.registers;
+        for(int i = 0; i < m; ++i)
+            registers[i] = RegisterWords.max5(registers[i], otherRegisters[i]);
+    }
+
+    private void merge6(int[] otherRegisters) {
+        final int[] registers = this.registers;
+        for(int i = 0; i < m; ++i)
+            registers[i] = RegisterWords.max6(registers[i], otherRegisters[i]);
+    }
+
+    // register wise max that also moves the registers that grow to their new value in the histogram.
+    // only words that differ are looked at register by register.
+    private void mergeTracked(int[] otherRegisters) {
+        final int[] hist = this.registerHistogram;
         for(int i = 0; i < m; ++i) {
-            int word = 0;
             int thisBucket = this.registers[i];
-            int otherBucket = other.registers[i];
-            for(int j = 0; j < REGISTERS_PER_BUCKET; ++j) {
-                int mask = MASK << (REGISTER_SIZE * j);
-                int thisRawVal = thisBucket & mask;
-                int otherRawVal = otherBucket & mask;
-                word |= (Integer.compareUnsigned(thisRawVal, otherRawVal) < 0) ? otherRawVal : thisRawVal;
+            int otherBucket = otherRegisters[i];
+            if(thisBucket == otherBucket)
+                continue;
+            int word = 0;
+            for(int j = 0; j < regPerDatatype; ++j) {
+                int thisVal = (thisBucket >>> (r * j)) & maxRegisterValue;
+                int otherVal = (otherBucket >>> (r * j)) & maxRegisterValue;
+                if(thisVal < otherVal) {
+                    hist[thisVal]--;
+                    hist[otherVal]++;
+                    thisVal = otherVal;
+                }
+                word |= thisVal << (r * j);
             }
             this.registers[i] = word;
         }
     }
 
-    private void normalMerge(HLLPlusPlus other) {
+    private void normalMerge(int[] otherRegisters) {
+        if(registerHistogram != null) {
+            mergeTracked(otherRegisters);
+            return;
+        }
+        if(RegisterWords.VECTORIZED) {
+            VectorKernels.merge(this.registers, otherRegisters, 0, m, r);
+            return;
+        }
         switch(r) {
-            case 4: merge4(other);
+            case 4: merge4(otherRegisters);
                 break;
-            case 5: merge5(other);
+            case 5: merge5(otherRegisters);
                 break;
-            case 6: merge6(other);
+            case 6: merge6(otherRegisters);
                 break;
         }
     }
 
+    // merge the dense registers of other, whichever its layout
+    private void denseMerge(HLLPlusPlus other) {
+        if(other.longWords)
+            mergeLongWords(other.longRegisters);
+        else
+            mergeIntWords(other.registers);
+    }
+
+    // merge register words of the int layout, converted first if this sketch has the long word layout
+    private void mergeIntWords(int[] otherRegisters) {
+        if(!longWords) {
+            normalMerge(otherRegisters);
+            return;
+        }
+        long[] scratch = longMergeScratch();
+        LongRegisterWords.toLongWords(otherRegisters, scratch, r);
+        mergeLongWords(scratch);
+    }
+
+    // merge register words of the long word layout, converted first if this sketch has the int layout
+    private void mergeLongWords(long[] otherRegisters) {
+        if(!longWords) {
+            int[] scratch = mergeScratch();
+            LongRegisterWords.toIntWords(otherRegisters, scratch, r);
+            normalMerge(scratch);
+            return;
+        }
+        if(registerHistogram != null)
+            LongRegisterWords.mergeTracked(longRegisters, otherRegisters, r, registerHistogram);
+        else
+            LongRegisterWords.merge(longRegisters, otherRegisters, 0, m, r);
+    }
+
+    // scratch words of either layout, see HLL.mergeScratch()
+    private int[] mergeScratch() {
+        if(mergeScratch == null)
+            mergeScratch = new int[LongRegisterWords.intWords(totalRegisters, r)];
+        return mergeScratch;
+    }
+
+    private long[] longMergeScratch() {
+        if(longMergeScratch == null)
+            longMergeScratch = new long[LongRegisterWords.words(totalRegisters, r)];
+        return longMergeScratch;
+    }
+
+    // a sketch with a larger p or r is folded to the p and r of this one first, see fold(). returns false if its p
+    // or r is smaller, see union() for that.
     public boolean merge(HLLPlusPlus other) {
         if (other == null)
             return false;
-        if (this.p != other.p || this.r != other.r)
+        if (other.p < this.p || other.r < this.r || !hashFunction.isCompatible(other.hashFunction))
             return false;
+        if (other == this)
+            return true;
+        if (other.p != this.p || other.r != this.r)
+            other = other.foldTo(p, r);
 
         if(this.sparseListIndex > 0)
             this.mergeTmpSparse();
@@ -339,35 +843,270 @@ public class HLLPlusPlus {
         int state = (isSparse ? 0 : 1) | (other.isSparse ? 0 : 2);
         switch (state) {
             case 0: // both sparse
-                sparseMerge(other);
-                if(this.sparseSet.length >= conversionThreshold)
+                mergeSparse(other.sparseCursor(), other.sparseSetSize);
+                if(this.sparseBytesSize >= conversionThreshold)
                     this.convertToNormal();
                 break;
             case 1: // this normal, other sparse
-                for(int i=0; i<other.sparseSet.length; i++) {
-                    int idx = other.sparseSet[i] >>> (sparseSetIndexOffset + SPARSE_P_EXTRA_BITS);
-                    int val = other.sparseSet[i] & maxRegisterValue;
-                    int bucketIndex = idx / regPerDatatype;
-                    int registerOffset = (regPerDatatype - idx % regPerDatatype - 1) * r;
-
-                    int registerValue = this.registers[bucketIndex];
-                    int mask = maxRegisterValue << registerOffset;
-                    if(Integer.compareUnsigned(registerValue & mask, val << registerOffset) < 0) {
-                        this.registers[bucketIndex] = (registerValue & ~mask) | (val << registerOffset);
-                    }
-                }
+                mergeSparseEntries(other.sparseCursor());
                 break;
             case 2: // this sparse, other normal
                 this.convertToNormal();
-                normalMerge(other);
+                denseMerge(other);
                 break;
             case 3: // both normal
-                normalMerge(other);
+                denseMerge(other);
                 break;
         }
+        hashFunction = hashFunction.merged(other.hashFunction);
         return true;
     }
 
+    // a new sketch of the same values at a lower precision newP, see HLL.fold(). a sparse sketch stays sparse, its
+    // entries are folded the same way from p + 4 to newP + 4 index bits. the new sketch has the layout, hash function
+    // and estimate mode of this one.
+    public HLLPlusPlus fold(int newP) {
+        return foldTo(newP, r);
+    }
+
+    // a new sketch of the same values with registers of newR bits, see HLL.withWidth()
+    public HLLPlusPlus withWidth(int newR) {
+        return foldTo(p, newR);
+    }
+
+    // the sketch at newP <= p and newR, also used by HLLMap
+    HLLPlusPlus foldTo(int newP, int newR) {
+        if(newP > p)
+            throw new IllegalArgumentException("can not fold p: " + p + " to a larger p: " + newP);
+        HLLPlusPlus hll = new HLLPlusPlus(newP, newR, incrementalEstimate, DEFAULT_SPARSE_BUFFER_SIZE, longWords, hashFunction);
+        int shift = p - newP;
+        int newMax = (1 << newR) - 1;
+        if(!isSparse) {
+            hll.convertToNormal();
+            int[] words = new int[LongRegisterWords.intWords(1 << newP, newR)];
+            RegisterWords.fold(getRegisters(), p, r, words, newP, newR);
+            hll.mergeIntWords(words);
+            return hll;
+        }
+
+        mergeTmpSparse();
+        // the list is sorted by index, so the entries that fold into the same index are adjacent and the max of them
+        // is kept
+        int offset = hll.sparseSetIndexOffset;
+        int[] entries = new int[sparseSetSize];
+        int n = 0;
+        SparseCursor cursor = sparseCursor();
+        while(cursor.next()) {
+            int index = cursor.index >>> shift;
+            int value = Math.min(RegisterWords.foldRank(cursor.value, cursor.index, sp, shift), newMax);
+            if(n > 0 && (entries[n - 1] >>> offset) == index) {
+                if((entries[n - 1] & newMax) < value)
+                    entries[n - 1] = (index << offset) | value;
+            }
+            else {
+                entries[n++] = (index << offset) | value;
+            }
+        }
+        hll.mergeSparse(new SparseCursor.Entries(offset, newMax).reset(entries, n), n);
+        if(hll.sparseBytesSize >= hll.conversionThreshold)
+            hll.convertToNormal();
+        return hll;
+    }
+
+    // a new sketch of the union of sketches of any p and r, at the smallest p and the smallest r among them, see
+    // HLL.union(). it has the layout of the first sketch, null sketches are skipped.
+    public static HLLPlusPlus union(HLLPlusPlus... sketches) {
+        int p = Integer.MAX_VALUE;
+        int r = Integer.MAX_VALUE;
+        HLLPlusPlus first = null;
+        HashFunction hashFunction = HashFunction.EXTERNAL;
+        for(HLLPlusPlus sketch : sketches) {
+            if(sketch == null)
+                continue;
+            if(first == null)
+                first = sketch;
+            p = Math.min(p, sketch.p);
+            r = Math.min(r, sketch.r);
+            if(sketch.hashFunction != HashFunction.EXTERNAL)
+                hashFunction = sketch.hashFunction;
+        }
+        if(first == null)
+            throw new IllegalArgumentException("no sketches");
+
+        HLLPlusPlus hll = new HLLPlusPlus(p, r, false, DEFAULT_SPARSE_BUFFER_SIZE, first.longWords, hashFunction);
+        for(HLLPlusPlus sketch : sketches) {
+            if(sketch != null && !hll.merge(sketch))
+                throw new IllegalArgumentException("sketches of different hash functions");
+        }
+        return hll;
+    }
+
+    // merge all sketches into this one, like merge() for each of them. the registers of the dense ones are merged in
+    // a single pass that is split over the common ForkJoinPool for large p, see MultiMerge, the sparse ones are merged
+    // after them. null sketches are skipped, returns false without merging anything if any of them has a different p or r.
+    public boolean mergeAll(HLLPlusPlus... others) {
+        return mergeAll(Arrays.asList(others));
+    }
+
+    public boolean mergeAll(Iterable<? extends HLLPlusPlus> others) {
+        HLLPlusPlus[] denseSketches = new HLLPlusPlus[8];
+        HLLPlusPlus[] sparseSketches = new HLLPlusPlus[8];
+        int dense = 0;
+        int sparse = 0;
+        HashFunction merged = hashFunction;
+        for(HLLPlusPlus other : others) {
+            if(other == null || other == this)
+                continue;
+            if(this.p != other.p || this.r != other.r || !merged.isCompatible(other.hashFunction))
+                return false;
+            merged = merged.merged(other.hashFunction);
+            if(other.isSparse) {
+                other.mergeTmpSparse();
+                if(sparse == sparseSketches.length)
+                    sparseSketches = Arrays.copyOf(sparseSketches, sparse * 2);
+                sparseSketches[sparse++] = other;
+            }
+            else {
+                if(dense == denseSketches.length)
+                    denseSketches = Arrays.copyOf(denseSketches, dense * 2);
+                denseSketches[dense++] = other;
+            }
+        }
+
+        if(this.sparseListIndex > 0)
+            this.mergeTmpSparse();
+        if(dense > 0) {
+            if(isSparse)
+                this.convertToNormal();
+            // sketches of the other layout are converted into copies
+            if(longWords) {
+                long[][] denseRegisters = new long[dense][];
+                for(int j = 0; j < dense; j++)
+                    denseRegisters[j] = denseSketches[j].getLongRegisters();
+                MultiMerge.merge(this.longRegisters, denseRegisters, dense, r);
+            }
+            else {
+                int[][] denseRegisters = new int[dense][];
+                for(int j = 0; j < dense; j++)
+                    denseRegisters[j] = denseSketches[j].getRegisters();
+                MultiMerge.merge(this.registers, denseRegisters, dense, r);
+            }
+            // the merge does not track the registers it changes, rebuilding the histogram once is cheaper anyway
+            if(registerHistogram != null)
+                enableIncrementalEstimate();
+        }
+        for(int j = 0; j < sparse; j++) {
+            HLLPlusPlus other = sparseSketches[j];
+            if(isSparse) {
+                mergeSparse(other.sparseCursor(), other.sparseSetSize);
+                if(this.sparseBytesSize >= conversionThreshold)
+                    this.convertToNormal();
+            }
+            else {
+                mergeSparseEntries(other.sparseCursor());
+            }
+        }
+        hashFunction = merged;
+        return true;
+    }
+
+    // merge a sketch serialized with serialize() straight from the length bytes at offset in array, no HLLPlusPlus
+    // is created for it. returns false if its p or r differ, like merge(HLLPlusPlus).
+    public boolean mergeFrom(byte[] array, int offset, int length) {
+        return mergeFrom(ByteBuffer.wrap(array), offset, length);
+    }
+
+    // same as mergeFrom(byte[], int, int) on the bytes of a buffer, its position and limit are not used or changed.
+    public boolean mergeFrom(ByteBuffer buffer, int offset, int length) {
+        if(length < SERIALIZED_METADATA_FIELDS)
+            throw new IllegalArgumentException("buffer is smaller than " + SERIALIZED_METADATA_FIELDS + " bytes");
+        buffer = HLL.view(buffer, offset, length);
+        int mode = buffer.get(offset);
+        int otherR = buffer.get(offset + 2);
+        if(buffer.get(offset + 1) != p || (otherR & HLL.R_MASK) != r)
+            return false;
+        if(!hashFunction.isCompatible(HashFunction.fromHeader(otherR)))
+            return false;
+        int start = offset + SERIALIZED_METADATA_FIELDS;
+        int size = length - SERIALIZED_METADATA_FIELDS;
+
+        if(this.sparseListIndex > 0)
+            this.mergeTmpSparse();
+
+        if(mode == 0 || mode == 2) {
+            sparseMergeFrom(buffer, mode, start, size);
+            if(isSparse && this.sparseBytesSize >= conversionThreshold)
+                this.convertToNormal();
+        }
+        else if(mode == 1) {
+            boolean otherLongWords = (otherR & LongRegisterWords.LAYOUT_FLAG) != 0;
+            checkDenseSize(otherR, size);
+            if(isSparse)
+                this.convertToNormal();
+            // bulk decode into a reused array and the regular merge, as in HLL.mergeFrom()
+            ((Buffer) buffer).position(start);
+            if(otherLongWords) {
+                long[] scratch = longMergeScratch();
+                buffer.asLongBuffer().get(scratch);
+                mergeLongWords(scratch);
+            }
+            else {
+                int[] scratch = mergeScratch();
+                buffer.asIntBuffer().get(scratch);
+                mergeIntWords(scratch);
+            }
+        }
+        else {
+            throw new IllegalArgumentException("invalid mode: " + mode);
+        }
+        hashFunction = hashFunction.merged(HashFunction.fromHeader(otherR));
+        return true;
+    }
+
+    // throws if size bytes are not the dense register words of this sketch in the layout of the r byte otherR
+    private void checkDenseSize(int otherR, int size) {
+        boolean otherLongWords = (otherR & LongRegisterWords.LAYOUT_FLAG) != 0;
+        int words = otherLongWords ? LongRegisterWords.words(totalRegisters, r) : LongRegisterWords.intWords(totalRegisters, r);
+        if(words * (otherLongWords ? 8 : 4) != size)
+            throw new IllegalArgumentException("HLL buffer invalid size: " + size + " expected: " + words);
+    }
+
+    // merge the sparse list of size bytes at offset in buffer, plain int entries for mode 0 or compressed for mode 2.
+    // it is validated first, so a corrupt list throws before anything is merged.
+    private void sparseMergeFrom(ByteBuffer buffer, int mode, int offset, int size) {
+        sparseMergeFrom(buffer, mode, offset, size, validateSparse(buffer, mode, offset, size));
+    }
+
+    // throws for a sparse list sparseMergeFrom() would fail on half way, returns its number of entries
+    private int validateSparse(ByteBuffer buffer, int mode, int offset, int size) {
+        if(mode == 0) {
+            if(size % 4 != 0)
+                throw new IllegalArgumentException("HLL buffer invalid size: " + size);
+            int n = size / 4;
+            SparseCursor.validate(new SparseCursor.EntryBuffer(buffer, offset, n, sparseSetIndexOffset, maxRegisterValue), n, sp);
+            return n;
+        }
+        if(size < SPARSE_COUNT_BYTES)
+            throw new IllegalArgumentException("HLL buffer invalid size: " + size);
+        int n = buffer.getInt(offset);
+        SparseCursor.validate(new SparseCursor.Varints(buffer, offset + SPARSE_COUNT_BYTES, offset + size, r), n, sp);
+        return n;
+    }
+
+    // same, for a list of n entries that was validated already
+    private void sparseMergeFrom(ByteBuffer buffer, int mode, int offset, int size, int n) {
+        SparseCursor entries;
+        if(mode == 0)
+            entries = new SparseCursor.EntryBuffer(buffer, offset, n, sparseSetIndexOffset, maxRegisterValue);
+        else
+            entries = new SparseCursor.Varints(buffer, offset + SPARSE_COUNT_BYTES, offset + size, r);
+
+        if(isSparse)
+            mergeSparse(entries, n);
+        else
+            mergeSparseEntries(entries);
+    }
+
     private void estimate4(double[] results) {
         final int REGISTER_PER_BUCKET = 8;
         final int REGISTER_SIZE = 4;
@@ -378,12 +1117,16 @@ public class HLLPlusPlus {
         int completeBuckets = totalRegisters / REGISTER_PER_BUCKET;
         int remainingRegisters = totalRegisters % REGISTER_PER_BUCKET;
 
-        for(int i = 0; i < completeBuckets; i++) {
-            int cur = this.registers[i];
-            for(int j = 0; j < REGISTER_PER_BUCKET; j++) {
-                int k = (cur >>> (REGISTER_SIZE * j)) & MASK;
-                zeroRegisters += ((k == 0) ? 1 : 0);
-                sum = sum + PRE_POW_2_K[k];
+        if(RegisterWords.VECTORIZED) {
+            VectorKernels.estimate(this.registers, completeBuckets, REGISTER_SIZE, results);
+            sum = results[0];
+            zeroRegisters = (int) results[1];
+        }
+        else {
+            for(int i = 0; i < completeBuckets; i++) {
+                int cur = this.registers[i];
+                zeroRegisters += RegisterWords.zeros4(cur);
+                sum = sum + RegisterWords.sum4(cur);
             }
         }
 
@@ -410,12 +1153,16 @@ public class HLLPlusPlus {
         int completeBuckets = totalRegisters / REGISTER_PER_BUCKET;
         int remainingRegisters = totalRegisters % REGISTER_PER_BUCKET;
 
-        for(int i = 0; i < completeBuckets; i++) {
-            int cur = this.registers[i];
-            for(int j = 0; j < REGISTER_PER_BUCKET; j++) {
-                int k = (cur >>> (REGISTER_SIZE * j)) & MASK;
-                zeroRegisters += ((k == 0) ? 1 : 0);
-                sum = sum + PRE_POW_2_K[k];
+        if(RegisterWords.VECTORIZED) {
+            VectorKernels.estimate(this.registers, completeBuckets, REGISTER_SIZE, results);
+            sum = results[0];
+            zeroRegisters = (int) results[1];
+        }
+        else {
+            for(int i = 0; i < completeBuckets; i++) {
+                int cur = this.registers[i];
+                zeroRegisters += RegisterWords.zeros5(cur);
+                sum = sum + RegisterWords.sum5(cur);
             }
         }
 
@@ -442,12 +1189,16 @@ public class HLLPlusPlus {
         int completeBuckets = totalRegisters / REGISTER_PER_BUCKET;
         int remainingRegisters = totalRegisters % REGISTER_PER_BUCKET;
 
-        for(int i = 0; i < completeBuckets; i++) {
-            int cur = this.registers[i];
-            for(int j = 0; j < REGISTER_PER_BUCKET; j++) {
-                int k = (cur >>> (REGISTER_SIZE * j)) & MASK;
-                zeroRegisters += ((k == 0) ? 1 : 0);
-                sum = sum + PRE_POW_2_K[k];
+        if(RegisterWords.VECTORIZED) {
+            VectorKernels.estimate(this.registers, completeBuckets, REGISTER_SIZE, results);
+            sum = results[0];
+            zeroRegisters = (int) results[1];
+        }
+        else {
+            for(int i = 0; i < completeBuckets; i++) {
+                int cur = this.registers[i];
+                zeroRegisters += RegisterWords.zeros6(cur);
+                sum = sum + RegisterWords.sum6(cur);
             }
         }
 
@@ -465,71 +1216,155 @@ public class HLLPlusPlus {
     }
 
     public long estimate() {
-        double M = totalRegisters;
         if(isSparse) {
             if(this.sparseListIndex > 0)
                 mergeTmpSparse();
             double SM = (1 << sp);
-            return Math.round(SM * Math.log(SM / (SM - this.sparseSet.length)));
+            return Math.round(SM * Math.log(SM / (SM - this.sparseSetSize)));
         }
 
-        double[] results = new double[2];
+        double sum;
+        double zeroRegisters;
 
-        switch(r) {
-            case 4: estimate4(results);
-                break;
-            case 5: estimate5(results);
-                break;
-            case 6: estimate6(results);
-                break;
+        if(registerHistogram != null) {
+            sum = 0;
+            for(int k = registerHistogram.length - 1; k >= 0; k--)
+                sum = sum + registerHistogram[k] * PRE_POW_2_K[k];
+            zeroRegisters = registerHistogram[0];
         }
+        else {
+            double[] results = new double[2];
 
-        double sum = results[0];
-        double zeroRegisters = results[1];
+            if(longWords) {
+                LongRegisterWords.estimate(longRegisters, totalRegisters, r, results);
+            }
+            else {
+                switch(r) {
+                    case 4: estimate4(results);
+                        break;
+                    case 5: estimate5(results);
+                        break;
+                    case 6: estimate6(results);
+                        break;
+                }
+            }
 
-        double alphaM = getAlphaM(totalRegisters);
-        double rawEstimate = alphaM * M * M * (1 / sum);
-//        System.err.println(rawEstimate);
+            sum = results[0];
+            zeroRegisters = results[1];
+        }
 
-        if(rawEstimate <= (5.0 * M / 2.0) && zeroRegisters > 0) {
-            rawEstimate = M * Math.log(M / zeroRegisters);
-        } else if(rawEstimate > ((1.0 / 30.0) * POW_2_32)) {
-            rawEstimate = -POW_2_32 * Math.log(1 - rawEstimate / POW_2_32);
+        return HLL.estimate(sum, zeroRegisters, totalRegisters);
+    }
+
+    // Ertl's improved estimator from the histogram of the register values, see HLL.improvedEstimate(). a sparse
+    // sketch is estimated the same way over its 2^(p + 4) sparse registers, most of which are 0.
+    public long improvedEstimate() {
+        int[] hist;
+        if(isSparse) {
+            if(this.sparseListIndex > 0)
+                mergeTmpSparse();
+            hist = new int[maxRegisterValue + 1];
+            hist[0] = (1 << sp) - sparseSetSize;
+            SparseCursor cursor = sparseCursor();
+            while(cursor.next())
+                hist[cursor.value]++;
+            return HLL.improvedEstimate(hist, sp, r);
+        }
+
+        hist = registerHistogram;
+        if(hist == null) {
+            hist = new int[maxRegisterValue + 1];
+            if(longWords)
+                LongRegisterWords.histogram(longRegisters, totalRegisters, r, hist);
+            else
+                RegisterWords.histogram(registers, totalRegisters, r, hist);
         }
+        return HLL.improvedEstimate(hist, p, r);
+    }
 
-        return (long) rawEstimate;
+    // estimate of a sketch serialized with serialize() straight from the length bytes at offset in array
+    public static long estimate(byte[] array, int offset, int length) {
+        return estimate(ByteBuffer.wrap(array), offset, length);
     }
 
-    private double getAlphaM(int M) {
-        switch (M) {
-            case 16:
-                return 0.673;
-            case 32:
-                return 0.697;
-            case 64:
-                return 0.709;
-            default:
-                return 0.7213 / (1 + (1.079 / M));
+    // same as estimate(byte[], int, int) on the bytes of a buffer, its position and limit are not used or changed.
+    public static long estimate(ByteBuffer buffer, int offset, int length) {
+        if(length < SERIALIZED_METADATA_FIELDS)
+            throw new IllegalArgumentException("buffer is smaller than " + SERIALIZED_METADATA_FIELDS + " bytes");
+        buffer = HLL.view(buffer, offset, length);
+        int mode = buffer.get(offset);
+        int p = buffer.get(offset + 1);
+        int r = buffer.get(offset + 2);
+        boolean longWords = (r & LongRegisterWords.LAYOUT_FLAG) != 0;
+        // throws for an unknown hash function id, like for an invalid r
+        HashFunction.fromHeader(r);
+        r = r & HLL.R_MASK;
+        checkPR(p, r);
+        int size = length - SERIALIZED_METADATA_FIELDS;
+
+        if(mode == 0 || mode == 2) {
+            int n;
+            if(mode == 0) {
+                if(size % 4 != 0)
+                    throw new IllegalArgumentException("HLL buffer invalid size: " + size);
+                n = size / 4;
+            }
+            else {
+                if(size < SPARSE_COUNT_BYTES)
+                    throw new IllegalArgumentException("HLL buffer invalid size: " + size);
+                n = buffer.getInt(offset + SERIALIZED_METADATA_FIELDS);
+            }
+            double SM = (1 << (p + SPARSE_P_EXTRA_BITS));
+            if(n < 0 || n >= SM)
+                throw new IllegalArgumentException("invalid number of sparse entries: " + n);
+            return Math.round(SM * Math.log(SM / (SM - n)));
         }
+        if(mode != 1)
+            throw new IllegalArgumentException("invalid mode: " + mode);
+        if(longWords) {
+            int words = LongRegisterWords.words(1 << p, r);
+            if((words * 8) != size)
+                throw new IllegalArgumentException("HLL buffer invalid size: " + size + " expected: " + words);
+            double[] results = new double[2];
+            LongRegisterWords.estimate(buffer, offset + SERIALIZED_METADATA_FIELDS, p, r, results);
+            return HLL.estimate(results[0], results[1], 1 << p);
+        }
+
+        int regPerDatatype = DT_WIDTH / r;
+        int m = (1 << p) / regPerDatatype + ((1 << p) % regPerDatatype == 0 ? 0 : 1);
+        if((m * 4) != size)
+            throw new IllegalArgumentException("HLL buffer invalid size: " + size + " expected: " + m);
+        return HLL.estimate(buffer, offset + SERIALIZED_METADATA_FIELDS, p, r);
     }
 
+    // the high 4 bits of the r byte are the id of the hash function, in every mode.
+    // a sketch with the long word layout has LongRegisterWords.LAYOUT_FLAG set in the r byte, in either mode, and
+    // writes its dense registers as big-endian longs
     public byte[] serialize() {
+        int rByte = hashFunction.toHeader(longWords ? r | LongRegisterWords.LAYOUT_FLAG : r);
         if(isSparse) {
             mergeTmpSparse();
-            int size = this.sparseSet.length * 4 + SERIALIZED_METADATA_FIELDS;
+            int size = SERIALIZED_METADATA_FIELDS + SPARSE_COUNT_BYTES + this.sparseBytesSize;
 
             byte[] buff = new byte[size];
             int j = 0;
-            buff[j++] = (byte) 0;
+            buff[j++] = (byte) 2;
             buff[j++] = (byte) this.p;
-            buff[j++] = (byte) this.r;
+            buff[j++] = (byte) rByte;
+            buff[j++] = (byte) ((this.sparseSetSize >>> 24) & 0xFF);
+            buff[j++] = (byte) ((this.sparseSetSize >>> 16) & 0xFF);
+            buff[j++] = (byte) ((this.sparseSetSize >>> 8) & 0xFF);
+            buff[j++] = (byte) (this.sparseSetSize & 0xFF);
 
-            for(int i=0; i<this.sparseSet.length; i++) {
-                buff[j++] = (byte) ((this.sparseSet[i] >>> 24) & 0xFF);
-                buff[j++] = (byte) ((this.sparseSet[i] >>> 16) & 0xFF);
-                buff[j++] = (byte) ((this.sparseSet[i] >>> 8) & 0xFF);
-                buff[j++] = (byte) (this.sparseSet[i] & 0xFF);
-            }
+            System.arraycopy(this.sparseBytes, 0, buff, j, this.sparseBytesSize);
+            return buff;
+        }
+        else if(longWords) {
+            byte[] buff = new byte[m * 8 + SERIALIZED_METADATA_FIELDS];
+            buff[0] = (byte) 1;
+            buff[1] = (byte) p;
+            buff[2] = (byte) rByte;
+            ByteBuffer.wrap(buff, SERIALIZED_METADATA_FIELDS, m * 8).asLongBuffer().put(longRegisters);
             return buff;
         }
         else {
@@ -539,7 +1374,7 @@ public class HLLPlusPlus {
             int j = 0;
             buff[j++] = (byte) 1;
             buff[j++] = (byte) p;
-            buff[j++] = (byte) r;
+            buff[j++] = (byte) rByte;
 
             for(int i=0; i<m; i++) {
                 buff[j++] = (byte) ((this.registers[i] >>> 24) & 0xFF);
@@ -551,41 +1386,165 @@ public class HLLPlusPlus {
         }
     }
 
+    // write the sketch in the version 2 format, see WireFormat and HLL.writeTo(). a sparse sketch is written as its
+    // compressed sparse list, a dense one like a HLL. serialize() still writes the version 1 format.
+    public void writeTo(OutputStream out) throws IOException {
+        writeTo(new WireFormat.Writer(out));
+    }
+
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        writeTo(new WireFormat.Writer(channel));
+    }
+
+    private void writeTo(WireFormat.Writer out) throws IOException {
+        int rByte = hashFunction.toHeader(longWords ? r | LongRegisterWords.LAYOUT_FLAG : r);
+        if(!isSparse) {
+            WireFormat.writeDense(out, WireFormat.TYPE_HLL_PLUS_PLUS, p, rByte, registers, longRegisters);
+            return;
+        }
+        mergeTmpSparse();
+        out.putHeader(WireFormat.TYPE_HLL_PLUS_PLUS, WireFormat.SPARSE, p, rByte, SPARSE_COUNT_BYTES + sparseBytesSize);
+        out.putInt(sparseSetSize);
+        out.put(sparseBytes, 0, sparseBytesSize);
+        out.finish();
+    }
+
+    // read the sketch at the position of buffer, in the version 2 format of writeTo() or any version 1 format of
+    // serialize(), see HLL.readFrom()
+    public static HLLPlusPlus readFrom(ByteBuffer buffer) {
+        WireFormat.Header header = WireFormat.header(buffer);
+        if(header == null) {
+            HLLPlusPlus hll = readV1(buffer, buffer.position(), buffer.remaining());
+            ((Buffer) buffer).position(buffer.limit());
+            return hll;
+        }
+        if(header.type != WireFormat.TYPE_HLL_PLUS_PLUS)
+            throw new IllegalArgumentException("not a HLLPlusPlus sketch, type: " + header.type);
+
+        HLLPlusPlus hll = new HLLPlusPlus(header.p, header.r(), false, DEFAULT_SPARSE_BUFFER_SIZE, header.isLongWords(), HashFunction.fromHeader(header.rByte));
+        if(header.encoding == WireFormat.SPARSE) {
+            hll.sparseMergeFrom(buffer.duplicate().order(ByteOrder.BIG_ENDIAN), 2, header.payloadOffset, header.payloadLength);
+        }
+        else {
+            hll.convertToNormal();
+            WireFormat.readDense(buffer, header, hll.registers, hll.longRegisters);
+        }
+        ((Buffer) buffer).position(buffer.position() + header.length());
+        return hll;
+    }
+
+    // read the sketch at the position of buffer into this one, replacing its content, like readFrom() without
+    // allocating a new sketch, see HLL.readInto(). returns false without changing anything if its p or r differ or it
+    // was hashed with another function. a buffer of the wrong size, mode or encoding, or a corrupt sparse list, throws
+    // also without changing anything.
+    public boolean readInto(ByteBuffer buffer) {
+        WireFormat.Header header = WireFormat.header(buffer);
+        if(header == null) {
+            int offset = buffer.position();
+            int length = buffer.remaining();
+            if(length < SERIALIZED_METADATA_FIELDS)
+                throw new IllegalArgumentException("buffer is smaller than " + SERIALIZED_METADATA_FIELDS + " bytes");
+            ByteBuffer view = HLL.view(buffer, offset, length);
+            int mode = view.get(offset);
+            int otherR = view.get(offset + 2);
+            if(view.get(offset + 1) != p || (otherR & HLL.R_MASK) != r)
+                return false;
+            if(!initialHashFunction.isCompatible(HashFunction.fromHeader(otherR)))
+                return false;
+            if(mode < 0 || mode > 2)
+                throw new IllegalArgumentException("invalid mode: " + mode);
+            int start = offset + SERIALIZED_METADATA_FIELDS;
+            int size = length - SERIALIZED_METADATA_FIELDS;
+            // everything that can throw is checked before clear()
+            int n = 0;
+            if(mode == 1)
+                checkDenseSize(otherR, size);
+            else
+                n = validateSparse(view, mode, start, size);
+            clear();
+            // a sparse list is taken as it is, like readFrom() does, a dense sketch is merged into the zeroed registers
+            if(mode == 1)
+                mergeFrom(buffer, offset, length);
+            else
+                sparseMergeFrom(view, mode, start, size, n);
+            hashFunction = hashFunction.merged(HashFunction.fromHeader(otherR));
+            ((Buffer) buffer).position(buffer.limit());
+            return true;
+        }
+        if(header.type != WireFormat.TYPE_HLL_PLUS_PLUS)
+            throw new IllegalArgumentException("not a HLLPlusPlus sketch, type: " + header.type);
+        if(header.p != p || header.r() != r || !initialHashFunction.isCompatible(HashFunction.fromHeader(header.rByte)))
+            return false;
+        ByteBuffer view = null;
+        int n = 0;
+        if(header.encoding == WireFormat.SPARSE) {
+            view = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+            n = validateSparse(view, 2, header.payloadOffset, header.payloadLength);
+        }
+        else {
+            WireFormat.checkDense(buffer, header);
+        }
+
+        clear();
+        hashFunction = hashFunction.merged(HashFunction.fromHeader(header.rByte));
+        if(header.encoding == WireFormat.SPARSE) {
+            sparseMergeFrom(view, 2, header.payloadOffset, header.payloadLength, n);
+        }
+        else {
+            convertToNormal();
+            WireFormat.readDense(buffer, header, registers, longRegisters);
+            if(incrementalEstimate)
+                enableIncrementalEstimate();
+        }
+        ((Buffer) buffer).position(buffer.position() + header.length());
+        return true;
+    }
+
+    public boolean readInto(byte[] buff) {
+        return readInto(ByteBuffer.wrap(buff));
+    }
+
+    // reads both formats, see readFrom()
     public static HLLPlusPlus deserialize(byte[] buff) {
         if (buff == null || buff.length < 7)
             throw new IllegalArgumentException("array is null or smaller than 6 bytes");
+        return readFrom(ByteBuffer.wrap(buff));
+    }
 
-        int j = 0;
-        int mode = buff[j++];
-        int p = buff[j++];
-        int r = buff[j++];
-        HLLPlusPlus hll = new HLLPlusPlus(p, r);
-
-        if(mode == 0) {
-            int n = (buff.length - SERIALIZED_METADATA_FIELDS) / 4;
-            int[] sparseSet = new int[n];
-            for(int i=0; i<n; i++) {
-                sparseSet[i] = ((buff[j] & 0xFF) << 24) |
-                        ((buff[j + 1] & 0xFF) << 16) |
-                        ((buff[j + 2] & 0xFF) << 8) |
-                        (buff[j + 3] & 0xFF);
-                j += 4;
-            }
-            hll.sparseSet = sparseSet;
+    // the version 1 sketch of the length bytes at offset in buffer
+    private static HLLPlusPlus readV1(ByteBuffer buffer, int offset, int length) {
+        if(length < SERIALIZED_METADATA_FIELDS)
+            throw new IllegalArgumentException("buffer is smaller than " + SERIALIZED_METADATA_FIELDS + " bytes");
+        ByteBuffer view = HLL.view(buffer, offset, length);
+        int mode = view.get(offset);
+        int p = view.get(offset + 1);
+        int r = view.get(offset + 2);
+        boolean longWords = (r & LongRegisterWords.LAYOUT_FLAG) != 0;
+        HLLPlusPlus hll = new HLLPlusPlus(p, r & HLL.R_MASK, false, DEFAULT_SPARSE_BUFFER_SIZE, longWords, HashFunction.fromHeader(r));
+        int start = offset + SERIALIZED_METADATA_FIELDS;
+        int size = length - SERIALIZED_METADATA_FIELDS;
+
+        if(mode == 0 || mode == 2) {
+            // sketches serialized before the compressed format have plain int entries, they are compressed here
+            hll.sparseMergeFrom(view, mode, start, size);
+            return hll;
+        }
+        if(mode != 1)
+            throw new IllegalArgumentException("invalid mode: " + mode);
+
+        hll.isSparse = false;
+        ((Buffer) view).position(start);
+        if(longWords) {
+            hll.longRegisters = new long[hll.m];
+            if((hll.m * 8) != size)
+                throw new IllegalArgumentException("HLL buffer invalid size: " + size + " expected: " + hll.m);
+            view.asLongBuffer().get(hll.longRegisters);
         }
         else {
-            hll.isSparse = false;
-            hll.sparseList = new int[0];
             hll.registers = new int[hll.m];
-            if((hll.m * 4) != (buff.length - SERIALIZED_METADATA_FIELDS))
-                throw new IllegalArgumentException("HLL buffer invalid size: " + (buff.length - SERIALIZED_METADATA_FIELDS) + " expected: " + hll.m);
-
-            for(int i=0; i < hll.m; i++) {
-                hll.registers[i] = ((buff[j] & 0xFF) << 24) |
-                        ((buff[j + 1] & 0xFF) << 16) |
-                        ((buff[j + 2] & 0xFF) << 8) |
-                        (buff[j + 3] & 0xFF);
-            }
+            if((hll.m * 4) != size)
+                throw new IllegalArgumentException("HLL buffer invalid size: " + size + " expected: " + hll.m);
+            view.asIntBuffer().get(hll.registers);
         }
         return hll;
     }
@@ -0,0 +1,102 @@
+package io.github.siddheshdhinge.bareboneshll;
+
+// released sketches of one p and r, cleared and handed out again by allocateHLL() and allocateHLLPlusPlus(), for
+// workloads that build many short lived sketches, e.g. one per key of a batch that is merged and dropped:
+//
+//   HLLPlusPlus hll = pool.allocateHLLPlusPlus();
+//   hll.readInto(bytes);
+//   ...
+//   pool.release(hll);
+//
+// a steady workload then allocates no sketches, and a reused HLLPlusPlus keeps its dense registers and sparse list,
+// so it does not grow them again either. up to maxIdle released sketches of each type are kept, the ones beyond that
+// are left to the GC. the sketches are created with the defaults of HLL(p, r) and HLLPlusPlus(p, r) and the hash
+// function of the pool. not thread safe, use a pool per thread.
+public class HLLPool {
+    private final int p;
+    private final int r;
+    private final HashFunction hashFunction;
+    private final int maxIdle;
+
+    // stacks of released sketches
+    private final HLL[] idleHLLs;
+    private int idleHLLCount;
+    private final HLLPlusPlus[] idleHLLPlusPlus;
+    private int idleHLLPlusPlusCount;
+
+    public HLLPool(int p, int r, int maxIdle) {
+        this(p, r, HashFunction.EXTERNAL, maxIdle);
+    }
+
+    public HLLPool(int p, int r, HashFunction hashFunction, int maxIdle) {
+        if(maxIdle < 0)
+            throw new IllegalArgumentException("invalid maxIdle: " + maxIdle);
+        HLL.checkPR(p, r);
+        HLLPlusPlus.checkPR(p, r);
+        if(hashFunction == null)
+            throw new IllegalArgumentException("hashFunction is null");
+
+        this.p = p;
+        this.r = r;
+        this.hashFunction = hashFunction;
+        this.maxIdle = maxIdle;
+        this.idleHLLs = new HLL[maxIdle];
+        this.idleHLLPlusPlus = new HLLPlusPlus[maxIdle];
+    }
+
+    // an empty sketch, a released one if there is any
+    public HLL allocateHLL() {
+        if(idleHLLCount > 0) {
+            HLL hll = idleHLLs[--idleHLLCount];
+            idleHLLs[idleHLLCount] = null;
+            return hll;
+        }
+        return new HLL(p, r, hashFunction);
+    }
+
+    // an empty sparse sketch, a released one if there is any
+    public HLLPlusPlus allocateHLLPlusPlus() {
+        if(idleHLLPlusPlusCount > 0) {
+            HLLPlusPlus hll = idleHLLPlusPlus[--idleHLLPlusPlusCount];
+            idleHLLPlusPlus[idleHLLPlusPlusCount] = null;
+            return hll;
+        }
+        HLLPlusPlus hll = new HLLPlusPlus(p, r, hashFunction);
+        hll.keepSparseList = true;
+        return hll;
+    }
+
+    // give a sketch back to the pool, it must not be used afterwards. it does not have to come from allocateHLL(), but
+    // it must have the settings of the sketches of this pool. releasing a sketch that is still idle throws, it would
+    // otherwise be handed out twice. the check scans the idle sketches, so keep maxIdle small.
+    public void release(HLL hll) {
+        if(hll.getP() != p || hll.getR() != r || hll.getInitialHashFunction() != hashFunction || hll.isLongWords() || hll.isIncrementalEstimate())
+            throw new IllegalArgumentException("sketch does not match the pool");
+        for(int i = 0; i < idleHLLCount; i++)
+            if(idleHLLs[i] == hll)
+                throw new IllegalArgumentException("sketch was released already");
+        if(idleHLLCount == maxIdle)
+            return;
+        hll.clear();
+        idleHLLs[idleHLLCount++] = hll;
+    }
+
+    // same as release(HLL)
+    public void release(HLLPlusPlus hll) {
+        if(hll.getP() != p || hll.getR() != r || hll.getInitialHashFunction() != hashFunction || hll.isLongWords() || hll.isIncrementalEstimate())
+            throw new IllegalArgumentException("sketch does not match the pool");
+        for(int i = 0; i < idleHLLPlusPlusCount; i++)
+            if(idleHLLPlusPlus[i] == hll)
+                throw new IllegalArgumentException("sketch was released already");
+        if(idleHLLPlusPlusCount == maxIdle)
+            return;
+        hll.clear();
+        hll.keepSparseList = true;
+        idleHLLPlusPlus[idleHLLPlusPlusCount++] = hll;
+    }
+
+    // number of released sketches of both types waiting to be handed out again
+    public int idle() {
+        return idleHLLCount + idleHLLPlusPlusCount;
+    }
+}
@@ -0,0 +1,81 @@
+package io.github.siddheshdhinge.bareboneshll;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// one large buffer carved into OffHeapHLL sketches of the same p and r, so millions of sketches cost a single
+// allocation and nothing for the GC to trace besides the OffHeapHLL handles themselves.
+// released slots are cleared and handed out again by allocate(). a sketch can only be released once, to the slab it
+// was allocated from, so no two sketches in use ever share a slot. not thread safe.
+public class HLLSlab {
+    private final int p;
+    private final int r;
+    private final ByteBuffer buffer;
+    private final int sketchSize;
+    private final int capacity;
+
+    // next never used slot
+    private int next;
+    // stack of released slots
+    private int[] free = new int[16];
+    private int freeCount;
+
+    public HLLSlab(int p, int r, int capacity) {
+        this(allocate(p, r, capacity), p, r);
+    }
+
+    // a slab over an existing buffer, e.g. a MappedByteBuffer or on Java 21+ MemorySegment.asByteBuffer() of an
+    // Arena allocated segment. the buffer has to be zeroed, it is carved from index 0 up to its capacity.
+    public HLLSlab(ByteBuffer buffer, int p, int r) {
+        this.p = p;
+        this.r = r;
+        this.sketchSize = OffHeapHLL.sizeInBytes(p, r);
+        this.buffer = buffer;
+        this.capacity = buffer.capacity() / sketchSize;
+        if(capacity == 0)
+            throw new IllegalArgumentException("buffer of " + buffer.capacity() + " bytes too small for one sketch of " + sketchSize + " bytes");
+    }
+
+    private static ByteBuffer allocate(int p, int r, int capacity) {
+        if(capacity <= 0)
+            throw new IllegalArgumentException("invalid capacity: " + capacity);
+        long size = (long) OffHeapHLL.sizeInBytes(p, r) * capacity;
+        if(size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("slab of " + size + " bytes is larger than a ByteBuffer can be, use more slabs");
+        return ByteBuffer.allocateDirect((int) size);
+    }
+
+    // an empty sketch, or null if all slots are in use
+    public OffHeapHLL allocate() {
+        int slot;
+        if(freeCount > 0)
+            slot = free[--freeCount];
+        else if(next < capacity)
+            slot = next++;
+        else
+            return null;
+        OffHeapHLL hll = new OffHeapHLL(buffer, slot * sketchSize, p, r);
+        hll.slab = this;
+        return hll;
+    }
+
+    // give the slot of a sketch allocated from this slab back, the sketch must not be used afterwards.
+    public void release(OffHeapHLL hll) {
+        if(hll.slab != this)
+            throw new IllegalArgumentException("sketch is not from this slab or was released already");
+        hll.slab = null;
+        hll.clear();
+        if(freeCount == free.length)
+            free = Arrays.copyOf(free, freeCount * 2);
+        free[freeCount++] = hll.getOffset() / sketchSize;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    // number of sketches currently allocated
+    public int size() {
+        return next - freeCount;
+    }
+}
@@ -0,0 +1,202 @@
+package io.github.siddheshdhinge.bareboneshll;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// file of fixed size sketches of one p and r, memory mapped so that add() and merge() update the registers
+// in place. the OS writes dirty pages back on its own, force() is the checkpoint, and opening an existing
+// store only maps the file without reading it.
+//
+// layout: a 16 byte header [magic "HLLS"][version][p][r][hash id][capacity int][0 int], followed by capacity
+// register blocks of OffHeapHLL.sizeInBytes(p, r) bytes each, which hold the register part of HLL.serialize().
+// the hash id is the HashFunction of the sketches of the store, EXTERNAL (0) until merge(), or a merge through a
+// view of get(), takes in a sketch of another one, see HashFunction.merged().
+// the file is mapped lazily in chunks of whole blocks of up to 1 GB each, so a store can be larger than one ByteBuffer.
+// not thread safe.
+public class HLLStore implements Closeable {
+    private final FileChannel channel;
+    private final int p;
+    private final int r;
+    private final int capacity;
+    private final int sketchSize;
+    private final int sketchesPerChunk;
+    private final MappedByteBuffer[] chunks;
+    // the header is mapped too, so that a merge through any view of get() can write the hash id
+    private final MappedByteBuffer header;
+    private HashFunction hashFunction;
+
+    // below variables are derived, add() and merge() update the mapped registers with them without a view
+    private final int regPerDatatype;
+    private final int maxRegisterValue;
+    private final int words;
+
+    private static final int MAGIC = 0x484c4c53; // "HLLS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int HASH_ID_POSITION = 7;
+    private static final int MAX_CHUNK_SIZE = 1 << 30;
+
+    private HLLStore(FileChannel channel, int p, int r, int capacity, HashFunction hashFunction) throws IOException {
+        this.channel = channel;
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        this.hashFunction = hashFunction;
+        this.p = p;
+        this.r = r;
+        this.capacity = capacity;
+        this.sketchSize = OffHeapHLL.sizeInBytes(p, r);
+        this.sketchesPerChunk = Math.max(1, MAX_CHUNK_SIZE / sketchSize);
+        this.chunks = new MappedByteBuffer[(capacity + sketchesPerChunk - 1) / sketchesPerChunk];
+        this.regPerDatatype = 32 / r;
+        this.maxRegisterValue = (1 << r) - 1;
+        this.words = sketchSize / 4;
+    }
+
+    // create a new store of capacity empty sketches, fails if the file exists.
+    // the file is extended without writing the blocks, so on most file systems it starts out sparse.
+    public static HLLStore create(Path path, int p, int r, int capacity) throws IOException {
+        if(capacity <= 0)
+            throw new IllegalArgumentException("invalid capacity: " + capacity);
+        long size = HEADER_SIZE + (long) OffHeapHLL.sizeInBytes(p, r) * capacity;
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.put((byte) VERSION);
+            header.put((byte) p);
+            header.put((byte) r);
+            header.put((byte) 0);
+            header.putInt(capacity);
+            header.putInt(0);
+            ((Buffer) header).flip();
+            while(header.hasRemaining())
+                channel.write(header, header.position());
+            channel.write(ByteBuffer.allocate(1), size - 1);
+            return new HLLStore(channel, p, r, capacity, HashFunction.EXTERNAL);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public static HLLStore open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while(header.hasRemaining()) {
+                if(channel.read(header, header.position()) < 0)
+                    throw new IOException("not a HLL store: " + path);
+            }
+            if(header.getInt(0) != MAGIC)
+                throw new IOException("not a HLL store: " + path);
+            if(header.get(4) != VERSION)
+                throw new IOException("unsupported HLL store version: " + header.get(4));
+            int p = header.get(5);
+            int r = header.get(6);
+            int capacity = header.getInt(8);
+            HashFunction hashFunction = HashFunction.fromId(header.get(HASH_ID_POSITION));
+            long size = HEADER_SIZE + (long) OffHeapHLL.sizeInBytes(p, r) * capacity;
+            if(channel.size() != size)
+                throw new IOException("HLL store invalid size: " + channel.size() + " expected: " + size);
+            return new HLLStore(channel, p, r, capacity, hashFunction);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private MappedByteBuffer chunk(int chunkIndex) throws IOException {
+        MappedByteBuffer chunk = chunks[chunkIndex];
+        if(chunk == null) {
+            int first = chunkIndex * sketchesPerChunk;
+            int count = Math.min(sketchesPerChunk, capacity - first);
+            chunk = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + (long) first * sketchSize, (long) count * sketchSize);
+            chunks[chunkIndex] = chunk;
+        }
+        return chunk;
+    }
+
+    private void checkIndex(int index) {
+        if(index < 0 || index >= capacity)
+            throw new IndexOutOfBoundsException("index: " + index + " capacity: " + capacity);
+    }
+
+    // the sketch at index, a view on the mapped file, updates through it go straight to the store.
+    // the view has the hash function of the store, and a merge through it changes it for the whole store.
+    // the view stays valid until the store is closed.
+    public OffHeapHLL get(int index) throws IOException {
+        checkIndex(index);
+        OffHeapHLL hll = new OffHeapHLL(chunk(index / sketchesPerChunk), (index % sketchesPerChunk) * sketchSize, p, r);
+        hll.store = this;
+        return hll;
+    }
+
+    // add(), merge() and estimate() work on the mapped chunk directly, so they allocate no view per call
+    public void add(int index, long value) throws IOException {
+        checkIndex(index);
+        OffHeapHLL.add(chunk(index / sketchesPerChunk), (index % sketchesPerChunk) * sketchSize, p, r, regPerDatatype, maxRegisterValue, value);
+    }
+
+    // returns false if the p, r or hash function of other differ, see HLL.merge()
+    public boolean merge(int index, HLL other) throws IOException {
+        checkIndex(index);
+        if (other == null)
+            return false;
+        if (this.p != other.getP() || this.r != other.getR() || !hashFunction.isCompatible(other.getHashFunction()))
+            return false;
+        OffHeapHLL.mergeWords(chunk(index / sketchesPerChunk), (index % sketchesPerChunk) * sketchSize, other.getRegisters(), words, r);
+        setHashFunction(hashFunction.merged(other.getHashFunction()));
+        return true;
+    }
+
+    public long estimate(int index) throws IOException {
+        checkIndex(index);
+        return HLL.estimate(chunk(index / sketchesPerChunk), (index % sketchesPerChunk) * sketchSize, p, r);
+    }
+
+    public int getP() {
+        return p;
+    }
+
+    public int getR() {
+        return r;
+    }
+
+    public HashFunction getHashFunction() {
+        return hashFunction;
+    }
+
+    // written to the mapped header, so force() makes it durable together with the registers
+    void setHashFunction(HashFunction hashFunction) {
+        if(hashFunction != this.hashFunction) {
+            header.put(HASH_ID_POSITION, (byte) hashFunction.getId());
+            this.hashFunction = hashFunction;
+        }
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    // write all updated registers to the file, only the pages changed since the last force() are written.
+    public void force() {
+        header.force();
+        for(MappedByteBuffer chunk : chunks) {
+            if(chunk != null)
+                chunk.force();
+        }
+    }
+
+    // the mappings are released by the GC once the buffers are unreachable, updates already made are not lost
+    // as they are in the page cache, call force() first to be sure they reached the disk.
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
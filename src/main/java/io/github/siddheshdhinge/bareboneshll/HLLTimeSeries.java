@@ -0,0 +1,189 @@
+package io.github.siddheshdhinge.bareboneshll;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+// HLLs of one series over time, rolled up into coarser levels, e.g. minutes, hours and days, so that a distinct count
+// over a long range merges a few coarse sketches instead of one sketch per bucket:
+//
+//   HLLTimeSeries series = new HLLTimeSeries(12, 6, 60_000, 60, 24);   // minutes of 60_000 ms, hours of 60, days of 24
+//
+// level 0 has a HLL per bucket of bucketWidth time units, and every level above has a HLL per fanOut nodes of the
+// level below, which is the merge of them. add() and merge() update the node of every level, so the coarse levels are
+// kept up to date incrementally and are never recomputed. a range query takes the coarsest nodes that cover the range:
+// at most fanOut - 1 at each end of every level below the top, and the top level nodes in between, e.g. at most
+// 59 + 23 + 7 + 23 + 59 merges for a week of minutes instead of 10080. nodes are only created for buckets that got
+// values. keep a series per key for keyed counts. not thread safe.
+public class HLLTimeSeries {
+    // below variables need to be serialized
+    private final int p;
+    private final int r;
+    private final long bucketWidth;
+    private final int[] fanOuts;
+    // the nodes of each level by index, node i of level l covers the buckets [i * span[l], (i + 1) * span[l])
+    private final List<TreeMap<Long, HLL>> levels;
+
+    // below variables are derived
+    // number of level 0 buckets covered by a node of each level
+    private final long[] spans;
+
+    public HLLTimeSeries(int p, int r, long bucketWidth, int... fanOuts) {
+        if(bucketWidth < 1)
+            throw new IllegalArgumentException("invalid bucketWidth: " + bucketWidth);
+        if(fanOuts == null)
+            throw new IllegalArgumentException("fanOuts is null");
+        HLL.checkPR(p, r);
+
+        this.p = p;
+        this.r = r;
+        this.bucketWidth = bucketWidth;
+        this.fanOuts = fanOuts.clone();
+        this.spans = new long[fanOuts.length + 1];
+        this.levels = new ArrayList<>(fanOuts.length + 1);
+
+        spans[0] = 1;
+        for(int l = 0; l < fanOuts.length; l++) {
+            if(fanOuts[l] < 2)
+                throw new IllegalArgumentException("invalid fanOut: " + fanOuts[l]);
+            if(spans[l] > Long.MAX_VALUE / fanOuts[l] / bucketWidth)
+                throw new IllegalArgumentException("levels span more than 2^63 time units");
+            spans[l + 1] = spans[l] * fanOuts[l];
+        }
+        for(int l = 0; l <= fanOuts.length; l++)
+            levels.add(new TreeMap<Long, HLL>());
+    }
+
+    public int getLevels() {
+        return levels.size();
+    }
+
+    public long getBucketWidth() {
+        return bucketWidth;
+    }
+
+    // number of HLLs held over all levels
+    public int size() {
+        int size = 0;
+        for(TreeMap<Long, HLL> level : levels)
+            size += level.size();
+        return size;
+    }
+
+    // the node of a level holding bucket, created if create is set, null if it is not there otherwise
+    private HLL node(int level, long bucket, boolean create) {
+        long index = Math.floorDiv(bucket, spans[level]);
+        TreeMap<Long, HLL> nodes = levels.get(level);
+        HLL node = nodes.get(index);
+        if(node == null && create) {
+            node = new HLL(p, r);
+            nodes.put(index, node);
+        }
+        return node;
+    }
+
+    // add an already hashed value seen at timestamp, to the node of every level
+    public void add(long value, long timestamp) {
+        long bucket = Math.floorDiv(timestamp, bucketWidth);
+        for(int l = 0; l < levels.size(); l++)
+            node(l, bucket, true).add(value);
+    }
+
+    // false if the node of bucket on any level must not take sketches of hashFunction, see HashFunction.merged()
+    private boolean isCompatible(long bucket, HashFunction hashFunction) {
+        for(int l = 0; l < levels.size(); l++) {
+            HLL node = node(l, bucket, false);
+            if(node != null && !node.getHashFunction().isCompatible(hashFunction))
+                return false;
+        }
+        return true;
+    }
+
+    // merge a sketch of the values seen within the bucket of timestamp, e.g. a HLL of one minute, into the node of
+    // every level. returns false without merging if its p or r differ, or its hash function differs from the one of
+    // a node.
+    public boolean merge(long timestamp, HLL sketch) {
+        if(sketch == null || sketch.getP() != p || sketch.getR() != r)
+            return false;
+        long bucket = Math.floorDiv(timestamp, bucketWidth);
+        if(!isCompatible(bucket, sketch.getHashFunction()))
+            return false;
+        for(int l = 0; l < levels.size(); l++)
+            node(l, bucket, true).merge(sketch);
+        return true;
+    }
+
+    // merge a sketch serialized with HLL.serialize() straight from the length bytes at offset in array, like
+    // merge(long, HLL). returns false if its p or r or hash function differ.
+    public boolean mergeFrom(long timestamp, byte[] array, int offset, int length) {
+        long bucket = Math.floorDiv(timestamp, bucketWidth);
+        // an invalid range is left to HLL.mergeFrom() to reject
+        if(length >= 6 && offset >= 0 && offset <= array.length - length
+                && !isCompatible(bucket, HashFunction.fromHeader(array[offset + length - 1])))
+            return false;
+        // the bottom node is only kept once the sketch merged into it
+        HLL bottom = node(0, bucket, false);
+        boolean created = bottom == null;
+        if(created)
+            bottom = new HLL(p, r);
+        if(!bottom.mergeFrom(array, offset, length))
+            return false;
+        if(created)
+            levels.get(0).put(bucket, bottom);
+        for(int l = 1; l < levels.size(); l++)
+            node(l, bucket, true).mergeFrom(array, offset, length);
+        return true;
+    }
+
+    // the coarsest nodes covering the buckets that overlap [from, to). at every level the nodes at both ends that
+    // are not aligned to a node of the level above are taken, the rest is covered by the level above.
+    private List<HLL> cover(long from, long to) {
+        if(to < from)
+            throw new IllegalArgumentException("invalid range from: " + from + " to: " + to);
+        List<HLL> cover = new ArrayList<>();
+        long start = Math.floorDiv(from, bucketWidth);
+        // exclusive
+        long end = -Math.floorDiv(-to, bucketWidth);
+        int top = levels.size() - 1;
+        for(int l = 0; l < top && start < end; l++) {
+            int fanOut = fanOuts[l];
+            TreeMap<Long, HLL> nodes = levels.get(l);
+            while(start < end && Math.floorMod(start, fanOut) != 0)
+                addNode(cover, nodes, start++);
+            while(end > start && Math.floorMod(end, fanOut) != 0)
+                addNode(cover, nodes, --end);
+            start = start / fanOut;
+            end = end / fanOut;
+        }
+        if(start < end)
+            cover.addAll(levels.get(top).subMap(start, end).values());
+        return cover;
+    }
+
+    private static void addNode(List<HLL> cover, TreeMap<Long, HLL> nodes, long index) {
+        HLL node = nodes.get(index);
+        if(node != null)
+            cover.add(node);
+    }
+
+    // HLL of the values in the buckets that overlap [from, to), a new sketch
+    public HLL query(long from, long to) {
+        HLL hll = new HLL(p, r);
+        hll.mergeAll(cover(from, to));
+        return hll;
+    }
+
+    // estimate of the distinct values in the buckets that overlap [from, to)
+    public long estimate(long from, long to) {
+        return query(from, to).estimate();
+    }
+
+    // drop the nodes of every level whose buckets are all before the bucket of timestamp, to bound the history kept
+    public void expire(long timestamp) {
+        long bucket = Math.floorDiv(timestamp, bucketWidth);
+        for(int l = 0; l < levels.size(); l++) {
+            long index = Math.floorDiv(bucket, spans[l]);
+            levels.get(l).headMap(index, false).clear();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package io.github.siddheshdhinge.bareboneshll;
+
+import net.openhft.hashing.Access;
+import net.openhft.hashing.LongHashFunction;
+
+import java.nio.ByteBuffer;
+
+// the hash function a sketch hashes its typed adds (addInt(), addChars(), ...) with. its id is serialized in the high
+// 4 bits of the r byte, sketches that name different hash functions do not merge. EXTERNAL (id 0) is a sketch that is
+// only fed hashes computed by the caller with add(long), which is also what sketches serialized before the id existed
+// read back as. it merges with sketches of any hash function, and takes on the hash function of the first one it
+// absorbs, see merged(), so it does not mix the registers of two different ones.
+public enum HashFunction {
+    EXTERNAL(0),
+    XX(1),
+    XX3(2),
+    WY_3(3),
+    MURMUR_3(4),
+    CITY_1_1(5),
+    FARM_NA(6),
+    METRO(7);
+
+    // position of the id in the serialized r byte, the low 4 bits are r and the layout flag
+    static final int HEADER_SHIFT = 4;
+    static final int HEADER_MASK = 0xf0;
+
+    private static final HashFunction[] BY_ID = values();
+
+    private final int id;
+
+    HashFunction(int id) {
+        this.id = id;
+    }
+
+    // the functions by id, in their own class so that zero-allocation-hashing is only loaded by the first typed add
+    // and sketches fed with add(long) work without it on the class path
+    private static final class Functions {
+        static final LongHashFunction[] BY_ID = {
+                null,
+                LongHashFunction.xx(),
+                LongHashFunction.xx3(),
+                LongHashFunction.wy_3(),
+                LongHashFunction.murmur_3(),
+                LongHashFunction.city_1_1(),
+                LongHashFunction.farmNa(),
+                LongHashFunction.metro()
+        };
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    // the wrapped function, null for EXTERNAL
+    public LongHashFunction getFunction() {
+        return Functions.BY_ID[id];
+    }
+
+    public static HashFunction fromId(int id) {
+        if(id < 0 || id >= BY_ID.length)
+            throw new IllegalArgumentException("unknown hash function id: " + id);
+        return BY_ID[id];
+    }
+
+    // the hash function of a serialized r byte
+    static HashFunction fromHeader(int rByte) {
+        return fromId((rByte & HEADER_MASK) >>> HEADER_SHIFT);
+    }
+
+    // rByte with the id of this hash function
+    int toHeader(int rByte) {
+        return rByte | (id << HEADER_SHIFT);
+    }
+
+    // false if the sketches of the two hash functions must not be merged
+    boolean isCompatible(HashFunction other) {
+        return this == other || this == EXTERNAL || other == EXTERNAL;
+    }
+
+    // the hash function of a sketch of this one after a sketch of the compatible other was merged into it
+    HashFunction merged(HashFunction other) {
+        return this == EXTERNAL ? other : this;
+    }
+
+    private LongHashFunction function() {
+        LongHashFunction function = Functions.BY_ID[id];
+        if(function == null)
+            throw new IllegalStateException("the sketch has no hash function, add hashes with add(long) or create it with one");
+        return function;
+    }
+
+    long hashInt(int value) {
+        return function().hashInt(value);
+    }
+
+    long hashLong(long value) {
+        return function().hashLong(value);
+    }
+
+    long hashBytes(byte[] bytes, int off, int len) {
+        return function().hashBytes(bytes, off, len);
+    }
+
+    // the chars in native byte order, like LongHashFunction.hashChars(String), for any CharSequence
+    long hashChars(CharSequence chars) {
+        if(chars instanceof String)
+            return function().hashChars((String) chars);
+        return function().hash(chars, Access.<CharSequence>toNativeCharSequence(), 0, chars.length() * 2L);
+    }
+
+    // the bytes between position and limit of the buffer, which are not changed. same value as
+    // LongHashFunction.hashBytes(ByteBuffer), but that reads direct buffers through JDK internals that are not
+    // exported from Java 16 on, so they go through the public ByteBuffer accessors instead.
+    long hashBytes(ByteBuffer buffer) {
+        return hashBytes(buffer, buffer.position(), buffer.remaining());
+    }
+
+    // the len bytes at off in the buffer, independent of its position, limit and byte order
+    long hashBytes(ByteBuffer buffer, int off, int len) {
+        if(buffer.hasArray())
+            return function().hashBytes(buffer.array(), buffer.arrayOffset() + off, len);
+        return function().hash(buffer, Access.toByteBuffer(), off, len);
+    }
+}
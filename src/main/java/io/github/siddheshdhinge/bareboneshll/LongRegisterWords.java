@@ -0,0 +1,324 @@
+package io.github.siddheshdhinge.bareboneshll;
+
+import java.nio.ByteBuffer;
+
+// the 64 bit word layout of the registers. a long word holds 16 registers of 4 bits, 12 of 5 bits or 10 of 6 bits,
+// twice as many as an int word, so merges and estimates take half the loop trips, and r = 5 and 6 leave the top
+// 4 bits of every 64 unused instead of the top 2 of every 32. registers are ordered like in the int layout, the
+// first register of a word in its highest bits and the unused registers of the last word in its lowest bits.
+// long word j therefore holds exactly the registers of the int words 2j and 2j + 1, with the first one shifted
+// up by 32 / r * r bits, so converting between the layouts is a shift per word.
+final class LongRegisterWords {
+    // set in the serialized r byte of sketches with the long word layout, r itself is at most 6
+    static final int LAYOUT_FLAG = 0x08;
+
+    // highest bit of every register in a word
+    private static final long HIGH_BITS_4 = 0x8888888888888888L;
+    private static final long HIGH_BITS_5 = 0x0842108421084210L;
+    private static final long HIGH_BITS_6 = 0x0820820820820820L;
+    // all bits of a word that belong to a register
+    private static final long REGISTER_BITS_4 = 0xffffffffffffffffL;
+    private static final long REGISTER_BITS_5 = 0x0fffffffffffffffL;
+    private static final long REGISTER_BITS_6 = 0x0fffffffffffffffL;
+    private static final double[] PRE_POW_2_K = new double[64];
+    static {
+        for(int i = 0; i < PRE_POW_2_K.length; i++) {
+            PRE_POW_2_K[i] = Math.pow(2, -i);
+        }
+    }
+
+    private LongRegisterWords() {
+    }
+
+    // number of long words holding totalRegisters registers of r bits
+    static int words(int totalRegisters, int r) {
+        int registersPerWord = 64 / r;
+        return totalRegisters / registersPerWord + (totalRegisters % registersPerWord == 0 ? 0 : 1);
+    }
+
+    // number of int words holding totalRegisters registers of r bits
+    static int intWords(int totalRegisters, int r) {
+        int registersPerWord = 32 / r;
+        return totalRegisters / registersPerWord + (totalRegisters % registersPerWord == 0 ? 0 : 1);
+    }
+
+    // shift of the first int word within a long word
+    private static int halfShift(int r) {
+        return (32 / r) * r;
+    }
+
+    // dst = the int words src in the long layout, dst has words(totalRegisters, r) elements
+    static void toLongWords(int[] src, long[] dst, int r) {
+        int shift = halfShift(r);
+        for(int j = 0; j < dst.length; j++) {
+            long high = src[2 * j];
+            long low = 2 * j + 1 < src.length ? src[2 * j + 1] & 0xffffffffL : 0;
+            dst[j] = (high << shift) | low;
+        }
+    }
+
+    // dst = the long words src in the int layout, dst has intWords(totalRegisters, r) elements
+    static void toIntWords(long[] src, int[] dst, int r) {
+        int shift = halfShift(r);
+        long lowMask = (1L << shift) - 1;
+        for(int j = 0; j < src.length; j++) {
+            dst[2 * j] = (int) (src[j] >>> shift);
+            // an odd number of int words leaves the low half of the last long word unused
+            if(2 * j + 1 < dst.length)
+                dst[2 * j + 1] = (int) (src[j] & lowMask);
+        }
+    }
+
+    // the value of register index
+    static int get(long[] words, int index, int r) {
+        int registersPerWord = 64 / r;
+        int registerOffset = (registersPerWord - index % registersPerWord - 1) * r;
+        return (int) (words[index / registersPerWord] >>> registerOffset) & ((1 << r) - 1);
+    }
+
+    // raise register index to value if it is smaller, returns its previous value. registersPerWord is 64 / r, passed
+    // in by the sketches that have it at hand so that add() does not divide twice
+    static int max(long[] words, int index, int value, int r, int registersPerWord) {
+        int bucketIndex = index / registersPerWord;
+        int registerOffset = (registersPerWord - index % registersPerWord - 1) * r;
+        long mask = (long) ((1 << r) - 1) << registerOffset;
+        long bucketValue = words[bucketIndex];
+        int prevValue = (int) ((bucketValue & mask) >>> registerOffset);
+        if(prevValue < value)
+            words[bucketIndex] = (bucketValue & ~mask) | ((long) value << registerOffset);
+        return prevValue;
+    }
+
+    // add the hashes in [from, to) to the registers of a sketch with 2^p registers, like add() of HLL. hist is the
+    // register histogram to keep up to date, or null. specialized per register width like HLL.addAll().
+    static void addAll(long[] words, long[] hashes, int from, int to, int p, int r, int[] hist) {
+        switch(r) {
+            case 4: addAll(words, hashes, from, to, p, 4, 16, hist);
+                break;
+            case 5: addAll(words, hashes, from, to, p, 5, 12, hist);
+                break;
+            default: addAll(words, hashes, from, to, p, 6, 10, hist);
+                break;
+        }
+    }
+
+    private static void addAll(long[] words, long[] hashes, int from, int to, int p, int r, int registersPerWord, int[] hist) {
+        final int mask = (1 << r) - 1;
+        final int indexShift = 64 - p;
+        final long stopBit = 1L << indexShift;
+        for(int i = from; i < to; i++) {
+            long value = hashes[i];
+            int registerIndex = (int) (value >>> indexShift);
+            int cnt = Math.min(Long.numberOfTrailingZeros(value | stopBit) + 1, mask);
+            int bucketIndex = registerIndex / registersPerWord;
+            int registerOffset = (registersPerWord - 1 - registerIndex % registersPerWord) * r;
+            long bucketValue = words[bucketIndex];
+            int prevValue = (int) (bucketValue >>> registerOffset) & mask;
+            if(prevValue < cnt) {
+                words[bucketIndex] = (bucketValue & ~((long) mask << registerOffset)) | ((long) cnt << registerOffset);
+                if(hist != null) {
+                    hist[prevValue]--;
+                    hist[cnt]++;
+                }
+            }
+        }
+    }
+
+    // register wise max of a and b, the same borrow free comparison as RegisterWords.max() on 64 bits
+    private static long max(long a, long b, long highBits, long registerBits, int r) {
+        long lowBitsGe = ((a | highBits) - (b & ~highBits & registerBits)) & highBits;
+        long ge = ((a & ~b) | (~(a ^ b) & lowBitsGe)) & highBits;
+        long mask = (ge << 1) - (ge >>> (r - 1));
+        return (a & mask) | (b & ~mask);
+    }
+
+    static long max4(long a, long b) {
+        return max(a, b, HIGH_BITS_4, REGISTER_BITS_4, 4);
+    }
+
+    static long max5(long a, long b) {
+        return max(a, b, HIGH_BITS_5, REGISTER_BITS_5, 5);
+    }
+
+    static long max6(long a, long b) {
+        return max(a, b, HIGH_BITS_6, REGISTER_BITS_6, 6);
+    }
+
+    // dst[i] = register wise max(dst[i], src[i]) for i in [from, to)
+    static void merge(long[] dst, long[] src, int from, int to, int r) {
+        switch(r) {
+            case 4:
+                for(int i = from; i < to; ++i)
+                    dst[i] = max4(dst[i], src[i]);
+                break;
+            case 5:
+                for(int i = from; i < to; ++i)
+                    dst[i] = max5(dst[i], src[i]);
+                break;
+            case 6:
+                for(int i = from; i < to; ++i)
+                    dst[i] = max6(dst[i], src[i]);
+                break;
+        }
+    }
+
+    // register wise max that also moves the registers that grow to their new value in the histogram.
+    // only words that differ are looked at register by register.
+    static void mergeTracked(long[] dst, long[] src, int r, int[] hist) {
+        int registersPerWord = 64 / r;
+        long mask = (1L << r) - 1;
+        for(int i = 0; i < dst.length; ++i) {
+            long thisBucket = dst[i];
+            long otherBucket = src[i];
+            if(thisBucket == otherBucket)
+                continue;
+            long word = 0;
+            for(int j = 0; j < registersPerWord; ++j) {
+                int thisVal = (int) ((thisBucket >>> (r * j)) & mask);
+                int otherVal = (int) ((otherBucket >>> (r * j)) & mask);
+                if(thisVal < otherVal) {
+                    hist[thisVal]--;
+                    hist[otherVal]++;
+                    thisVal = otherVal;
+                }
+                word |= (long) thisVal << (r * j);
+            }
+            dst[i] = word;
+        }
+    }
+
+    // number of registers in the word that are 0, see RegisterWords.zeros()
+    private static int zeros(long word, long highBits, long registerBits, int registersPerWord) {
+        long nonZero = (((word & ~highBits & registerBits) + (~highBits & registerBits)) | word) & highBits;
+        return registersPerWord - Long.bitCount(nonZero);
+    }
+
+    static int zeros(long word, int r) {
+        switch(r) {
+            case 4: return zeros(word, HIGH_BITS_4, REGISTER_BITS_4, 16);
+            case 5: return zeros(word, HIGH_BITS_5, REGISTER_BITS_5, 12);
+            default: return zeros(word, HIGH_BITS_6, REGISTER_BITS_6, 10);
+        }
+    }
+
+    // sum of 2^-k over all registers k of the word, as the sum of its two int words
+    static double sum(long word, int r) {
+        int shift = halfShift(r);
+        return RegisterWords.sum((int) (word >>> shift), r) + RegisterWords.sum((int) (word & ((1L << shift) - 1)), r);
+    }
+
+    // results[0] = sum of 2^-k, results[1] = number of zero registers over the first totalRegisters registers
+    static void estimate(long[] words, int totalRegisters, int r, double[] results) {
+        int registersPerWord = 64 / r;
+        int completeWords = totalRegisters / registersPerWord;
+        int zeroRegisters = 0;
+        double sum = 0;
+        // the sums of the two int words, RegisterWords.sum5() and sum6() only look at the low 30 bits of the low one
+        switch(r) {
+            case 4:
+                for(int i = 0; i < completeWords; i++) {
+                    long cur = words[i];
+                    zeroRegisters += zeros(cur, HIGH_BITS_4, REGISTER_BITS_4, 16);
+                    sum = sum + (RegisterWords.sum4((int) (cur >>> 32)) + RegisterWords.sum4((int) cur));
+                }
+                break;
+            case 5:
+                for(int i = 0; i < completeWords; i++) {
+                    long cur = words[i];
+                    zeroRegisters += zeros(cur, HIGH_BITS_5, REGISTER_BITS_5, 12);
+                    sum = sum + (RegisterWords.sum5((int) (cur >>> 30)) + RegisterWords.sum5((int) cur));
+                }
+                break;
+            default:
+                for(int i = 0; i < completeWords; i++) {
+                    long cur = words[i];
+                    zeroRegisters += zeros(cur, HIGH_BITS_6, REGISTER_BITS_6, 10);
+                    sum = sum + (RegisterWords.sum6((int) (cur >>> 30)) + RegisterWords.sum6((int) cur));
+                }
+                break;
+        }
+
+        int remainingRegisters = totalRegisters % registersPerWord;
+        if(remainingRegisters > 0) {
+            long last = words[completeWords];
+            for(int j = registersPerWord - 1; j >= registersPerWord - remainingRegisters; j--) {
+                int k = (int) (last >>> (r * j)) & ((1 << r) - 1);
+                zeroRegisters += ((k == 0) ? 1 : 0);
+                sum = sum + PRE_POW_2_K[k];
+            }
+        }
+
+        results[0] = sum;
+        results[1] = zeroRegisters;
+    }
+
+    // estimate() over the big-endian long words of a sketch with 2^p registers of r bits at offset in buffer
+    static void estimate(ByteBuffer buffer, int offset, int p, int r, double[] results) {
+        int totalRegisters = 1 << p;
+        int registersPerWord = 64 / r;
+        int completeWords = totalRegisters / registersPerWord;
+        int zeroRegisters = 0;
+        double sum = 0;
+        for(int i = 0; i < completeWords; i++) {
+            long cur = buffer.getLong(offset + i * 8);
+            zeroRegisters += zeros(cur, r);
+            sum = sum + sum(cur, r);
+        }
+
+        int remainingRegisters = totalRegisters % registersPerWord;
+        if(remainingRegisters > 0) {
+            long last = buffer.getLong(offset + completeWords * 8);
+            for(int j = registersPerWord - 1; j >= registersPerWord - remainingRegisters; j--) {
+                int k = (int) (last >>> (r * j)) & ((1 << r) - 1);
+                zeroRegisters += ((k == 0) ? 1 : 0);
+                sum = sum + PRE_POW_2_K[k];
+            }
+        }
+
+        results[0] = sum;
+        results[1] = zeroRegisters;
+    }
+
+    // add the number of registers holding each value among the first totalRegisters registers of the words to hist
+    static void histogram(long[] words, int totalRegisters, int r, int[] hist) {
+        int registersPerWord = 64 / r;
+        int completeWords = totalRegisters / registersPerWord;
+        // constant register widths, so that the JIT unrolls the inner loop
+        switch(r) {
+            case 4: histogram(words, completeWords, 4, 16, hist);
+                break;
+            case 5: histogram(words, completeWords, 5, 12, hist);
+                break;
+            default: histogram(words, completeWords, 6, 10, hist);
+                break;
+        }
+
+        int remainingRegisters = totalRegisters % registersPerWord;
+        if(remainingRegisters > 0) {
+            long last = words[completeWords];
+            for(int j = registersPerWord - 1; j >= registersPerWord - remainingRegisters; j--)
+                hist[(int) (last >>> (r * j)) & ((1 << r) - 1)]++;
+        }
+    }
+
+    // the words are split into their two int words, int shifts are cheaper and the shorter loops get unrolled
+    private static void histogram(long[] words, int len, int r, int registersPerWord, int[] hist) {
+        int mask = (1 << r) - 1;
+        int half = registersPerWord / 2;
+        int shift = half * r;
+        for(int i = 0; i < len; i++) {
+            long word = words[i];
+            // at low cardinalities most words are 0
+            if(word == 0) {
+                hist[0] += registersPerWord;
+                continue;
+            }
+            int high = (int) (word >>> shift);
+            int low = (int) word;
+            for(int j = 0; j < half; j++)
+                hist[(high >>> (r * j)) & mask]++;
+            for(int j = 0; j < half; j++)
+                hist[(low >>> (r * j)) & mask]++;
+        }
+    }
+}
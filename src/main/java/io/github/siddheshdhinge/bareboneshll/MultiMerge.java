@@ -0,0 +1,137 @@
+package io.github.siddheshdhinge.bareboneshll;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// register wise max of many register arrays into one, used by mergeAll().
+// the words are merged block by block, each block of the destination takes the max of all sources before moving on,
+// so it stays in the L1 cache instead of being streamed through once per source like repeated merge() calls do.
+// large merges split the blocks over the common ForkJoinPool, the blocks are disjoint so no synchronization is needed.
+final class MultiMerge {
+    // 4 KB of destination words per block
+    private static final int BLOCK_WORDS = 1024;
+    // smaller register arrays are merged on the calling thread, p = 16 is 8k to 13k words depending on r
+    private static final int PARALLEL_MIN_WORDS = 8192;
+
+    private MultiMerge() {
+    }
+
+    // dst = register wise max of dst and the first n arrays of srcs, all having the same length and register width r
+    static void merge(int[] dst, int[][] srcs, int n, int r) {
+        if(n == 0)
+            return;
+        if(dst.length >= PARALLEL_MIN_WORDS && n > 1 && ForkJoinPool.getCommonPoolParallelism() > 1)
+            ForkJoinPool.commonPool().invoke(new MergeTask(dst, srcs, n, r, 0, dst.length));
+        else
+            mergeBlocks(dst, srcs, n, r, 0, dst.length);
+    }
+
+    // same as merge() for register arrays in the long word layout, see LongRegisterWords
+    static void merge(long[] dst, long[][] srcs, int n, int r) {
+        if(n == 0)
+            return;
+        if(dst.length * 2 >= PARALLEL_MIN_WORDS && n > 1 && ForkJoinPool.getCommonPoolParallelism() > 1)
+            ForkJoinPool.commonPool().invoke(new LongMergeTask(dst, srcs, n, r, 0, dst.length));
+        else
+            mergeBlocks(dst, srcs, n, r, 0, dst.length);
+    }
+
+    private static void mergeBlocks(int[] dst, int[][] srcs, int n, int r, int from, int to) {
+        for(int block = from; block < to; block += BLOCK_WORDS) {
+            int blockEnd = Math.min(block + BLOCK_WORDS, to);
+            for(int j = 0; j < n; j++)
+                mergeRange(dst, srcs[j], block, blockEnd, r);
+        }
+    }
+
+    // blocks of the same 4 KB as the int words
+    private static void mergeBlocks(long[] dst, long[][] srcs, int n, int r, int from, int to) {
+        for(int block = from; block < to; block += BLOCK_WORDS / 2) {
+            int blockEnd = Math.min(block + BLOCK_WORDS / 2, to);
+            for(int j = 0; j < n; j++)
+                LongRegisterWords.merge(dst, srcs[j], block, blockEnd, r);
+        }
+    }
+
+    private static void mergeRange(int[] dst, int[] src, int from, int to, int r) {
+        if(RegisterWords.VECTORIZED) {
+            VectorKernels.merge(dst, src, from, to, r);
+            return;
+        }
+        switch(r) {
+            case 4:
+                for(int i = from; i < to; ++i)
+                    dst[i] = RegisterWords.max4(dst[i], src[i]);
+                break;
+            case 5:
+                for(int i = from; i < to; ++i)
+                    dst[i] = RegisterWords.max5(dst[i], src[i]);
+                break;
+            case 6:
+                for(int i = from; i < to; ++i)
+                    dst[i] = RegisterWords.max6(dst[i], src[i]);
+                break;
+        }
+    }
+
+    // halves the word range until it is a few blocks long
+    private static final class MergeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int[] dst;
+        private final int[][] srcs;
+        private final int n;
+        private final int r;
+        private final int from;
+        private final int to;
+
+        MergeTask(int[] dst, int[][] srcs, int n, int r, int from, int to) {
+            this.dst = dst;
+            this.srcs = srcs;
+            this.n = n;
+            this.r = r;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from <= 4 * BLOCK_WORDS) {
+                mergeBlocks(dst, srcs, n, r, from, to);
+                return;
+            }
+            // split on a block boundary
+            int mid = from + ((to - from) / 2 / BLOCK_WORDS) * BLOCK_WORDS;
+            invokeAll(new MergeTask(dst, srcs, n, r, from, mid), new MergeTask(dst, srcs, n, r, mid, to));
+        }
+    }
+
+    private static final class LongMergeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final long[] dst;
+        private final long[][] srcs;
+        private final int n;
+        private final int r;
+        private final int from;
+        private final int to;
+
+        LongMergeTask(long[] dst, long[][] srcs, int n, int r, int from, int to) {
+            this.dst = dst;
+            this.srcs = srcs;
+            this.n = n;
+            this.r = r;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            int blockWords = BLOCK_WORDS / 2;
+            if(to - from <= 4 * blockWords) {
+                mergeBlocks(dst, srcs, n, r, from, to);
+                return;
+            }
+            int mid = from + ((to - from) / 2 / blockWords) * blockWords;
+            invokeAll(new LongMergeTask(dst, srcs, n, r, from, mid), new LongMergeTask(dst, srcs, n, r, mid, to));
+        }
+    }
+}
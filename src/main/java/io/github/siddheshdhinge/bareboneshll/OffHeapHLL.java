@@ -0,0 +1,247 @@
+package io.github.siddheshdhinge.bareboneshll;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// HLL whose registers live outside of the java heap, in a (direct) ByteBuffer.
+// the registers are the same bit-packed words as HLL.registers, stored big-endian at offset in the buffer,
+// so the bytes of a sketch are exactly the register part of HLL.serialize().
+// many sketches can share one buffer, see HLLSlab. not thread safe.
+public class OffHeapHLL {
+    // below variables need to be serialized
+    private final int p;
+    private final int r;
+    private final ByteBuffer buffer;
+    private final int offset;
+    // EXTERNAL until a sketch of a hash function is merged, see HashFunction.merged(). it is kept by this object, the
+    // buffer only holds the registers, so a new view on the same bytes starts out as EXTERNAL again. views of a
+    // HLLStore use the one of the store instead
+    private HashFunction hashFunction;
+    // the store the registers are mapped from, see HLLStore.get()
+    HLLStore store;
+
+    // below variables are derived
+    private final int m;
+    private final int maxRegisterValue;
+    private final int regPerDatatype;
+    private final int totalRegisters;
+    // the slab the sketch was allocated from until it is released, see HLLSlab.release()
+    HLLSlab slab;
+
+    // below are constants
+    private static final int DEFAULT_P = 12;
+    private static final int DEFAULT_R = 6;
+    private static final int DT_WIDTH = 32;
+
+    public OffHeapHLL() {
+        this(DEFAULT_P, DEFAULT_R);
+    }
+
+    public OffHeapHLL(int p) {
+        this(p, DEFAULT_R);
+    }
+
+    // a sketch with a direct buffer of its own, prefer HLLSlab when many sketches are needed.
+    public OffHeapHLL(int p, int r) {
+        this(ByteBuffer.allocateDirect(sizeInBytes(p, r)), 0, p, r);
+    }
+
+    // a sketch over the sizeInBytes(p, r) bytes at offset in buffer, the bytes are used as they are, i.e. a zeroed
+    // range is an empty sketch and a range holding registers written earlier is that sketch again.
+    OffHeapHLL(ByteBuffer buffer, int offset, int p, int r) {
+        HLL.checkPR(p, r);
+
+        this.p = p;
+        this.r = r;
+        this.regPerDatatype = DT_WIDTH / r;
+        this.totalRegisters = (1 << p);
+        this.m = totalRegisters / regPerDatatype + (totalRegisters % regPerDatatype == 0 ? 0 : 1);
+        this.maxRegisterValue = ((1 << r) - 1);
+
+        if(offset < 0 || offset > buffer.capacity() - m * 4)
+            throw new IllegalArgumentException("buffer too small for " + (m * 4) + " bytes at offset " + offset);
+        // own view so the byte order and position of the callers buffer do not matter
+        this.buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        this.offset = offset;
+        this.hashFunction = HashFunction.EXTERNAL;
+    }
+
+    // number of buffer bytes a sketch with the given p and r takes
+    public static int sizeInBytes(int p, int r) {
+        HLL.checkPR(p, r);
+        int regPerDatatype = DT_WIDTH / r;
+        int totalRegisters = 1 << p;
+        return (totalRegisters / regPerDatatype + (totalRegisters % regPerDatatype == 0 ? 0 : 1)) * 4;
+    }
+
+    int getP() {
+        return p;
+    }
+
+    int getR() {
+        return r;
+    }
+
+    int getOffset() {
+        return offset;
+    }
+
+    public HashFunction getHashFunction() {
+        return store != null ? store.getHashFunction() : hashFunction;
+    }
+
+    // a view of a store takes on the hash function for the whole store, so its sketches can not mix hash functions
+    private void setHashFunction(HashFunction hashFunction) {
+        if(store != null)
+            store.setHashFunction(hashFunction);
+        else
+            this.hashFunction = hashFunction;
+    }
+
+    public void add(long value) {
+        add(buffer, offset, p, r, regPerDatatype, maxRegisterValue, value);
+    }
+
+    // add on the registers at offset in a big-endian buffer, without a view on them, see HLLStore.add()
+    static void add(ByteBuffer buffer, int offset, int p, int r, int regPerDatatype, int maxRegisterValue, long value) {
+        int registerIndex = (int) (value >>> (64 - p));
+        value = value | (1L << (64 - p));
+        int cnt = Long.numberOfTrailingZeros(value) + 1;
+        cnt = Math.min(cnt, maxRegisterValue);
+
+        int bucketPosition = offset + (registerIndex / regPerDatatype) * 4;
+        int registerOffset = (regPerDatatype - registerIndex % regPerDatatype - 1) * r;
+        int bucketValue = buffer.getInt(bucketPosition);
+        int prevValue = (bucketValue >>> registerOffset) & maxRegisterValue;
+        if(prevValue < cnt)
+            buffer.putInt(bucketPosition, (bucketValue & ~(maxRegisterValue << registerOffset)) | (cnt << registerOffset));
+    }
+
+    public void addAll(long[] hashes, int off, int len) {
+        if(hashes == null)
+            throw new IllegalArgumentException("hashes is null");
+        if(off < 0 || len < 0 || off > hashes.length - len)
+            throw new IllegalArgumentException("invalid range off: " + off + " len: " + len + " length: " + hashes.length);
+        for(int i = off; i < off + len; i++)
+            add(hashes[i]);
+    }
+
+    public void addAll(long[] hashes) {
+        addAll(hashes, 0, hashes == null ? 0 : hashes.length);
+    }
+
+    // words that do not change are not written back, so merging mostly equal sketches keeps the pages clean
+    public boolean merge(OffHeapHLL other) {
+        if (other == null)
+            return false;
+        if (this.p != other.p || this.r != other.r || !getHashFunction().isCompatible(other.getHashFunction()))
+            return false;
+
+        for(int i = 0; i < m; ++i) {
+            int position = offset + i * 4;
+            int thisBucket = buffer.getInt(position);
+            int word = RegisterWords.max(thisBucket, other.buffer.getInt(other.offset + i * 4), r);
+            if(word != thisBucket)
+                buffer.putInt(position, word);
+        }
+        setHashFunction(getHashFunction().merged(other.getHashFunction()));
+        return true;
+    }
+
+    public boolean merge(HLL other) {
+        if (other == null)
+            return false;
+        if (this.p != other.getP() || this.r != other.getR() || !getHashFunction().isCompatible(other.getHashFunction()))
+            return false;
+
+        mergeWords(buffer, offset, other.getRegisters(), m, r);
+        setHashFunction(getHashFunction().merged(other.getHashFunction()));
+        return true;
+    }
+
+    // merge of m words of registers into the ones at offset in a big-endian buffer, see HLLStore.merge()
+    static void mergeWords(ByteBuffer buffer, int offset, int[] otherRegisters, int m, int r) {
+        for(int i = 0; i < m; ++i) {
+            int position = offset + i * 4;
+            int thisBucket = buffer.getInt(position);
+            int word = RegisterWords.max(thisBucket, otherRegisters[i], r);
+            if(word != thisBucket)
+                buffer.putInt(position, word);
+        }
+    }
+
+    public long estimate() {
+        return HLL.estimate(buffer, offset, p, r);
+    }
+
+    // reset all registers to 0 and the hash function to EXTERNAL, the one of a store is kept for its other sketches
+    public void clear() {
+        if(store == null)
+            hashFunction = HashFunction.EXTERNAL;
+        for(int i = 0; i < m; i++)
+            buffer.putInt(offset + i * 4, 0);
+    }
+
+    // overwrite the registers and hash function with the ones of a HLL with the same p and r. a view of a store only
+    // takes a sketch whose hash function can be merged into the store.
+    public void copyFrom(HLL other) {
+        if (this.p != other.getP() || this.r != other.getR())
+            throw new IllegalArgumentException("p and r differ: " + other.getP() + ", " + other.getR());
+        if (store != null && !store.getHashFunction().isCompatible(other.getHashFunction()))
+            throw new IllegalArgumentException("hash function differs from the store: " + other.getHashFunction());
+        int[] otherRegisters = other.getRegisters();
+        for(int i = 0; i < m; i++)
+            buffer.putInt(offset + i * 4, otherRegisters[i]);
+        if(store != null)
+            setHashFunction(store.getHashFunction().merged(other.getHashFunction()));
+        else
+            hashFunction = other.getHashFunction();
+    }
+
+    public HLL toHLL() {
+        HLL hll = new HLL(p, r, getHashFunction());
+        int[] hllRegisters = hll.getRegisters();
+        for(int i = 0; i < m; i++)
+            hllRegisters[i] = buffer.getInt(offset + i * 4);
+        return hll;
+    }
+
+    // same format as HLL.serialize(), the registers are copied as they are stored
+    public byte[] serialize() {
+        byte[] array = new byte[m * 4 + 2];
+        ByteBuffer src = buffer.duplicate();
+        ((Buffer) src).position(offset);
+        src.get(array, 0, m * 4);
+
+        array[m * 4] = (byte) p;
+        array[m * 4 + 1] = (byte) getHashFunction().toHeader(r);
+        return array;
+    }
+
+    // reads every format of HLL.deserialize(). the int layout words of version 1 are copied into the buffer as they
+    // are, the long word layout and version 2 are read into a HLL first and converted.
+    public static OffHeapHLL deserialize(byte[] array) {
+        if (array == null || array.length < 6)
+            throw new IllegalArgumentException("array is null or smaller than 6 bytes");
+        int n = array.length;
+
+        int p = array[n - 2];
+        int r = array[n - 1];
+        if((r & LongRegisterWords.LAYOUT_FLAG) != 0 || WireFormat.header(ByteBuffer.wrap(array)) != null) {
+            HLL other = HLL.deserialize(array);
+            OffHeapHLL hll = new OffHeapHLL(other.getP(), other.getR());
+            hll.copyFrom(other);
+            return hll;
+        }
+
+        OffHeapHLL hll = new OffHeapHLL(p, r & HLL.R_MASK);
+        hll.hashFunction = HashFunction.fromHeader(r);
+        if((hll.m * 4) != (n - 2))
+            throw new IllegalArgumentException("HLL buffer invalid size: " + (n - 2) + " expected: " + hll.m);
+
+        hll.buffer.put(array, 0, n - 2);
+        ((Buffer) hll.buffer).clear();
+        return hll;
+    }
+}
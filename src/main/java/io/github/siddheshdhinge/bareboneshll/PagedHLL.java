@@ -0,0 +1,287 @@
+package io.github.siddheshdhinge.bareboneshll;
+
+// HLL for large p whose registers are split into fixed size pages that are only allocated on the first write.
+// a page that was never written is all zero, estimate() and merge() count it as such without allocating it, so a
+// sketch takes 4 KB per page touched so far, e.g. ~20 MB for a p = 30 sketch that has seen 5000 values, instead of
+// the ~850 MB a p = 30, r = 6 HLL allocates up front.
+// the words inside the pages are the same bit-packed words as HLL.registers. not thread safe.
+public class PagedHLL {
+    // below variables need to be serialized
+    private final int p;
+    private final int r;
+    private final int[][] pages;
+    // EXTERNAL until a sketch of a hash function is merged, see HashFunction.merged()
+    private HashFunction hashFunction = HashFunction.EXTERNAL;
+
+    // below variables are derived
+    private final int m;
+    private final int maxRegisterValue;
+    private final int regPerDatatype;
+    private final int totalRegisters;
+    private int allocatedPages;
+
+    // below are constants
+    private static final int DEFAULT_P = 20;
+    private static final int DEFAULT_R = 6;
+    private static final int DT_WIDTH = 32;
+    // 4 KB of register words per page
+    private static final int PAGE_SHIFT = 10;
+    private static final int PAGE_WORDS = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_WORDS - 1;
+    private static final double[] PRE_POW_2_K = new double[64]; // as largest r = 6, the max value of a register can be at max 63
+    static {
+        for(int i = 0; i< PRE_POW_2_K.length; i++) {
+            PRE_POW_2_K[i] = Math.pow(2, -i);
+        }
+    }
+
+    public PagedHLL() {
+        this(DEFAULT_P, DEFAULT_R);
+    }
+
+    public PagedHLL(int p) {
+        this(p, DEFAULT_R);
+    }
+
+    public PagedHLL(int p, int r) {
+        HLL.checkPR(p, r);
+
+        this.p = p;
+        this.r = r;
+        this.regPerDatatype = DT_WIDTH / r;
+        this.totalRegisters = (1 << p);
+        this.m = totalRegisters / regPerDatatype + (totalRegisters % regPerDatatype == 0 ? 0 : 1);
+        this.maxRegisterValue = ((1 << r) - 1);
+
+        this.pages = new int[(m + PAGE_WORDS - 1) >>> PAGE_SHIFT][];
+    }
+
+    // number of words in page, only the last page can be shorter
+    private int pageLength(int page) {
+        return Math.min(PAGE_WORDS, m - (page << PAGE_SHIFT));
+    }
+
+    private int[] page(int page) {
+        int[] words = pages[page];
+        if(words == null) {
+            words = new int[pageLength(page)];
+            pages[page] = words;
+            allocatedPages++;
+        }
+        return words;
+    }
+
+    public HashFunction getHashFunction() {
+        return hashFunction;
+    }
+
+    // number of pages holding registers, each takes 4 KB
+    public int allocatedPages() {
+        return allocatedPages;
+    }
+
+    public void add(long value) {
+        int registerIndex = (int) (value >>> (64 - p));
+        value = value | (1L << (64 - p));
+        int cnt = Long.numberOfTrailingZeros(value) + 1;
+        cnt = Math.min(cnt, maxRegisterValue);
+
+        int bucketIndex = registerIndex / regPerDatatype;
+        int registerOffset = (regPerDatatype - registerIndex % regPerDatatype - 1) * r;
+        int[] words = page(bucketIndex >>> PAGE_SHIFT);
+        int bucketValue = words[bucketIndex & PAGE_MASK];
+        int prevValue = (bucketValue >>> registerOffset) & maxRegisterValue;
+        if(prevValue < cnt)
+            words[bucketIndex & PAGE_MASK] = (bucketValue & ~(maxRegisterValue << registerOffset)) | (cnt << registerOffset);
+    }
+
+    public void addAll(long[] hashes, int off, int len) {
+        if(hashes == null)
+            throw new IllegalArgumentException("hashes is null");
+        if(off < 0 || len < 0 || off > hashes.length - len)
+            throw new IllegalArgumentException("invalid range off: " + off + " len: " + len + " length: " + hashes.length);
+        for(int i = off; i < off + len; i++)
+            add(hashes[i]);
+    }
+
+    public void addAll(long[] hashes) {
+        addAll(hashes, 0, hashes == null ? 0 : hashes.length);
+    }
+
+    private static void mergeWords(int[] words, int[] otherWords, int from, int length, int r) {
+        for(int i = 0; i < length; ++i)
+            words[i] = RegisterWords.max(words[i], otherWords[from + i], r);
+    }
+
+    // pages that are empty in other are skipped, pages that are empty here are copied
+    public boolean merge(PagedHLL other) {
+        if (other == null)
+            return false;
+        if (this.p != other.p || this.r != other.r || !hashFunction.isCompatible(other.hashFunction))
+            return false;
+
+        for(int page = 0; page < pages.length; page++) {
+            int[] otherWords = other.pages[page];
+            if(otherWords == null)
+                continue;
+            if(pages[page] == null) {
+                pages[page] = otherWords.clone();
+                allocatedPages++;
+            }
+            else {
+                mergeWords(pages[page], otherWords, 0, otherWords.length, r);
+            }
+        }
+        hashFunction = hashFunction.merged(other.hashFunction);
+        return true;
+    }
+
+    // only pages with a non zero word in other are allocated
+    public boolean merge(HLL other) {
+        if (other == null)
+            return false;
+        if (this.p != other.getP() || this.r != other.getR() || !hashFunction.isCompatible(other.getHashFunction()))
+            return false;
+
+        int[] otherRegisters = other.getRegisters();
+        for(int page = 0; page < pages.length; page++) {
+            int from = page << PAGE_SHIFT;
+            int length = pageLength(page);
+            if(pages[page] == null && isZero(otherRegisters, from, length))
+                continue;
+            mergeWords(page(page), otherRegisters, from, length, r);
+        }
+        hashFunction = hashFunction.merged(other.getHashFunction());
+        return true;
+    }
+
+    private static boolean isZero(int[] words, int from, int length) {
+        for(int i = from; i < from + length; i++) {
+            if(words[i] != 0)
+                return false;
+        }
+        return true;
+    }
+
+    public long estimate() {
+        int zeroRegisters = 0;
+        double sum = 0;
+        int completeBuckets = totalRegisters / regPerDatatype;
+        int remainingRegisters = totalRegisters % regPerDatatype;
+
+        // the registers of the missing pages are all 0, each adds 1 to the zeros and 2^0 to the sum
+        long missingRegisters = totalRegisters;
+        for(int page = 0; page < pages.length; page++) {
+            int[] words = pages[page];
+            if(words == null)
+                continue;
+            int first = page << PAGE_SHIFT;
+            int complete = Math.min(words.length, completeBuckets - first);
+            for(int i = 0; i < complete; i++) {
+                int cur = words[i];
+                zeroRegisters += RegisterWords.zeros(cur, r);
+                sum = sum + RegisterWords.sum(cur, r);
+            }
+            missingRegisters -= (long) complete * regPerDatatype;
+
+            if(complete < words.length) {
+                int last = words[complete];
+                for(int j = regPerDatatype - 1; j >= (regPerDatatype - remainingRegisters); j--){
+                    int k = (last >>> (r * j)) & maxRegisterValue;
+                    zeroRegisters += ((k == 0) ? 1 : 0);
+                    sum = sum + PRE_POW_2_K[k];
+                }
+                missingRegisters -= remainingRegisters;
+            }
+        }
+        zeroRegisters += (int) missingRegisters;
+        sum = sum + missingRegisters;
+
+        return HLL.estimate(sum, zeroRegisters, totalRegisters);
+    }
+
+    // copy into a plain HLL, which allocates all registers
+    public HLL toHLL() {
+        HLL hll = new HLL(p, r, hashFunction);
+        int[] hllRegisters = hll.getRegisters();
+        for(int page = 0; page < pages.length; page++) {
+            if(pages[page] != null)
+                System.arraycopy(pages[page], 0, hllRegisters, page << PAGE_SHIFT, pages[page].length);
+        }
+        return hll;
+    }
+
+    // [p][r byte][number of pages int], followed by [page index int][page words] for every allocated page that is
+    // not all zero. the r byte has the HashFunction id in its high bits like the one of HLL.serialize(). all ints are
+    // big-endian, a page has 1024 words except for the last one which holds the remaining words.
+    public byte[] serialize() {
+        int count = 0;
+        int size = 6;
+        for(int page = 0; page < pages.length; page++) {
+            if(pages[page] != null && !isZero(pages[page], 0, pages[page].length)) {
+                count++;
+                size += 4 + pages[page].length * 4;
+            }
+        }
+
+        byte[] array = new byte[size];
+        int j = 0;
+        array[j++] = (byte) p;
+        array[j++] = (byte) hashFunction.toHeader(r);
+        j = putInt(array, j, count);
+        for(int page = 0; page < pages.length; page++) {
+            int[] words = pages[page];
+            if(words == null || isZero(words, 0, words.length))
+                continue;
+            j = putInt(array, j, page);
+            for(int i = 0; i < words.length; i++)
+                j = putInt(array, j, words[i]);
+        }
+        return array;
+    }
+
+    private static int putInt(byte[] array, int j, int value) {
+        array[j++] = (byte) (value >>> 24 & 0xFF);
+        array[j++] = (byte) (value >>> 16 & 0xFF);
+        array[j++] = (byte) (value >>> 8 & 0xFF);
+        array[j++] = (byte) (value & 0xFF);
+        return j;
+    }
+
+    private static int getInt(byte[] array, int j) {
+        return ((array[j] & 0xFF) << 24) |
+                ((array[j + 1] & 0xFF) << 16) |
+                ((array[j + 2] & 0xFF) << 8) |
+                (array[j + 3] & 0xFF);
+    }
+
+    public static PagedHLL deserialize(byte[] array) {
+        if (array == null || array.length < 6)
+            throw new IllegalArgumentException("array is null or smaller than 6 bytes");
+
+        int p = array[0];
+        int r = array[1];
+        PagedHLL hll = new PagedHLL(p, r & HLL.R_MASK);
+        hll.hashFunction = HashFunction.fromHeader(r);
+        int count = getInt(array, 2);
+        int j = 6;
+        for(int n = 0; n < count; n++) {
+            if(j + 4 > array.length)
+                throw new IllegalArgumentException("HLL buffer truncated at page " + n + " of " + count);
+            int page = getInt(array, j);
+            j += 4;
+            if(page < 0 || page >= hll.pages.length || hll.pages[page] != null)
+                throw new IllegalArgumentException("invalid page: " + page);
+            int[] words = hll.page(page);
+            if(j + words.length * 4 > array.length)
+                throw new IllegalArgumentException("HLL buffer truncated at page " + n + " of " + count);
+            for(int i = 0; i < words.length; i++) {
+                words[i] = getInt(array, j);
+                j += 4;
+            }
+        }
+        if(j != array.length)
+            throw new IllegalArgumentException("HLL buffer invalid size: " + array.length + " expected: " + j);
+        return hll;
+    }
+}
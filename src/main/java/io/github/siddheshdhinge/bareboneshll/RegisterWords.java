@@ -0,0 +1,205 @@
+package io.github.siddheshdhinge.bareboneshll;
+
+// SWAR (simd within a register) helpers that work on a whole 32 bit word of packed registers at once.
+// a word holds 8 registers of 4 bits, 6 registers of 5 bits or 5 registers of 6 bits starting at bit 0,
+// for r = 5 and 6 the top 2 bits of the word are unused and always 0.
+final class RegisterWords {
+    // highest bit of every register in a word
+    private static final int HIGH_BITS_4 = 0x88888888;
+    private static final int HIGH_BITS_5 = 0x21084210;
+    private static final int HIGH_BITS_6 = 0x20820820;
+    // all bits of a word that belong to a register
+    private static final int REGISTER_BITS_4 = 0xffffffff;
+    private static final int REGISTER_BITS_5 = 0x3fffffff;
+    private static final int REGISTER_BITS_6 = 0x3fffffff;
+
+    // sum of 2^-k over the registers of the table index, the index holds two registers (a byte for r = 4,
+    // 10 bits for r = 5 and 12 bits for r = 6), so a word is summed with 3 to 4 lookups instead of 5 to 8.
+    private static final double[] PAIR_SUM_4 = pairSums(4);
+    private static final double[] PAIR_SUM_5 = pairSums(5);
+    private static final double[] PAIR_SUM_6 = pairSums(6);
+    private static final double[] PRE_POW_2_K = new double[64];
+    static {
+        for(int i = 0; i < PRE_POW_2_K.length; i++) {
+            PRE_POW_2_K[i] = Math.pow(2, -i);
+        }
+    }
+
+    // true when the vector kernels of the multi-release jar can be used, i.e. on Java 21+ with the
+    // jdk.incubator.vector module added (--add-modules jdk.incubator.vector) and a vector unit wider than 64 bits.
+    // they can be turned off with -Dbareboneshll.vector=false, the results are the same either way.
+    static final boolean VECTORIZED = vectorized();
+
+    private RegisterWords() {
+    }
+
+    private static boolean vectorized() {
+        if(!Boolean.parseBoolean(System.getProperty("bareboneshll.vector", "true")))
+            return false;
+        try {
+            return VectorKernels.isSupported();
+        } catch (LinkageError e) {
+            // the incubator module is not there
+            return false;
+        }
+    }
+
+    private static double[] pairSums(int r) {
+        int max = (1 << r) - 1;
+        double[] sums = new double[1 << (2 * r)];
+        for(int i = 0; i < sums.length; i++)
+            sums[i] = Math.pow(2, -(i & max)) + Math.pow(2, -(i >>> r));
+        return sums;
+    }
+
+    // register wise max of a and b. for every register the high bits decide if they differ, otherwise the borrow free
+    // subtraction of the remaining bits ((a | H) - (b & ~H)) leaves the high bit set iff a >= b.
+    // the resulting high bits are then widened into a mask of whole registers picking a.
+    private static int max(int a, int b, int highBits, int registerBits, int r) {
+        int lowBitsGe = ((a | highBits) - (b & ~highBits & registerBits)) & highBits;
+        int ge = ((a & ~b) | (~(a ^ b) & lowBitsGe)) & highBits;
+        int mask = (ge << 1) - (ge >>> (r - 1));
+        return (a & mask) | (b & ~mask);
+    }
+
+    static int max4(int a, int b) {
+        return max(a, b, HIGH_BITS_4, REGISTER_BITS_4, 4);
+    }
+
+    static int max5(int a, int b) {
+        return max(a, b, HIGH_BITS_5, REGISTER_BITS_5, 5);
+    }
+
+    static int max6(int a, int b) {
+        return max(a, b, HIGH_BITS_6, REGISTER_BITS_6, 6);
+    }
+
+    static int max(int a, int b, int r) {
+        switch(r) {
+            case 4: return max4(a, b);
+            case 5: return max5(a, b);
+            default: return max6(a, b);
+        }
+    }
+
+    // number of registers in the word that are 0. adding 2^(r-1)-1 to the low bits of a register carries into its
+    // high bit iff the low bits are not all 0, or'ed with the register itself the high bit tells if it is non zero.
+    private static int zeros(int word, int highBits, int registerBits, int registersPerWord) {
+        int nonZero = (((word & ~highBits & registerBits) + (~highBits & registerBits)) | word) & highBits;
+        return registersPerWord - Integer.bitCount(nonZero);
+    }
+
+    static int zeros4(int word) {
+        return zeros(word, HIGH_BITS_4, REGISTER_BITS_4, 8);
+    }
+
+    static int zeros5(int word) {
+        return zeros(word, HIGH_BITS_5, REGISTER_BITS_5, 6);
+    }
+
+    static int zeros6(int word) {
+        return zeros(word, HIGH_BITS_6, REGISTER_BITS_6, 5);
+    }
+
+    static int zeros(int word, int r) {
+        switch(r) {
+            case 4: return zeros4(word);
+            case 5: return zeros5(word);
+            default: return zeros6(word);
+        }
+    }
+
+    static double sum(int word, int r) {
+        switch(r) {
+            case 4: return sum4(word);
+            case 5: return sum5(word);
+            default: return sum6(word);
+        }
+    }
+
+    // sum of 2^-k over all registers k of the word
+    static double sum4(int word) {
+        return (PAIR_SUM_4[word >>> 24] + PAIR_SUM_4[(word >>> 16) & 0xff])
+                + (PAIR_SUM_4[(word >>> 8) & 0xff] + PAIR_SUM_4[word & 0xff]);
+    }
+
+    static double sum5(int word) {
+        return PAIR_SUM_5[(word >>> 20) & 0x3ff] + PAIR_SUM_5[(word >>> 10) & 0x3ff] + PAIR_SUM_5[word & 0x3ff];
+    }
+
+    static double sum6(int word) {
+        return PRE_POW_2_K[(word >>> 24) & 0x3f] + PAIR_SUM_6[(word >>> 12) & 0xfff] + PAIR_SUM_6[word & 0xfff];
+    }
+
+    // add the number of registers holding each value among the first totalRegisters registers of the words to hist
+    static void histogram(int[] words, int totalRegisters, int r, int[] hist) {
+        int registersPerWord = 32 / r;
+        int completeWords = totalRegisters / registersPerWord;
+        // constant register widths, so that the JIT unrolls the inner loop
+        switch(r) {
+            case 4: histogram(words, completeWords, 4, 8, hist);
+                break;
+            case 5: histogram(words, completeWords, 5, 6, hist);
+                break;
+            default: histogram(words, completeWords, 6, 5, hist);
+                break;
+        }
+
+        int remainingRegisters = totalRegisters % registersPerWord;
+        if(remainingRegisters > 0) {
+            int last = words[completeWords];
+            for(int j = registersPerWord - 1; j >= registersPerWord - remainingRegisters; j--)
+                hist[(last >>> (r * j)) & ((1 << r) - 1)]++;
+        }
+    }
+
+    private static void histogram(int[] words, int len, int r, int registersPerWord, int[] hist) {
+        int mask = (1 << r) - 1;
+        for(int i = 0; i < len; i++) {
+            int word = words[i];
+            // at low cardinalities most words are 0
+            if(word == 0) {
+                hist[0] += registersPerWord;
+                continue;
+            }
+            for(int j = 0; j < registersPerWord; j++)
+                hist[(word >>> (r * j)) & mask]++;
+        }
+    }
+
+    // rank of the register at index of a sketch with indexBits index bits, once the sketch is folded to shift fewer
+    // index bits. the rank counts the trailing zeros of the hash bits below the index, and the dropped index bits are
+    // the ones right above them. so only the largest rank, 65 - indexBits for a hash whose bits below the index are
+    // all 0, changes: it goes on counting into the dropped bits, the low shift bits of index. a register that was
+    // capped at 2^r - 1 below that rank stays capped.
+    static int foldRank(int value, int index, int indexBits, int shift) {
+        if(value != 65 - indexBits)
+            return value;
+        return value + Integer.numberOfTrailingZeros(index | (1 << shift));
+    }
+
+    // max the 2^p registers of r bits in words, folded to 2^newP registers of newR bits, into the int words of
+    // target. the registers are the ones of adding the same hashes at newP and newR: register i of newP is the max
+    // of the registers whose index starts with the bits of i, and the values are capped at 2^newR - 1.
+    static void fold(int[] words, int p, int r, int[] target, int newP, int newR) {
+        int registersPerWord = 32 / r;
+        int newRegistersPerWord = 32 / newR;
+        int mask = (1 << r) - 1;
+        int newMax = (1 << newR) - 1;
+        int shift = p - newP;
+        int totalRegisters = 1 << p;
+        for(int i = 0; i < totalRegisters; i++) {
+            int value = (words[i / registersPerWord] >>> ((registersPerWord - i % registersPerWord - 1) * r)) & mask;
+            if(value == 0)
+                continue;
+            value = Math.min(foldRank(value, i, p, shift), newMax);
+
+            int j = i >>> shift;
+            int bucketIndex = j / newRegistersPerWord;
+            int registerOffset = (newRegistersPerWord - j % newRegistersPerWord - 1) * newR;
+            int bucketValue = target[bucketIndex];
+            if(((bucketValue >>> registerOffset) & newMax) < value)
+                target[bucketIndex] = (bucketValue & ~(newMax << registerOffset)) | (value << registerOffset);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package io.github.siddheshdhinge.bareboneshll;
+
+// HLL over a sliding window of time, for distinct counts like "users in the last 15 minutes" without a ring of
+// per-interval sketches that are merged on every query. values are added with a timestamp, and the estimate is for
+// the values of any window up to maxWindow that ends at the newest timestamp seen.
+//
+// instead of its largest rank every register keeps the list of future possible maxima (Chabchoub and Hebrail): the
+// (timestamp, rank) pairs that are the largest rank of some window ending now. a pair is dropped when a newer one has
+// the same or a larger rank, so the list has decreasing ranks from the oldest to the newest pair and is at most 2^r - 1
+// long, a few pairs in practice. the largest rank of a window is the one of its oldest pair, which is found in a single
+// pass over the lists. pairs older than maxWindow are dropped too.
+//
+// the pairs are packed into one long, timestamp << 6 | rank, and the list of each register is a block of consecutive
+// slots in one pool shared by all registers, oldest pair first. a block that is full moves to the end of the pool with
+// twice the room, and the pool is compacted when it runs out. so the sketch is 6 bytes per register and 8 bytes per
+// slot, with no object per register or pair. timestamps are in any unit (e.g. milliseconds), from 0 to 2^57 - 1, and
+// may arrive out of order. not thread safe.
+public class SlidingHLL {
+    // below variables need to be serialized
+    private final int p;
+    private final int r;
+    private final long maxWindow;
+    // newest timestamp added, the end of the windows
+    private long latest = -1;
+    // the block of each register: its first slot in the pool, number of pairs and number of slots
+    private final int[] starts;
+    private final byte[] lengths;
+    private final byte[] capacities;
+    // the pairs, timestamp << RANK_BITS | rank
+    private long[] pool;
+
+    // below variables are derived
+    private final int maxRegisterValue;
+    private final int totalRegisters;
+    // first slot of the pool that is not part of a block
+    private int top;
+    private int size;
+
+    // below are constants
+    private static final int DEFAULT_P = 12;
+    private static final int DEFAULT_R = 6;
+    private static final int RANK_BITS = 6;
+    private static final long RANK_MASK = (1L << RANK_BITS) - 1;
+    private static final long MAX_TIMESTAMP = (1L << (64 - RANK_BITS)) - 1;
+    private static final int INITIAL_CAPACITY = 2;
+
+    public SlidingHLL(long maxWindow) {
+        this(DEFAULT_P, DEFAULT_R, maxWindow);
+    }
+
+    // maxWindow is the length of the longest window that can be estimated, in the unit of the timestamps
+    public SlidingHLL(int p, int r, long maxWindow) {
+        HLL.checkPR(p, r);
+        if(maxWindow < 1 || maxWindow > MAX_TIMESTAMP)
+            throw new IllegalArgumentException("invalid maxWindow: " + maxWindow);
+
+        this.p = p;
+        this.r = r;
+        this.maxWindow = maxWindow;
+        this.totalRegisters = (1 << p);
+        this.maxRegisterValue = ((1 << r) - 1);
+
+        this.starts = new int[totalRegisters];
+        this.lengths = new byte[totalRegisters];
+        this.capacities = new byte[totalRegisters];
+        // room for the first block of half the registers, grown as needed
+        this.pool = new long[totalRegisters];
+    }
+
+    public long getMaxWindow() {
+        return maxWindow;
+    }
+
+    // the newest timestamp added, -1 for an empty sketch
+    public long getLatest() {
+        return latest;
+    }
+
+    // number of (timestamp, rank) pairs held, including expired ones that were not dropped yet
+    public int size() {
+        return size;
+    }
+
+    // add an already hashed value seen at timestamp
+    public void add(long value, long timestamp) {
+        if(timestamp < 0 || timestamp > MAX_TIMESTAMP)
+            throw new IllegalArgumentException("invalid timestamp: " + timestamp);
+
+        int registerIndex = (int) (value >>> (64 - p));
+        value = value | (1L << (64 - p));
+        int cnt = Long.numberOfTrailingZeros(value) + 1;
+        cnt = Math.min(cnt, maxRegisterValue);
+
+        if(timestamp > latest)
+            latest = timestamp;
+        insert(registerIndex, (timestamp << RANK_BITS) | cnt);
+    }
+
+    // insert a pair into the block of a register, keeping only the future possible maxima. the block runs from the
+    // oldest pair to the newest one with decreasing ranks, so an in order pair only looks at its end.
+    private void insert(int registerIndex, long pair) {
+        long timestamp = pair >>> RANK_BITS;
+        long rank = pair & RANK_MASK;
+        long expired = latest - maxWindow;
+        if(timestamp <= expired)
+            return;
+
+        final long[] pool = this.pool;
+        int start = starts[registerIndex];
+        int len = lengths[registerIndex];
+        // [j, len) are the newer pairs, the pair is dropped if one of them has the same or a larger rank. their ranks
+        // decrease, so that is the first one.
+        int j = len;
+        while(j > 0 && (pool[start + j - 1] >>> RANK_BITS) > timestamp)
+            j--;
+        if(j < len && (pool[start + j] & RANK_MASK) >= rank)
+            return;
+        // or if there is one of the same timestamp with the same or a larger rank
+        if(j > 0 && pool[start + j - 1] >= pair)
+            return;
+        // [i, j) are the older pairs with the same or a smaller rank, they are no maxima anymore
+        int i = j;
+        while(i > 0 && (pool[start + i - 1] & RANK_MASK) <= rank)
+            i--;
+        // [0, k) have expired
+        int k = 0;
+        while(k < i && (pool[start + k] >>> RANK_BITS) <= expired)
+            k++;
+
+        int newLen = (i - k) + 1 + (len - j);
+        int capacity = capacities[registerIndex];
+        if(newLen <= capacity) {
+            // in place, the kept older pairs move down first so they do not overwrite the newer ones
+            if(k > 0)
+                System.arraycopy(pool, start + k, pool, start, i - k);
+            System.arraycopy(pool, start + j, pool, start + i - k + 1, len - j);
+            pool[start + i - k] = pair;
+        }
+        else {
+            int newCapacity = capacity == 0 ? INITIAL_CAPACITY : capacity * 2;
+            if(top > pool.length - newCapacity) {
+                // compact() moves the blocks, so look for the place again
+                compact(false);
+                insert(registerIndex, pair);
+                return;
+            }
+            int newStart = top;
+            top += newCapacity;
+            System.arraycopy(pool, start + k, pool, newStart, i - k);
+            pool[newStart + i - k] = pair;
+            System.arraycopy(pool, start + j, pool, newStart + i - k + 1, len - j);
+            starts[registerIndex] = newStart;
+            capacities[registerIndex] = (byte) newCapacity;
+        }
+        lengths[registerIndex] = (byte) newLen;
+        size += newLen - len;
+    }
+
+    // drop the pairs that are older than maxWindow, they do not count in any window anymore. add() does this when
+    // the pool is full, call it to free the pairs of registers that are not added to anymore.
+    public void expire() {
+        compact(true);
+    }
+
+    // copy the pairs that are not expired into a new pool, the blocks in the order of the registers so that the
+    // estimates read the pool front to back. every block keeps room for one more pair unless shrink is set, and the
+    // pool is doubled until it is at least half empty, so the compactions are amortized over as many adds.
+    private void compact(boolean shrink) {
+        long expired = latest - maxWindow;
+        int needed = 0;
+        for(int i = 0; i < totalRegisters; i++) {
+            int live = lengths[i] - firstLive(i, expired);
+            needed += live == 0 ? 0 : capacity(live + (shrink ? 0 : 1));
+        }
+        int length = pool.length;
+        while(needed > length / 2) {
+            if(length > Integer.MAX_VALUE / 2)
+                throw new IllegalStateException("too many pairs: " + size);
+            length *= 2;
+        }
+
+        long[] newPool = new long[length];
+        int slot = 0;
+        size = 0;
+        for(int i = 0; i < totalRegisters; i++) {
+            int first = firstLive(i, expired);
+            int live = lengths[i] - first;
+            System.arraycopy(pool, starts[i] + first, newPool, slot, live);
+            int capacity = live == 0 ? 0 : capacity(live + (shrink ? 0 : 1));
+            starts[i] = live == 0 ? 0 : slot;
+            lengths[i] = (byte) live;
+            capacities[i] = (byte) capacity;
+            slot += capacity;
+            size += live;
+        }
+        pool = newPool;
+        top = slot;
+    }
+
+    // index of the first pair of the block of a register that is newer than expired
+    private int firstLive(int registerIndex, long expired) {
+        int start = starts[registerIndex];
+        int len = lengths[registerIndex];
+        int k = 0;
+        while(k < len && (pool[start + k] >>> RANK_BITS) <= expired)
+            k++;
+        return k;
+    }
+
+    // block size for n pairs, a power of two as the blocks grow by doubling
+    private static int capacity(int n) {
+        return Math.max(INITIAL_CAPACITY, Integer.highestOneBit(n - 1) << 1);
+    }
+
+    // start of the window (latest - window, latest], after checking its length
+    private long windowStart(long window) {
+        if(window < 1 || window > maxWindow)
+            throw new IllegalArgumentException("invalid window: " + window + " maxWindow: " + maxWindow);
+        return latest - window;
+    }
+
+    // largest rank of a register after oldest, the rank of the oldest pair of its block that is newer
+    private int rank(int registerIndex, long oldest) {
+        final long[] pool = this.pool;
+        int start = starts[registerIndex];
+        int end = start + lengths[registerIndex];
+        for(int i = start; i < end; i++) {
+            long pair = pool[i];
+            if((pair >>> RANK_BITS) > oldest)
+                return (int) (pair & RANK_MASK);
+        }
+        return 0;
+    }
+
+    // hist[k] = number of registers whose largest rank within the window is k
+    private int[] histogram(long window) {
+        long oldest = windowStart(window);
+        int[] hist = new int[maxRegisterValue + 1];
+        for(int i = 0; i < totalRegisters; i++)
+            hist[rank(i, oldest)]++;
+        return hist;
+    }
+
+    // estimate of the distinct values added within maxWindow of the newest timestamp
+    public long estimate() {
+        return estimate(maxWindow);
+    }
+
+    // estimate of the distinct values with a timestamp in (latest - window, latest], window at most maxWindow
+    public long estimate(long window) {
+        int[] hist = histogram(window);
+        double sum = 0;
+        for(int k = hist.length - 1; k >= 0; k--)
+            sum = sum + hist[k] * Math.pow(2, -k);
+        return HLL.estimate(sum, hist[0], totalRegisters);
+    }
+
+    // see HLL.improvedEstimate()
+    public long improvedEstimate(long window) {
+        return HLL.improvedEstimate(histogram(window), p, r);
+    }
+
+    // HLL of the values within the window, the same sketch as adding them to a HLL, e.g. to merge or serialize it
+    public HLL toHLL(long window) {
+        long oldest = windowStart(window);
+        HLL hll = new HLL(p, r);
+        int[] words = hll.getRegisters();
+        int regPerDatatype = 32 / r;
+        for(int i = 0; i < totalRegisters; i++)
+            words[i / regPerDatatype] |= rank(i, oldest) << ((regPerDatatype - i % regPerDatatype - 1) * r);
+        return hll;
+    }
+
+    // add the pairs of other, the result is the sketch of the values added to either. p and r have to match, the
+    // windows of the result end at the newer of the two latest timestamps.
+    public boolean merge(SlidingHLL other) {
+        if (other == null)
+            return false;
+        if (this.p != other.p || this.r != other.r)
+            return false;
+        if (other == this)
+            return true;
+
+        if(other.latest > latest)
+            latest = other.latest;
+        for(int i = 0; i < totalRegisters; i++) {
+            int start = other.starts[i];
+            for(int j = 0; j < other.lengths[i]; j++)
+                insert(i, other.pool[start + j]);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,149 @@
+package io.github.siddheshdhinge.bareboneshll;
+
+import java.nio.ByteBuffer;
+
+// reads a sorted sparse list of HLLPlusPlus entry by entry, next() moves to the next entry and sets its sparse index
+// (the top p + 4 bits of the hash) and value. merges and estimates decode the lists with it instead of inflating them.
+// the lists are plain int entries (index << (32 - sp) | value), or the compressed form: per entry one varint of
+// (index - previous index) << r | value, 7 bits per byte starting with the lowest, the high bit is set on all but
+// the last byte. the first entry is relative to index 0.
+abstract class SparseCursor {
+    int index;
+    int value;
+
+    abstract boolean next();
+
+    // number of bytes of v as a varint
+    static int varintLength(int v) {
+        int n = 1;
+        while((v & ~0x7f) != 0) {
+            v >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    // write v as a varint at pos, returns the position after it
+    static int putVarint(byte[] bytes, int pos, int v) {
+        while((v & ~0x7f) != 0) {
+            bytes[pos++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        bytes[pos++] = (byte) v;
+        return pos;
+    }
+
+    // the first n int entries of an array, reset() points it at another array so it can be reused
+    static final class Entries extends SparseCursor {
+        private final int shift;
+        private final int mask;
+        private int[] entries;
+        private int n;
+        private int i;
+
+        Entries(int shift, int mask) {
+            this.shift = shift;
+            this.mask = mask;
+        }
+
+        Entries reset(int[] entries, int n) {
+            this.entries = entries;
+            this.n = n;
+            this.i = 0;
+            return this;
+        }
+
+        @Override
+        boolean next() {
+            if(i >= n)
+                return false;
+            int entry = entries[i++];
+            index = entry >>> shift;
+            value = entry & mask;
+            return true;
+        }
+    }
+
+    // n big-endian int entries at offset in a buffer
+    static final class EntryBuffer extends SparseCursor {
+        private final ByteBuffer buffer;
+        private final int shift;
+        private final int mask;
+        private int pos;
+        private final int end;
+
+        EntryBuffer(ByteBuffer buffer, int offset, int n, int shift, int mask) {
+            this.buffer = buffer;
+            this.shift = shift;
+            this.mask = mask;
+            this.pos = offset;
+            this.end = offset + n * 4;
+        }
+
+        @Override
+        boolean next() {
+            if(pos >= end)
+                return false;
+            int entry = buffer.getInt(pos);
+            pos += 4;
+            index = entry >>> shift;
+            value = entry & mask;
+            return true;
+        }
+    }
+
+    // compressed entries in the bytes [from, to) of a buffer
+    static final class Varints extends SparseCursor {
+        private final ByteBuffer buffer;
+        private final int r;
+        private final int mask;
+        private int pos;
+        private final int end;
+
+        Varints(ByteBuffer buffer, int from, int to, int r) {
+            this.buffer = buffer;
+            this.r = r;
+            this.mask = (1 << r) - 1;
+            this.pos = from;
+            this.end = to;
+        }
+
+        Varints(byte[] bytes, int length, int r) {
+            this(ByteBuffer.wrap(bytes), 0, length, r);
+        }
+
+        @Override
+        boolean next() {
+            if(pos >= end)
+                return false;
+            int v = 0;
+            int shift = 0;
+            int b;
+            do {
+                if(pos >= end || shift > 28)
+                    throw new IllegalArgumentException("invalid sparse list at byte " + pos);
+                b = buffer.get(pos++);
+                v |= (b & 0x7f) << shift;
+                shift += 7;
+            } while(b < 0);
+            index += v >>> r;
+            value = v & mask;
+            return true;
+        }
+    }
+
+    // check that a cursor reads exactly count entries with increasing indexes below 2^sp, done before a list that
+    // was not written by this library is merged, so that the merge cannot fail half way.
+    static void validate(SparseCursor cursor, int count, int sp) {
+        int n = 0;
+        int previous = -1;
+        while(cursor.next()) {
+            if(cursor.index <= previous || (cursor.index >>> sp) != 0)
+                throw new IllegalArgumentException("invalid sparse list, index " + cursor.index + " after " + previous);
+            previous = cursor.index;
+            n++;
+        }
+        if(n != count)
+            throw new IllegalArgumentException("invalid sparse list, " + n + " entries expected: " + count);
+    }
+}
@@ -0,0 +1,169 @@
+package io.github.siddheshdhinge.bareboneshll;
+
+import java.lang.ref.WeakReference;
+
+// HLL accumulator for heavy concurrent updates, along the lines of java.util.concurrent.atomic.LongAdder.
+// every thread adds to its own stripe of registers, so adds do not contend with each other.
+// the stripes are folded together with HLL.merge() only when estimate() or serialize() is called.
+//
+// the number of stripes is capped (by default at the number of processors) which bounds the cost of a fold,
+// threads arriving once the cap is reached share one common stripe. a stripe is retired, i.e. folded into
+// the retired registers and dropped, when its thread calls retire() or when a fold finds its thread dead.
+// folding reuses preallocated sketches, only registering and retiring a stripe allocate.
+public class StripedHLL {
+    private final int p;
+    private final int r;
+    private final int maxStripes;
+
+    private final ThreadLocal<Stripe> localStripe = new ThreadLocal<>();
+    private final Stripe commonStripe;
+    // copy on write, only replaced while holding the lock on this
+    private volatile Stripe[] stripes;
+
+    // below sketches are guarded by the lock on this
+    private final HLL retired;
+    private final HLL folded;
+    private final HLL stripeSnapshot;
+
+    // below are constants
+    private static final int DEFAULT_P = 12;
+    private static final int DEFAULT_R = 6;
+
+    private static final class Stripe {
+        private final ConcurrentHLL hll;
+        private final WeakReference<Thread> owner;
+
+        private Stripe(ConcurrentHLL hll, Thread owner) {
+            this.hll = hll;
+            this.owner = owner == null ? null : new WeakReference<>(owner);
+        }
+
+        private boolean isOrphaned() {
+            if(owner == null)
+                return false;
+            Thread thread = owner.get();
+            return thread == null || !thread.isAlive();
+        }
+    }
+
+    public StripedHLL() {
+        this(DEFAULT_P, DEFAULT_R);
+    }
+
+    public StripedHLL(int p) {
+        this(p, DEFAULT_R);
+    }
+
+    public StripedHLL(int p, int r) {
+        this(p, r, Runtime.getRuntime().availableProcessors());
+    }
+
+    public StripedHLL(int p, int r, int maxStripes) {
+        if(maxStripes < 1)
+            throw new IllegalArgumentException("invalid maxStripes: " + maxStripes);
+
+        this.p = p;
+        this.r = r;
+        this.maxStripes = maxStripes;
+        this.retired = new HLL(p, r);
+        this.folded = new HLL(p, r);
+        this.stripeSnapshot = new HLL(p, r);
+        this.commonStripe = new Stripe(new ConcurrentHLL(p, r), null);
+        this.stripes = new Stripe[0];
+    }
+
+    public void add(long value) {
+        Stripe stripe = localStripe.get();
+        if(stripe == null)
+            stripe = register();
+        stripe.hll.add(value);
+    }
+
+    private synchronized Stripe register() {
+        Stripe stripe = commonStripe;
+        Stripe[] current = this.stripes;
+        if(current.length < maxStripes) {
+            stripe = new Stripe(new ConcurrentHLL(p, r), Thread.currentThread());
+            Stripe[] next = new Stripe[current.length + 1];
+            System.arraycopy(current, 0, next, 0, current.length);
+            next[current.length] = stripe;
+            this.stripes = next;
+        }
+        localStripe.set(stripe);
+        return stripe;
+    }
+
+    // fold the calling thread's stripe and give up its slot, to be called by threads that are done adding.
+    // a later add() from the same thread starts a new stripe.
+    public void retire() {
+        Stripe stripe = localStripe.get();
+        if(stripe == null)
+            return;
+        localStripe.remove();
+        if(stripe == commonStripe)
+            return;
+
+        synchronized(this) {
+            retireStripe(stripe);
+        }
+    }
+
+    private void retireStripe(Stripe stripe) {
+        stripe.hll.copyTo(stripeSnapshot.getRegisters());
+        retired.merge(stripeSnapshot);
+
+        Stripe[] current = this.stripes;
+        int k = 0;
+        Stripe[] next = new Stripe[current.length - 1];
+        for(Stripe s : current) {
+            if(s != stripe)
+                next[k++] = s;
+        }
+        this.stripes = next;
+    }
+
+    // merge another sketch into the accumulator, it is kept with the retired registers.
+    public synchronized boolean merge(HLL other) {
+        return retired.merge(other);
+    }
+
+    // fold the retired registers and all live stripes into the folded sketch, retiring stripes of dead threads on the way.
+    private void fold() {
+        int[] foldedRegisters = folded.getRegisters();
+        System.arraycopy(retired.getRegisters(), 0, foldedRegisters, 0, foldedRegisters.length);
+        // the stripes are EXTERNAL, so the sketches merged into retired decide the hash function
+        folded.setHashFunction(retired.getHashFunction());
+
+        commonStripe.hll.copyTo(stripeSnapshot.getRegisters());
+        folded.merge(stripeSnapshot);
+
+        Stripe[] current = this.stripes;
+        for(int i = 0; i < current.length; i++) {
+            Stripe stripe = current[i];
+            if(stripe.isOrphaned()) {
+                // a dead thread does not add anymore, after this its registers live in retired
+                retireStripe(stripe);
+            }
+            stripe.hll.copyTo(stripeSnapshot.getRegisters());
+            folded.merge(stripeSnapshot);
+        }
+    }
+
+    public synchronized long estimate() {
+        fold();
+        return folded.estimate();
+    }
+
+    public synchronized byte[] serialize() {
+        fold();
+        return folded.serialize();
+    }
+
+    // a plain HLL holding everything added so far.
+    public synchronized HLL toHLL() {
+        fold();
+        HLL hll = new HLL(p, r, folded.getHashFunction());
+        hll.merge(folded);
+        return hll;
+    }
+}
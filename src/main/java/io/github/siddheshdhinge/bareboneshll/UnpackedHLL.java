@@ -0,0 +1,357 @@
+package io.github.siddheshdhinge.bareboneshll;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// HLL with one register per byte instead of bit-packed words, for hot accumulators that trade memory for speed:
+// add() is a single load, compare and store, without the division and masking of the packed layout, at 8 / r
+// times the memory of HLL. the registers are packed and unpacked at the merge() and serialize() boundaries, so it
+// merges with HLL and HLLPlusPlus and its serialized format is the one of HLL. not thread safe.
+public class UnpackedHLL {
+    // below variables need to be serialized
+    private final int p;
+    private final int r;
+    private final byte[] registers;
+    // EXTERNAL until a sketch of a hash function is merged, see HashFunction.merged()
+    private HashFunction hashFunction = HashFunction.EXTERNAL;
+
+    // below variables are derived
+    private final int m;
+    private final int maxRegisterValue;
+    private final int regPerDatatype;
+    private final int totalRegisters;
+    // the registers as 8 byte lanes, for merge()
+    private final ByteBuffer lanes;
+    // words decoded by mergeFrom(), kept so that merging serialized sketches does not allocate
+    private int[] mergeScratch;
+    private long[] longMergeScratch;
+
+    // below are constants
+    private static final int DEFAULT_P = 12;
+    private static final int DEFAULT_R = 6;
+    private static final int DT_WIDTH = 32;
+    // highest bit of every byte, the registers are at most 63 so it is always 0
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    // ByteBuffer.getLong() on a heap buffer is a single load from Java 9 on, Java 8 assembles it byte by byte
+    private static final boolean LANE_ACCESS = !System.getProperty("java.specification.version").startsWith("1.");
+
+    public UnpackedHLL() {
+        this(DEFAULT_P, DEFAULT_R);
+    }
+
+    public UnpackedHLL(int p) {
+        this(p, DEFAULT_R);
+    }
+
+    public UnpackedHLL(int p, int r) {
+        HLL.checkPR(p, r);
+
+        this.p = p;
+        this.r = r;
+        this.regPerDatatype = DT_WIDTH / r;
+        this.totalRegisters = (1 << p);
+        this.m = totalRegisters / regPerDatatype + (totalRegisters % regPerDatatype == 0 ? 0 : 1);
+        this.maxRegisterValue = ((1 << r) - 1);
+
+        this.registers = new byte[totalRegisters];
+        this.lanes = ByteBuffer.wrap(registers).order(ByteOrder.nativeOrder());
+    }
+
+    public HashFunction getHashFunction() {
+        return hashFunction;
+    }
+
+    public void add(long value) {
+        int registerIndex = (int) (value >>> (64 - p));
+        value = value | (1L << (64 - p));
+        int cnt = Long.numberOfTrailingZeros(value) + 1;
+        cnt = Math.min(cnt, maxRegisterValue);
+
+        if(registers[registerIndex] < cnt)
+            registers[registerIndex] = (byte) cnt;
+    }
+
+    // add len already hashed values starting at hashes[off], same result as calling add() for each of them.
+    public void addAll(long[] hashes, int off, int len) {
+        if(hashes == null)
+            throw new IllegalArgumentException("hashes is null");
+        if(off < 0 || len < 0 || off > hashes.length - len)
+            throw new IllegalArgumentException("invalid range off: " + off + " len: " + len + " length: " + hashes.length);
+
+        final byte[] registers = this.registers;
+        final int indexShift = 64 - p;
+        final long stopBit = 1L << indexShift;
+        for(int i = off; i < off + len; i++) {
+            long value = hashes[i];
+            int registerIndex = (int) (value >>> indexShift);
+            int cnt = Math.min(Long.numberOfTrailingZeros(value | stopBit) + 1, maxRegisterValue);
+            if(registers[registerIndex] < cnt)
+                registers[registerIndex] = (byte) cnt;
+        }
+    }
+
+    public void addAll(long[] hashes) {
+        addAll(hashes, 0, hashes == null ? 0 : hashes.length);
+    }
+
+    // register wise max of 8 registers in the byte lanes of a and b. the high bit of a lane stays set in
+    // (a | H) - b iff a >= b, as the registers are below 128 nothing borrows across lanes, and it is then widened
+    // into a mask of the whole lane picking a.
+    private static long max(long a, long b) {
+        long ge = ((a | HIGH_BITS) - b) & HIGH_BITS;
+        long mask = (ge - (ge >>> 7)) | ge;
+        return (a & mask) | (b & ~mask);
+    }
+
+    public boolean merge(UnpackedHLL other) {
+        if (other == null)
+            return false;
+        if (this.p != other.p || this.r != other.r || !hashFunction.isCompatible(other.hashFunction))
+            return false;
+
+        if(LANE_ACCESS) {
+            // 2^p registers with p >= 5 are a multiple of 8
+            for(int i = 0; i < totalRegisters; i += 8)
+                lanes.putLong(i, max(lanes.getLong(i), other.lanes.getLong(i)));
+        }
+        else {
+            final byte[] otherRegisters = other.registers;
+            for(int i = 0; i < totalRegisters; i++) {
+                if(registers[i] < otherRegisters[i])
+                    registers[i] = otherRegisters[i];
+            }
+        }
+        hashFunction = hashFunction.merged(other.hashFunction);
+        return true;
+    }
+
+    // unpack the packed words of other into the registers
+    public boolean merge(HLL other) {
+        if (other == null)
+            return false;
+        if (this.p != other.getP() || this.r != other.getR() || !hashFunction.isCompatible(other.getHashFunction()))
+            return false;
+
+        mergeWords(other.getRegisters());
+        hashFunction = hashFunction.merged(other.getHashFunction());
+        return true;
+    }
+
+    // a sparse HLLPlusPlus is merged like it is when it converts to dense, the largest value of the sparse
+    // entries that fall into a register
+    public boolean merge(HLLPlusPlus other) {
+        if (other == null)
+            return false;
+        if (this.p != other.getP() || this.r != other.getR() || !hashFunction.isCompatible(other.getHashFunction()))
+            return false;
+
+        SparseCursor entries = other.sparseEntries();
+        if(entries == null) {
+            mergeWords(other.getRegisters());
+        }
+        else {
+            while(entries.next()) {
+                int idx = entries.index >>> HLLPlusPlus.SPARSE_P_EXTRA_BITS;
+                if(registers[idx] < entries.value)
+                    registers[idx] = (byte) entries.value;
+            }
+        }
+        hashFunction = hashFunction.merged(other.getHashFunction());
+        return true;
+    }
+
+    // merge a HLL serialized with HLL.serialize() straight from the length bytes at offset in array, of either
+    // layout. returns false if its p, r or hash function differ, like merge(HLL).
+    public boolean mergeFrom(byte[] array, int offset, int length) {
+        return mergeFrom(ByteBuffer.wrap(array), offset, length);
+    }
+
+    // same as mergeFrom(byte[], int, int) on the bytes of a buffer, its position and limit are not used or changed.
+    public boolean mergeFrom(ByteBuffer buffer, int offset, int length) {
+        if(length < 6)
+            throw new IllegalArgumentException("buffer is smaller than 6 bytes");
+        ByteBuffer view = HLL.view(buffer, offset, length);
+        int otherR = view.get(offset + length - 1);
+        if(view.get(offset + length - 2) != p || (otherR & HLL.R_MASK) != r)
+            return false;
+        if(!hashFunction.isCompatible(HashFunction.fromHeader(otherR)))
+            return false;
+        boolean longWords = (otherR & LongRegisterWords.LAYOUT_FLAG) != 0;
+        int words = longWords ? LongRegisterWords.words(totalRegisters, r) : m;
+        if((words * (longWords ? 8 : 4)) != (length - 2))
+            throw new IllegalArgumentException("HLL buffer invalid size: " + (length - 2) + " expected: " + words);
+
+        if(mergeScratch == null)
+            mergeScratch = new int[m];
+        ((Buffer) view).position(offset);
+        if(longWords) {
+            // converted to the int layout words, which the unpacking loops are written for
+            if(longMergeScratch == null)
+                longMergeScratch = new long[words];
+            view.asLongBuffer().get(longMergeScratch);
+            LongRegisterWords.toIntWords(longMergeScratch, mergeScratch, r);
+        }
+        else {
+            view.asIntBuffer().get(mergeScratch);
+        }
+        mergeWords(mergeScratch);
+        hashFunction = hashFunction.merged(HashFunction.fromHeader(otherR));
+        return true;
+    }
+
+    // max the registers of the packed words into the registers. the complete words go through loops for a constant
+    // register width and count, which the JIT unrolls, the unused registers of the last word are skipped.
+    private void mergeWords(int[] words) {
+        int completeWords = totalRegisters / regPerDatatype;
+        switch(r) {
+            case 4: mergeWords(words, completeWords, 4, 8);
+                break;
+            case 5: mergeWords(words, completeWords, 5, 6);
+                break;
+            default: mergeWords(words, completeWords, 6, 5);
+                break;
+        }
+
+        if(completeWords < m) {
+            int word = words[completeWords];
+            int first = completeWords * regPerDatatype;
+            for(int j = 0; j < totalRegisters - first; j++) {
+                int value = (word >>> ((regPerDatatype - j - 1) * r)) & maxRegisterValue;
+                if(registers[first + j] < value)
+                    registers[first + j] = (byte) value;
+            }
+        }
+    }
+
+    private void mergeWords(int[] words, int len, int r, int registersPerWord) {
+        final byte[] registers = this.registers;
+        final int mask = (1 << r) - 1;
+        for(int i = 0; i < len; i++) {
+            int word = words[i];
+            if(word == 0)
+                continue;
+            int first = i * registersPerWord;
+            for(int j = 0; j < registersPerWord; j++) {
+                int value = (word >>> ((registersPerWord - j - 1) * r)) & mask;
+                if(registers[first + j] < value)
+                    registers[first + j] = (byte) value;
+            }
+        }
+    }
+
+    // the register words in the packed layout of HLL
+    private int[] pack() {
+        int[] words = new int[m];
+        int completeWords = totalRegisters / regPerDatatype;
+        switch(r) {
+            case 4: pack(words, completeWords, 4, 8);
+                break;
+            case 5: pack(words, completeWords, 5, 6);
+                break;
+            default: pack(words, completeWords, 6, 5);
+                break;
+        }
+
+        if(completeWords < m) {
+            int first = completeWords * regPerDatatype;
+            int count = totalRegisters - first;
+            int word = 0;
+            for(int j = 0; j < count; j++)
+                word = (word << r) | registers[first + j];
+            // the missing registers of the last word are its lowest bits
+            words[completeWords] = word << ((regPerDatatype - count) * r);
+        }
+        return words;
+    }
+
+    private void pack(int[] words, int len, int r, int registersPerWord) {
+        final byte[] registers = this.registers;
+        for(int i = 0; i < len; i++) {
+            int first = i * registersPerWord;
+            int word = 0;
+            for(int j = 0; j < registersPerWord; j++)
+                word = (word << r) | registers[first + j];
+            words[i] = word;
+        }
+    }
+
+    // hist[k] = number of registers holding k. four interleaved histograms, so that runs of equal registers do not
+    // wait on the increment of the previous one, 2^p is a multiple of 4.
+    private int[] histogram() {
+        final int size = maxRegisterValue + 1;
+        int[] hists = new int[4 * size];
+        final byte[] registers = this.registers;
+        for(int i = 0; i < totalRegisters; i += 4) {
+            hists[registers[i]]++;
+            hists[size + registers[i + 1]]++;
+            hists[2 * size + registers[i + 2]]++;
+            hists[3 * size + registers[i + 3]]++;
+        }
+        int[] hist = new int[size];
+        for(int k = 0; k < size; k++)
+            hist[k] = hists[k] + hists[size + k] + hists[2 * size + k] + hists[3 * size + k];
+        return hist;
+    }
+
+    public long estimate() {
+        int[] hist = histogram();
+        double sum = 0;
+        for(int k = hist.length - 1; k >= 0; k--)
+            sum = sum + hist[k] * Math.pow(2, -k);
+        return HLL.estimate(sum, hist[0], totalRegisters);
+    }
+
+    // see HLL.improvedEstimate()
+    public long improvedEstimate() {
+        return HLL.improvedEstimate(histogram(), p, r);
+    }
+
+    // copy into a packed HLL
+    public HLL toHLL() {
+        HLL hll = new HLL(p, r, hashFunction);
+        System.arraycopy(pack(), 0, hll.getRegisters(), 0, m);
+        return hll;
+    }
+
+    // copy into a dense HLLPlusPlus, p has to be within its range
+    public HLLPlusPlus toHLLPlusPlus() {
+        int[] words = pack();
+        byte[] array = new byte[3 + m * 4];
+        array[0] = (byte) 1;
+        array[1] = (byte) p;
+        array[2] = (byte) hashFunction.toHeader(r);
+        ByteBuffer.wrap(array, 3, m * 4).asIntBuffer().put(words);
+        return HLLPlusPlus.deserialize(array);
+    }
+
+    // same format as HLL.serialize()
+    public byte[] serialize() {
+        int[] words = pack();
+        byte[] array = new byte[m * 4 + 2];
+        ByteBuffer.wrap(array, 0, m * 4).asIntBuffer().put(words);
+        array[m * 4] = (byte) p;
+        array[m * 4 + 1] = (byte) hashFunction.toHeader(r);
+        return array;
+    }
+
+    public static UnpackedHLL deserialize(byte[] array) {
+        if (array == null || array.length < 6)
+            throw new IllegalArgumentException("array is null or smaller than 6 bytes");
+        int n = array.length;
+
+        // version 2 is read into a HLL first, see HLL.readFrom()
+        if(WireFormat.header(ByteBuffer.wrap(array)) != null) {
+            HLL other = HLL.deserialize(array);
+            UnpackedHLL hll = new UnpackedHLL(other.getP(), other.getR());
+            hll.merge(other);
+            return hll;
+        }
+        int p = array[n - 2];
+        int r = array[n - 1];
+
+        UnpackedHLL hll = new UnpackedHLL(p, r & HLL.R_MASK);
+        hll.mergeFrom(array, 0, n);
+        return hll;
+    }
+}
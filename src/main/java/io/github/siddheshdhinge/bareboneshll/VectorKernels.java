@@ -0,0 +1,32 @@
+package io.github.siddheshdhinge.bareboneshll;
+
+// merge and estimate kernels that work on many register words per instruction.
+// this is the Java 8 version, the multi-release jar carries a Java 21 version (src/main/java21) built on
+// jdk.incubator.vector that replaces it on newer JVMs. callers check RegisterWords.VECTORIZED and use their own
+// loops otherwise, the scalar loops here only keep the results right should this version be called anyway.
+final class VectorKernels {
+    private VectorKernels() {
+    }
+
+    static boolean isSupported() {
+        return false;
+    }
+
+    // dst[i] = register wise max(dst[i], src[i]) for i in [from, to)
+    static void merge(int[] dst, int[] src, int from, int to, int r) {
+        for(int i = from; i < to; i++)
+            dst[i] = RegisterWords.max(dst[i], src[i], r);
+    }
+
+    // results[0] = sum of 2^-k, results[1] = number of zero registers over the complete words [0, len)
+    static void estimate(int[] words, int len, int r, double[] results) {
+        double sum = 0;
+        int zeroRegisters = 0;
+        for(int i = 0; i < len; i++) {
+            sum += RegisterWords.sum(words[i], r);
+            zeroRegisters += RegisterWords.zeros(words[i], r);
+        }
+        results[0] = sum;
+        results[1] = zeroRegisters;
+    }
+}
@@ -0,0 +1,347 @@
+package io.github.siddheshdhinge.bareboneshll;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+
+// the version 2 format written by writeTo() of HLL and HLLPlusPlus, all integers big-endian:
+//
+//   [magic 0xC8 0x4C] [version 2] [type] [encoding] [p] [r byte] [payload length, 4 bytes] [payload] [CRC32, 4 bytes]
+//
+// type is TYPE_HLL or TYPE_HLL_PLUS_PLUS, the r byte is the one of serialize(): r, LongRegisterWords.LAYOUT_FLAG for
+// the long word layout and the HashFunction id, and the CRC32 covers everything in front of it. the payload is
+//
+//   PACKED: the 2^p registers of r bits each, bit-packed from the highest bit of the first byte on
+//   ZERO_RUNS: groups of [varint zero registers] [varint registers] [the registers bit-packed, padded to a byte],
+//           for dense sketches with long runs of empty registers
+//   SPARSE: the sparse list of HLLPlusPlus.serialize() mode 2, the number of entries and the varint entries
+//
+// the first byte of the magic has its two high bits set, which the first word of a version 1 HLL can only have for
+// r = 4, and a version 1 HLLPlusPlus starts with its mode 0 to 2. so a buffer is only taken as version 2 if it has the
+// magic, the version and a matching checksum, everything else is read as version 1.
+final class WireFormat {
+    static final int TYPE_HLL = 0;
+    static final int TYPE_HLL_PLUS_PLUS = 1;
+    static final int PACKED = 0;
+    static final int ZERO_RUNS = 1;
+    static final int SPARSE = 2;
+    static final int HEADER_BYTES = 11;
+    static final int CRC_BYTES = 4;
+    private static final int MAGIC = 0xC84C;
+    private static final int VERSION = 2;
+    // a zero run ends a group of registers once it is longer than a group header costs
+    private static final int MIN_ZERO_RUN_BITS = 24;
+    private static final int CHUNK_BYTES = 4096;
+
+    private WireFormat() {
+    }
+
+    // the header fields of a version 2 sketch, after its checksum was verified
+    static final class Header {
+        final int type;
+        final int encoding;
+        final int p;
+        final int rByte;
+        // absolute offset and length of the payload
+        final int payloadOffset;
+        final int payloadLength;
+
+        private Header(int type, int encoding, int p, int rByte, int payloadOffset, int payloadLength) {
+            this.type = type;
+            this.encoding = encoding;
+            this.p = p;
+            this.rByte = rByte;
+            this.payloadOffset = payloadOffset;
+            this.payloadLength = payloadLength;
+        }
+
+        int r() {
+            return rByte & HLL.R_MASK;
+        }
+
+        boolean isLongWords() {
+            return (rByte & LongRegisterWords.LAYOUT_FLAG) != 0;
+        }
+
+        // number of bytes of the sketch, header and checksum included
+        int length() {
+            return HEADER_BYTES + payloadLength + CRC_BYTES;
+        }
+    }
+
+    // the header of the version 2 sketch at the position of buffer, null if there is none: no magic or version, or a
+    // checksum that does not match, see above
+    static Header header(ByteBuffer buffer) {
+        ByteBuffer view = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int offset = buffer.position();
+        if(view.remaining() < HEADER_BYTES + CRC_BYTES)
+            return null;
+        if((view.getShort(offset) & 0xffff) != MAGIC || view.get(offset + 2) != VERSION)
+            return null;
+        int payloadLength = view.getInt(offset + 7);
+        if(payloadLength < 0 || payloadLength > view.remaining() - HEADER_BYTES - CRC_BYTES)
+            return null;
+
+        int end = offset + HEADER_BYTES + payloadLength;
+        CRC32 crc = new CRC32();
+        ((Buffer) view).limit(end);
+        crc.update(view);
+        if((int) crc.getValue() != buffer.duplicate().order(ByteOrder.BIG_ENDIAN).getInt(end))
+            return null;
+
+        return new Header(view.get(offset + 3), view.get(offset + 4), view.get(offset + 5), view.get(offset + 6) & 0xff,
+                offset + HEADER_BYTES, payloadLength);
+    }
+
+    // bytes of the registers of words in the PACKED encoding
+    static int packedLength(int totalRegisters, int r) {
+        return (int) (((long) totalRegisters * r + 7) / 8);
+    }
+
+    // bytes of the registers in the ZERO_RUNS encoding, written to out unless it is null. the groups are cut at the
+    // zero runs that take more bits as registers than a group header does.
+    static int zeroRuns(int[] words, long[] longWords, int totalRegisters, int r, Writer out) throws IOException {
+        int minZeroRun = (MIN_ZERO_RUN_BITS + r - 1) / r;
+        int length = 0;
+        int i = 0;
+        while(i < totalRegisters) {
+            int zeros = 0;
+            while(i + zeros < totalRegisters && register(words, longWords, i + zeros, r) == 0)
+                zeros++;
+            // the group runs up to the next long zero run or the end
+            int start = i + zeros;
+            int end = start;
+            int run = 0;
+            while(end + run < totalRegisters && run < minZeroRun) {
+                if(register(words, longWords, end + run, r) == 0) {
+                    run++;
+                }
+                else {
+                    end += run + 1;
+                    run = 0;
+                }
+            }
+
+            int count = end - start;
+            length += SparseCursor.varintLength(zeros) + SparseCursor.varintLength(count) + packedLength(count, r);
+            if(out != null) {
+                out.putVarint(zeros);
+                out.putVarint(count);
+                out.putRegisters(words, longWords, start, end, r);
+            }
+            i = end;
+        }
+        return length;
+    }
+
+    // register index of the int layout words, or of the long layout longWords if words is null
+    private static int register(int[] words, long[] longWords, int index, int r) {
+        if(words == null)
+            return LongRegisterWords.get(longWords, index, r);
+        int registersPerWord = 32 / r;
+        return (words[index / registersPerWord] >>> ((registersPerWord - index % registersPerWord - 1) * r)) & ((1 << r) - 1);
+    }
+
+    // set register index of zeroed words, or longWords if words is null, to value
+    private static void store(int[] words, long[] longWords, int index, int value, int r) {
+        if(words == null) {
+            LongRegisterWords.max(longWords, index, value, r, 64 / r);
+            return;
+        }
+        int registersPerWord = 32 / r;
+        words[index / registersPerWord] |= value << ((registersPerWord - index % registersPerWord - 1) * r);
+    }
+
+    // write a dense sketch, the int layout words or if they are null the long layout longWords of its registers, in
+    // the shorter of the two dense encodings
+    static void writeDense(Writer out, int type, int p, int rByte, int[] words, long[] longWords) throws IOException {
+        int r = rByte & HLL.R_MASK;
+        int totalRegisters = 1 << p;
+        int packed = packedLength(totalRegisters, r);
+        int runs = zeroRuns(words, longWords, totalRegisters, r, null);
+        if(runs < packed) {
+            out.putHeader(type, ZERO_RUNS, p, rByte, runs);
+            zeroRuns(words, longWords, totalRegisters, r, out);
+        }
+        else {
+            out.putHeader(type, PACKED, p, rByte, packed);
+            out.putRegisters(words, longWords, 0, totalRegisters, r);
+        }
+        out.finish();
+    }
+
+    // throws for a dense payload readDense() would fail on half way, without decoding the registers
+    static void checkDense(ByteBuffer buffer, Header header) {
+        readDense(buffer, header, null, null);
+    }
+
+    // decode the registers of a PACKED or ZERO_RUNS payload into the zeroed int layout words, or the long layout
+    // longWords if words is null. with both null it only checks the payload, see checkDense()
+    static void readDense(ByteBuffer buffer, Header header, int[] words, long[] longWords) {
+        int r = header.r();
+        int totalRegisters = 1 << header.p;
+        int pos = header.payloadOffset;
+        int end = pos + header.payloadLength;
+        if(header.encoding == PACKED) {
+            if(header.payloadLength != packedLength(totalRegisters, r))
+                throw new IllegalArgumentException("HLL buffer invalid size: " + header.payloadLength + " expected: " + packedLength(totalRegisters, r));
+            if(words != null || longWords != null)
+                readRegisters(buffer, pos, words, longWords, 0, totalRegisters, r);
+            return;
+        }
+        if(header.encoding != ZERO_RUNS)
+            throw new IllegalArgumentException("invalid dense encoding: " + header.encoding);
+
+        int i = 0;
+        while(pos < end) {
+            int zeros = readVarint(buffer, pos, end);
+            pos += SparseCursor.varintLength(zeros);
+            int count = readVarint(buffer, pos, end);
+            pos += SparseCursor.varintLength(count);
+            if(zeros < 0 || count < 0 || count > totalRegisters - i - zeros || packedLength(count, r) > end - pos)
+                throw new IllegalArgumentException("invalid zero runs at byte " + pos);
+            i += zeros;
+            if(words != null || longWords != null)
+                readRegisters(buffer, pos, words, longWords, i, i + count, r);
+            pos += packedLength(count, r);
+            i += count;
+        }
+    }
+
+    private static int readVarint(ByteBuffer buffer, int pos, int end) {
+        int v = 0;
+        int b;
+        int shift = 0;
+        do {
+            if(pos >= end || shift > 28)
+                throw new IllegalArgumentException("invalid varint at byte " + pos);
+            b = buffer.get(pos++);
+            v |= (b & 0x7f) << shift;
+            shift += 7;
+        } while(b < 0);
+        return v;
+    }
+
+    // read the registers [from, to) of r bits, bit-packed at pos, into the words of either layout
+    private static void readRegisters(ByteBuffer buffer, int pos, int[] words, long[] longWords, int from, int to, int r) {
+        int mask = (1 << r) - 1;
+        long bits = 0;
+        int bitCount = 0;
+        for(int i = from; i < to; i++) {
+            if(bitCount < r) {
+                bits = (bits << 8) | (buffer.get(pos++) & 0xff);
+                bitCount += 8;
+            }
+            int value = (int) (bits >>> (bitCount - r)) & mask;
+            bitCount -= r;
+            if(value != 0)
+                store(words, longWords, i, value, r);
+        }
+    }
+
+    // encodes into a fixed chunk that is written to a stream or channel whenever it is full, so a sketch of any size
+    // is written without a byte[] of its size. keeps the CRC32 of everything written.
+    static final class Writer {
+        private final OutputStream stream;
+        private final WritableByteChannel channel;
+        private final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES);
+        private final CRC32 crc = new CRC32();
+
+        Writer(OutputStream stream) {
+            if(stream == null)
+                throw new IllegalArgumentException("stream is null");
+            this.stream = stream;
+            this.channel = null;
+        }
+
+        Writer(WritableByteChannel channel) {
+            if(channel == null)
+                throw new IllegalArgumentException("channel is null");
+            this.stream = null;
+            this.channel = channel;
+        }
+
+        void put(int b) throws IOException {
+            if(!chunk.hasRemaining())
+                flush();
+            chunk.put((byte) b);
+        }
+
+        void putInt(int v) throws IOException {
+            put(v >>> 24);
+            put(v >>> 16);
+            put(v >>> 8);
+            put(v);
+        }
+
+        void put(byte[] bytes, int offset, int length) throws IOException {
+            while(length > 0) {
+                if(!chunk.hasRemaining())
+                    flush();
+                int n = Math.min(length, chunk.remaining());
+                chunk.put(bytes, offset, n);
+                offset += n;
+                length -= n;
+            }
+        }
+
+        void putVarint(int v) throws IOException {
+            while((v & ~0x7f) != 0) {
+                put((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            put(v);
+        }
+
+        void putHeader(int type, int encoding, int p, int rByte, int payloadLength) throws IOException {
+            put(MAGIC >>> 8);
+            put(MAGIC);
+            put(VERSION);
+            put(type);
+            put(encoding);
+            put(p);
+            put(rByte);
+            putInt(payloadLength);
+        }
+
+        // the registers [from, to) of the words of either layout, bit-packed and padded to a byte
+        void putRegisters(int[] words, long[] longWords, int from, int to, int r) throws IOException {
+            long bits = 0;
+            int bitCount = 0;
+            for(int i = from; i < to; i++) {
+                bits = (bits << r) | register(words, longWords, i, r);
+                bitCount += r;
+                if(bitCount >= 8) {
+                    bitCount -= 8;
+                    put((int) (bits >>> bitCount));
+                }
+            }
+            if(bitCount > 0)
+                put((int) (bits << (8 - bitCount)));
+        }
+
+        // write the checksum and everything that is still in the chunk
+        void finish() throws IOException {
+            flush();
+            putInt((int) crc.getValue());
+            flush();
+        }
+
+        private void flush() throws IOException {
+            crc.update(chunk.array(), 0, chunk.position());
+            ((Buffer) chunk).flip();
+            if(stream != null) {
+                stream.write(chunk.array(), 0, chunk.limit());
+            }
+            else {
+                while(chunk.hasRemaining())
+                    channel.write(chunk);
+            }
+            ((Buffer) chunk).clear();
+        }
+    }
+}
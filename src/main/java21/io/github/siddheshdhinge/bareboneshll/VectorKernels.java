@@ -0,0 +1,112 @@
+package io.github.siddheshdhinge.bareboneshll;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// Java 21 version of the vector kernels, it applies the RegisterWords SWAR formulas to as many words as the
+// preferred vector holds. merge produces exactly the same words as RegisterWords.max, so registers (and the
+// serialized sketch) never depend on which kernels ran.
+final class VectorKernels {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Double> DOUBLE_SPECIES = SPECIES.withLanes(double.class);
+
+    private VectorKernels() {
+    }
+
+    static boolean isSupported() {
+        return SPECIES.length() >= 4;
+    }
+
+    private static int highBits(int r) {
+        switch(r) {
+            case 4: return 0x88888888;
+            case 5: return 0x21084210;
+            default: return 0x20820820;
+        }
+    }
+
+    private static int registerBits(int r) {
+        return r == 4 ? 0xffffffff : 0x3fffffff;
+    }
+
+    static void merge(int[] dst, int[] src, int from, int to, int r) {
+        final int highBits = highBits(r);
+        final int lowBits = ~highBits & registerBits(r);
+        int i = from;
+        int upperBound = from + SPECIES.loopBound(to - from);
+        for(; i < upperBound; i += SPECIES.length()) {
+            IntVector a = IntVector.fromArray(SPECIES, dst, i);
+            IntVector b = IntVector.fromArray(SPECIES, src, i);
+            IntVector lowBitsGe = a.or(highBits).sub(b.and(lowBits)).and(highBits);
+            IntVector ge = a.and(b.not()).or(a.lanewise(VectorOperators.XOR, b).not().and(lowBitsGe)).and(highBits);
+            IntVector mask = ge.lanewise(VectorOperators.LSHL, 1).sub(ge.lanewise(VectorOperators.LSHR, r - 1));
+            a.and(mask).or(b.and(mask.not())).intoArray(dst, i);
+        }
+        for(; i < to; i++)
+            dst[i] = RegisterWords.max(dst[i], src[i], r);
+    }
+
+    static void estimate(int[] words, int len, int r, double[] results) {
+        final int highBits = highBits(r);
+        final int lowBits = ~highBits & registerBits(r);
+        final int mask = (1 << r) - 1;
+        final int registersPerWord = 32 / r;
+
+        // two accumulators per half of the vector, to not wait on the latency of the previous add
+        DoubleVector evenLow = DoubleVector.zero(DOUBLE_SPECIES);
+        DoubleVector evenHigh = DoubleVector.zero(DOUBLE_SPECIES);
+        DoubleVector oddLow = DoubleVector.zero(DOUBLE_SPECIES);
+        DoubleVector oddHigh = DoubleVector.zero(DOUBLE_SPECIES);
+        IntVector nonZeroRegisters = IntVector.zero(SPECIES);
+
+        int i = 0;
+        int upperBound = SPECIES.loopBound(len);
+        for(; i < upperBound; i += SPECIES.length()) {
+            IntVector word = IntVector.fromArray(SPECIES, words, i);
+            IntVector nonZero = word.and(lowBits).add(lowBits).or(word).and(highBits);
+            nonZeroRegisters = nonZeroRegisters.add(nonZero.lanewise(VectorOperators.BIT_COUNT));
+
+            for(int j = 0; j < registersPerWord; j++) {
+                IntVector k = word.lanewise(VectorOperators.LSHR, r * j).and(mask);
+                // the float with biased exponent 127 - k and no mantissa is exactly 2^-k
+                FloatVector pow = k.neg().add(127).lanewise(VectorOperators.LSHL, 23).reinterpretAsFloats();
+                DoubleVector low = (DoubleVector) pow.convert(VectorOperators.F2D, 0);
+                DoubleVector high = (DoubleVector) pow.convert(VectorOperators.F2D, 1);
+                if((j & 1) == 0) {
+                    evenLow = evenLow.add(low);
+                    evenHigh = evenHigh.add(high);
+                }
+                else {
+                    oddLow = oddLow.add(low);
+                    oddHigh = oddHigh.add(high);
+                }
+            }
+        }
+
+        double sum = evenLow.add(evenHigh).add(oddLow.add(oddHigh)).reduceLanes(VectorOperators.ADD);
+        int zeroRegisters = i * registersPerWord - nonZeroRegisters.reduceLanes(VectorOperators.ADD);
+        for(; i < len; i++) {
+            int cur = words[i];
+            switch(r) {
+                case 4:
+                    zeroRegisters += RegisterWords.zeros4(cur);
+                    sum = sum + RegisterWords.sum4(cur);
+                    break;
+                case 5:
+                    zeroRegisters += RegisterWords.zeros5(cur);
+                    sum = sum + RegisterWords.sum5(cur);
+                    break;
+                default:
+                    zeroRegisters += RegisterWords.zeros6(cur);
+                    sum = sum + RegisterWords.sum6(cur);
+                    break;
+            }
+        }
+
+        results[0] = sum;
+        results[1] = zeroRegisters;
+    }
+}